@@ -1,75 +1,358 @@
 package com.qq.blue;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.net.ProtocolException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
 
 public class BluetoothChatService {
 
     private static final String TAG = "BluetoothChatService";
 
-    // UUID
-    private static UUID MY_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    //每次从socket读取的缓冲区大小，握手时告诉对方，对方按这个大小合并发送
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
 
-    private static final String NAME = "BluetoothChat";
+    //交给UI Activity的消息缓冲区的大小和缓存个数
+    private static final int RECEIVE_BUFFER_SIZE = 1024;
+    private static final int RECEIVE_BUFFER_COUNT = 32;
 
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
+    //发送队列最多能排多少帧
+    private static final int SEND_QUEUE_CAPACITY = 256;
+
+    //集线器模式下处理所有连接收发的工作线程数
+    private static final int HUB_WORKER_COUNT = 2;
+
+    //断线重连的退避时间：从BASE开始每次加倍，最多MAX，实际等待其中随机的后一半
+    private static final long RECONNECT_BASE_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = 30 * 1000;
+    private static final int RECONNECT_MAX_ATTEMPTS = 8;
+
+    //同时连接多个候选设备时，每隔这么久开始下一个；蓝牙连不上时要等几秒的寻呼超时
+    public static final long CONNECT_STAGGER_MS = 2 * 1000;
+
+    //延迟探测发完最后一个 PING 后等待回复的时间
+    private static final long PONG_TIMEOUT_MS = 5 * 1000;
+
+    private final ChatTransport mTransport;
+    //状态、收发的消息、提示都发布到这里，UI和其它订阅者各自在自己的线程中处理
+    // TYPE_READ 的缓冲区在所有订阅者处理完后由总线归还
+    private final ChatEventBus mEvents = new ChatEventBus(ChatEventBus.DEFAULT_CAPACITY, new ChatEventBus.Recycler() {
+        @Override
+        public void recycle(byte[] buffer) {
+            BluetoothChatService.this.recycle(buffer);
+        }
+    });
+    private final BufferPool mBufferPool;
     private AcceptThread mAcceptThread;
     private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    //只在持有锁时修改，发送和归还缓冲区时不拿锁直接读
+    private volatile ConnectedThread mConnectedThread;
+    private final ConnectionState mState = new ConnectionState();
+
+    //集线器模式：一直监听，同时和多个设备保持连接
+    private volatile boolean mHubMode;
+    private volatile PeerHub mHub;
+
+    //转发模式：发出的消息带ID，收到的消息转发给其它连接的设备
+    private final RelayRouter mRelay;
+    private volatile boolean mRelayEnabled;
+
+    //文件传输，只在单个连接时可用
+    private final FileTransferManager mFileTransfers;
+
+    //压缩：连接时双方都同意才压缩，统计所有连接共用
+    private volatile boolean mCompressionEnabled = true;
+    private final FrameCompressor.Stats mCompressionStats = new FrameCompressor.Stats();
+
+    //断线重连：主动连接的一方断线后自动重新连接同一个设备，重连后恢复会话补发消息
+    private volatile boolean mAutoReconnect = true;
+    private String mReconnectAddress;   //null表示不重连：没有主动连接上过，或者是对方连过来的
+    private volatile int mReconnectAttempt;
+    private final Random mRandom = new Random();
+
+    //多个候选设备时开始下一个连接前等待的时间，0表示同时开始
+    private volatile long mConnectStaggerMillis = CONNECT_STAGGER_MS;
+
+    //聊天记录：收到和发出的消息都按设备保存，null表示不保存
+    private volatile HistoryStore mHistory;
+
+    //收到的消息按显示帧合并交给UI，null表示每条消息发一个 MESSAGE_READ
+    private volatile MessageBatcher mBatcher;
+
+    //每个连接的收发统计和各状态的停留时间
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+    //监听、连接、读写任务都在这里运行，线程在断线重连之间复用
+    private LifecycleExecutor mLifecycle = new LifecycleExecutor();
+    private volatile ResumableSession mSession;  //最近一个设备的会话
 
     //表示当前连接状态的常量
-    public static final int STATE_NONE = 0;         //什么也不做
-    public static final int STATE_LISTEN = 1;       //监听传入连接
-    public static final int STATE_CONNECTING = 2;   //与远程设备连接
-    public static final int STATE_CONNECTED = 3;    //已连接到远程设备
+    //定义在 ConnectionState 中，这里保留给原来的调用者
+    public static final int STATE_NONE = ConnectionState.STATE_NONE;
+    public static final int STATE_LISTEN = ConnectionState.STATE_LISTEN;
+    public static final int STATE_CONNECTING = ConnectionState.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = ConnectionState.STATE_CONNECTED;
+
+    //STATE_CONNECTED 消息的 arg2：重连后恢复了原来的会话，之前的聊天记录仍然有效
+    public static final int FLAG_RESUMED = 1;
+
+
+    /**
+     * 使用指定的传输方式，比如在JVM上测试时用 LoopbackTransport 或 TcpTransport.
+     * 不接收文件；在 Android 上用 ChatServices.create() 创建
+     * @param transport 底层传输
+     */
+    public BluetoothChatService(ChatTransport transport){
+        this(transport, null);
+    }
 
+    /**
+     * 不依赖 Looper、Context 和 Handler，可以在任何JVM上运行，事件用 getEvents().subscribe() 接收，
+     * 需要 Handler 消息时用 HandlerEventListener
+     * @param transport 底层传输
+     * @param receivedFilesDirectory    保存收到的文件的目录，null表示拒绝接收文件
+     */
+    public BluetoothChatService(ChatTransport transport, File receivedFilesDirectory){
+        mTransport = transport;
+        mBufferPool = new BufferPool(RECEIVE_BUFFER_SIZE, RECEIVE_BUFFER_COUNT);
+        mRelay = new RelayRouter();
+        mFileTransfers = new FileTransferManager(new FileTransferListener(), receivedFilesDirectory);
+        mFileTransfers.setLifecycleExecutor(mLifecycle);
+        mMetrics.setLifecycle(mLifecycle);
+        mState.addListener(new ConnectionState.Listener() {
+            @Override
+            public void onStateChanged(int previous, int state, int flags) {
+                Log.d(TAG, "setState() " + previous + " -> " + state);
+                mMetrics.onStateChange(state);
+                //发布新状态，以便UI活动可以更新
+                mEvents.publish(ChatEvent.TYPE_STATE_CHANGE, state, flags, 0, null, null, null);
+            }
+        });
+    }
 
     /**
-     *构造函数  准备新的BluetoothChat会话
-     * @param context
-     * @param handler  设置界面状态的处理程序
+     * 事件的发布和订阅，TYPE_READ 的缓冲区由总线归还，订阅者不能 recycle()
      */
-    public BluetoothChatService(Context context,Handler handler){
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mHandler = handler;
+    public ChatEventBus getEvents() {
+        return mEvents;
     }
 
     /**
-     * 设置聊天连接的当前状态
+     * 设置聊天连接的当前状态.
+     * 连接线程的增减和状态切换要一起完成，调用者持有锁；不允许的切换只记录下来
      * @param aState    定义当前连接状态的整数
      */
-    private synchronized void setState(int aState) {
-        Log.d(TAG, "setState() " + mState + " -> " + aState);
-        mState = aState;
-        //将新状态赋予处理程序，以便UI活动可以更新
-        mHandler.obtainMessage(MainActivity.MESSAGE_STATE_CHANGE, aState, -1).sendToTarget();
+    private void setState(int aState) {
+        setState(aState, -1);
     }
 
-    // 返回当前连接状态
-    public synchronized int getState() {
+    private void setState(int aState, int flags) {
+        setState(aState, flags, ConnectionState.VIA_LOCAL);
+    }
+
+    /**
+     * @param via   ConnectionState.VIA_*，有的切换只有接受的连接或集线器能做
+     */
+    private void setState(int aState, int flags, int via) {
+        if(mState.moveTo(aState, flags, via) < 0) {
+            Log.w(TAG, "rejected setState() " + mState.get() + " -> " + aState);
+        }
+    }
+
+    // 返回当前连接状态，不拿锁
+    public int getState() {
+        return mState.get();
+    }
+
+    // 状态机本身，MessageBatcher 用它判断消息属于哪个连接
+    public ConnectionState getConnectionState() {
         return mState;
     }
 
+    /**
+     * 监听状态切换，在切换状态的线程中回调，不经过 Handler
+     */
+    public void addStateListener(ConnectionState.Listener listener) {
+        mState.addListener(listener);
+    }
+
+    public void removeStateListener(ConnectionState.Listener listener) {
+        mState.removeListener(listener);
+    }
+
+    // 被拒绝的状态切换次数
+    public long getRejectedStateChanges() {
+        return mState.getRejectedCount();
+    }
+
+    /**
+     * 切换集线器模式，会先断开所有连接，之后需要重新调用 start()
+     * @param hubMode   true: 一直接受新的连接，同时和多个设备聊天
+     */
+    public synchronized void setHubMode(boolean hubMode) {
+        if(mHubMode == hubMode) return;
+        stop();
+        mHubMode = hubMode;
+    }
+
+    public boolean isHubMode() {
+        return mHubMode;
+    }
+
+    /**
+     * 换一个运行监听、连接和读写任务的 executor，比如 LifecycleExecutor.virtualThreads().
+     * 会先断开所有连接并关闭原来的 executor，之后需要重新调用 start()
+     */
+    public synchronized void setLifecycleExecutor(LifecycleExecutor lifecycle) {
+        if(mLifecycle == lifecycle) return;
+        stop();
+        mLifecycle.shutdown();
+        mLifecycle = lifecycle;
+        mFileTransfers.setLifecycleExecutor(lifecycle);
+        mMetrics.setLifecycle(lifecycle);
+    }
+
+    // 各类任务的调度和运行时间、创建过的线程数
+    public synchronized LifecycleExecutor getLifecycleExecutor() {
+        return mLifecycle;
+    }
+
+    /**
+     * 开启转发后，发出的消息会被对方转发给它连接的其它设备，
+     * 收到的转发消息也会转发给本机的其它连接，重复的消息按ID丢弃
+     */
+    public void setRelayEnabled(boolean relayEnabled) {
+        mRelayEnabled = relayEnabled;
+    }
+
+    public boolean isRelayEnabled() {
+        return mRelayEnabled;
+    }
+
+    public RelayRouter getRelayRouter() {
+        return mRelay;
+    }
+
+    /**
+     * 主动连接的设备断开后是否自动重连，默认开启
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        mAutoReconnect = autoReconnect;
+    }
+
+    public boolean isAutoReconnect() {
+        return mAutoReconnect;
+    }
+
+    /**
+     * @param millis    connect(List) 开始下一个候选设备前等待的时间，0表示所有候选设备同时连接
+     */
+    public void setConnectStagger(long millis) {
+        mConnectStaggerMillis = Math.max(0, millis);
+    }
+
+    // 是否正在等待或尝试重连，期间发送的消息会在重连后补发
+    public boolean isReconnecting() {
+        return mReconnectAttempt > 0;
+    }
+
+    // 最近一个设备的会话，没有连接过时为null
+    public ResumableSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * 设置保存聊天记录的位置，由调用者负责关闭
+     * @param history   null表示不保存
+     */
+    public void setHistoryStore(HistoryStore history) {
+        mHistory = history;
+    }
+
+    public HistoryStore getHistoryStore() {
+        return mHistory;
+    }
+
+    /**
+     * 测量当前连接的往返延迟：每隔 intervalMillis 发一个 PING，共 count 个，
+     * 等回复收齐或超时后返回往返时间的分布.
+     * 会阻塞调用线程，不能在UI线程中调用；集线器模式下不支持
+     * @throws IOException  没有连接或者对方不回复 PING
+     */
+    public LatencyProbe probeLatency(int count, long intervalMillis) throws IOException, InterruptedException {
+        ConnectedThread connectedThread = mConnectedThread;
+        if(mState.get() != STATE_CONNECTED || connectedThread == null) {
+            throw new IOException("not connected");
+        }
+        Handshake handshake = connectedThread.mmHandshake;
+        if(handshake == null || !handshake.hasFeature(Handshake.FEATURE_PING)) {
+            throw new IOException("peer does not answer ping");
+        }
+
+        LatencyProbe probe = new LatencyProbe(count);
+        connectedThread.mmProbe = probe;
+        try {
+            probe.run(connectedThread, intervalMillis, PONG_TIMEOUT_MS);
+        }
+        finally {
+            connectedThread.mmProbe = null;
+        }
+        Log.i(TAG, "latency probe: " + probe);
+        return probe;
+    }
+
+    // 当前连接的流量控制状态，没有连接或者对方不支持时为null
+    public CreditFlow getCreditFlow() {
+        ConnectedThread connectedThread = mConnectedThread;
+        return connectedThread == null ? null : connectedThread.mmFlow;
+    }
+
+    // 连接统计，snapshot() 读取，startDump() 定时写到日志
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 设置后收到的消息不再通过 MESSAGE_READ 发出，而是交给 batcher 每帧合并一次
+     * @param batcher   null表示恢复使用 MESSAGE_READ
+     */
+    public void setMessageBatcher(MessageBatcher batcher) {
+        mBatcher = batcher;
+    }
+
+    /**
+     * 开启后每个新连接都通知对方本机能解压，对方也开启时双方发送的长消息都压缩.
+     * 只影响之后建立的连接
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        mCompressionEnabled = compressionEnabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return mCompressionEnabled;
+    }
+
+    // 压缩的帧数和压缩率
+    public FrameCompressor.Stats getCompressionStats() {
+        return mCompressionStats;
+    }
+
     /**
      *启动聊天服务.启动AcceptThread开启一个在侦听（服务器）模式下的会话。由Activity onResume（） 调用
      */
     public synchronized void start() {
         Log.d(TAG, "start");
 
+        if(mHubMode) {
+            startHub();
+            return;
+        }
+
         //取消尝试建立连接的任何线程
         if(mConnectThread != null) {
             mConnectThread.cancel();
@@ -94,37 +377,74 @@ public class BluetoothChatService {
 
     /**
      * 启动ConnectThread以启动与远程设备的连接.
-     * @param bluetoothDevice
+     * @param address   远程设备地址，蓝牙是MAC地址
      */
-    public synchronized void connect(BluetoothDevice bluetoothDevice) {
-        Log.d(TAG, "connect to: " + bluetoothDevice);
+    public synchronized void connect(String address) {
+        connect(new String[] {address});
+    }
+
+    /**
+     * 连接几个候选设备中的一个，比如几个互为备份的网关，最先连上的胜出，其余的被取消.
+     * 按顺序每隔 setConnectStagger() 的时间开始下一个，前一个失败时立即开始下一个，
+     * 全部失败才算连接失败；断线后重连胜出的那个设备
+     * @param candidates    按优先级排好的设备地址，比如 DeviceCache.getRanked() 的顺序
+     */
+    public synchronized void connect(List<String> candidates) {
+        if(candidates.isEmpty()) return;
+        connect(candidates.toArray(new String[candidates.size()]));
+    }
+
+    private synchronized void connect(String[] addresses) {
+        Log.d(TAG, "connect to: " + (addresses.length == 1 ? addresses[0] : addresses.length + " candidates"));
+
+        //用户主动连接，停止正在进行的重连
+        mReconnectAddress = null;
+        mReconnectAttempt = 0;
 
         //取消尝试建立连接的任何线程
-        if(mState == STATE_CONNECTING && mConnectThread != null) {
+        if(mState.get() == STATE_CONNECTING && mConnectThread != null) {
             mConnectThread.cancel();
             mConnectThread = null;
         }
 
-        //取消当前运行连接的任何线程
+        //取消当前运行连接的任何线程，已连接时先断开，不能从已连接直接切换到连接中
         if(mConnectedThread != null) {
             mConnectedThread.cancel();
             mConnectedThread = null;
+            if(!mHubMode && mState.get() == STATE_CONNECTED) {
+                setState(STATE_NONE);
+            }
         }
 
         //启动线程来连接给定设备
-        mConnectThread = new ConnectThread(bluetoothDevice);
+        mConnectThread = new ConnectThread(addresses, 0);
         mConnectThread.start();
-        setState(STATE_CONNECTING);
+
+        //集线器模式下已有的连接不受影响
+        if(!mHubMode || mHub == null || mHub.getPeerCount() == 0) {
+            setState(STATE_CONNECTING);
+        }
     }
 
     /**
      * 启动ConnectedThread以开始管理蓝牙连接
-     * @param bluetoothSocket
-     * @param bluetoothDevice   已连接的设备
+     * @param connection    已建立的连接
      */
-    public synchronized void connected(BluetoothSocket bluetoothSocket, BluetoothDevice bluetoothDevice) {
+    public synchronized void connected(ChatTransport.Connection connection) {
+        connected(connection, false);
+    }
+
+    /**
+     * @param outgoing  是否是本机主动连接的，主动连接的一方负责断线重连
+     */
+    private synchronized void connected(ChatTransport.Connection connection, boolean outgoing) {
         Log.d(TAG, "connected");
 
+        if(mHubMode) {
+            addPeer(connection);
+            return;
+        }
+
         ////取消完成连接的线程
         if(mConnectThread != null) {
             mConnectThread.cancel();
@@ -143,25 +463,65 @@ public class BluetoothChatService {
             mAcceptThread = null;
         }
 
-        //启动线程以管理连接并执行传输
-        mConnectedThread = new ConnectedThread(bluetoothSocket);
+        //启动线程以管理连接并执行传输，握手完成后才切换到 STATE_CONNECTED
+        mConnectedThread = new ConnectedThread(connection, outgoing);
         mConnectedThread.start();
+    }
+
+    /**
+     * ConnectedThread 握手完成后调用，双方支持会话时在交换完 TYPE_RESUME 之后
+     */
+    private synchronized void handshakeComplete(ConnectedThread connectedThread, Handshake handshake,
+                                                boolean resumed) {
+        //握手期间已经被新的连接替换或者被停止
+        if(mConnectedThread != connectedThread) return;
+
+        Log.i(TAG, "handshake complete: " + handshake + (resumed ? " resumed" : ""));
+        mReconnectAttempt = 0;
+        mReconnectAddress = connectedThread.mmOutgoing ? connectedThread.mmConnection.getRemoteAddress() : null;
 
         //将连接的设备的名称发送回UI Activity
-        Message message = mHandler.obtainMessage(MainActivity.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(MainActivity.DEVICE_NAME, bluetoothDevice.getName());
-        message.setData(bundle);
-        mHandler.sendMessage(message);
+        sendDeviceName(connectedThread.mmConnection.getRemoteAddress(),
+                connectedThread.mmConnection.getRemoteName());
+
+        setState(STATE_CONNECTED, resumed ? FLAG_RESUMED : -1,
+                connectedThread.mmOutgoing ? ConnectionState.VIA_LOCAL : ConnectionState.VIA_ACCEPT);
+
+        //继续发送上次没有发完的文件
+        if(handshake.hasFeature(Handshake.FEATURE_FILE_TRANSFER)) {
+            mFileTransfers.onConnected(connectedThread, connectedThread.mmConnection.getRemoteAddress(),
+                    handshake.getMaxPayloadLength());
+        }
+    }
 
-        setState(STATE_CONNECTED);
+    // 本机在握手时声明的参数
+    private Handshake localHandshake() {
+        int features = Handshake.FEATURE_FILE_TRANSFER | Handshake.FEATURE_RESUME | Handshake.FEATURE_PING
+                | Handshake.FEATURE_CREDIT | Handshake.FEATURE_FRAGMENT;
+        if(mCompressionEnabled) {
+            features |= Handshake.FEATURE_COMPRESSION;
+        }
+        return new Handshake(FrameCodec.MAX_PAYLOAD_LENGTH, READ_BUFFER_SIZE, features);
     }
 
 
+    /**
+     * 取得和这个设备的会话，换了设备就开始新的会话
+     */
+    private synchronized ResumableSession session(String address) {
+        if(mSession == null || !mSession.getAddress().equals(address)) {
+            mSession = new ResumableSession(address);
+        }
+        return mSession;
+    }
+
     // 停止所有的线程
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
+        mReconnectAddress = null;
+        mReconnectAttempt = 0;
+
         if(mConnectThread != null) {
             mConnectThread.cancel();
             mConnectThread = null;
@@ -177,29 +537,156 @@ public class BluetoothChatService {
             mAcceptThread = null;
         }
 
+        if(mHub != null) {
+            mHub.stop();
+            mHub = null;
+        }
+
         setState(STATE_NONE);
     }
 
+    /**
+     * 停止所有连接并关闭工作线程，之后这个服务不能再使用.
+     * 由 Activity onDestroy() 调用
+     */
+    public synchronized void shutdown() {
+        stop();
+        mLifecycle.shutdown();
+    }
+
     // 写消息
     public void write(byte[] message) {
+        offer(message);
+    }
+
+    /**
+     * 把消息放进发送队列，由发送线程写入socket，不会阻塞调用者.
+     * 断线重连期间消息先记在会话里，重连后补发
+     * @param message   消息内容
+     * @return  未连接或发送队列已满时返回false
+     */
+    public boolean offer(byte[] message) {
+        //发送是最频繁的调用，不拿锁；读到的连接随后可能被取消，那时 offer() 会失败或者消息留在会话里补发
         ConnectedThread connectedThread;
-        synchronized(this){
-            if(mState != STATE_CONNECTED) return;
+        ResumableSession session;
+        if(mState.get() == STATE_CONNECTED) {
             connectedThread = mConnectedThread;
+            session = connectedThread == null ? null : connectedThread.mmSession;
+        }
+        else if(mReconnectAttempt > 0 && mSession != null) {
+            connectedThread = null;
+            session = mSession;
+        }
+        else {
+            return false;
+        }
+        PeerHub hub = mHub;
+
+        boolean relay = mRelayEnabled;
+        int type = relay ? FrameCodec.TYPE_RELAY : FrameCodec.TYPE_TEXT;
+        byte[] payload = relay ? mRelay.wrap(message) : message;
+
+        //集线器模式下发给所有连接的设备
+        if(hub != null) {
+            if(hub.broadcast(type, payload) == 0) return false;
+            for(PeerHub.Peer peer : hub.getPeers()) {
+                recordSent(peer.getAddress(), message);
+            }
+        }
+        else if(session != null) {
+            //会话保证重连后送达，放进会话就回显
+            if(!session.offer(type, payload)) return false;
+            recordSent(session.getAddress(), message);
+        }
+        else {
+            //刚被 stop() 取消
+            if(connectedThread == null || !connectedThread.offer(type, payload)) return false;
+            //单个连接的TEXT帧写出后才回显
+            if(!relay) return true;
+            recordSent(connectedThread.mmConnection.getRemoteAddress(), message);
+        }
+
+        //将发送的消息共享回UI Activity
+        mEvents.publish(ChatEvent.TYPE_WRITE, -1, -1, 0, message, null, null);
+        return true;
+    }
+
+    /**
+     * 集线器模式下只发给一个设备
+     * @param address   设备地址
+     * @param message   消息内容
+     * @return  没有这个连接或发送队列已满时返回false
+     */
+    public boolean offer(String address, byte[] message) {
+        PeerHub hub = mHub;
+        if(hub == null || !hub.offer(address, FrameCodec.TYPE_TEXT, message)) return false;
+        recordSent(address, message);
+        mEvents.publish(ChatEvent.TYPE_WRITE, -1, -1, 0, message, null, null);
+        return true;
+    }
+
+    // 返回发送队列中等待发送的帧数
+    public int getQueueDepth() {
+        ConnectedThread connectedThread = mConnectedThread;
+        PeerHub hub = mHub;
+        if(hub != null) return hub.getQueueDepth();
+        return connectedThread == null ? 0 : connectedThread.getQueueDepth();
+    }
+
+    /**
+     * 集线器模式下 MESSAGE_READ 的 arg2 是发送者的id，用它查设备名
+     * @return  设备已经断开时返回null
+     */
+    public String getPeerName(int peerId) {
+        PeerHub hub = mHub;
+        PeerHub.Peer peer = hub == null ? null : hub.getPeer(peerId);
+        return peer == null ? null : peer.getName();
+    }
+
+    // 集线器模式下当前连接的设备数
+    public int getPeerCount() {
+        PeerHub hub = mHub;
+        return hub == null ? 0 : hub.getPeerCount();
+    }
+
+    /**
+     * 发送文件，未连接时先排队，连接后开始发送；连接断开后重新连上会从断点续传.
+     * 集线器模式下不可用
+     * @param file  要发送的文件
+     */
+    public FileTransferManager.Transfer sendFile(File file) throws IOException {
+        return mFileTransfers.send(file);
+    }
+
+    // 正在发送和接收的文件
+    public List<FileTransferManager.Transfer> getFileTransfers() {
+        return mFileTransfers.getTransfers();
+    }
+
+    /**
+     * 归还 MessageBatcher 交出的缓冲区，总线上的 TYPE_READ 由总线自己归还.
+     * UI Activity 解码完消息后必须调用，之后不能再使用这个缓冲区
+     * @param buffer    MessageBatcher.Incoming.buffer
+     */
+    public void recycle(byte[] buffer) {
+        mBufferPool.recycle(buffer);
+
+        //消息处理完了，给对方增加额度；断线前收到的消息在重连后才归还时算给新连接，最多多给一个窗口
+        ConnectedThread connectedThread = mConnectedThread;
+        if(connectedThread != null) {
+            connectedThread.onConsumed();
         }
-        connectedThread.write(message);
     }
 
     /**
      * 提示连接尝试失败并通知 UI Activity
      */
     private void connectionFailed() {
+        //重连失败就等更久再试
+        if(tryReconnect()) return;
+
         //发送失败消息到 Activity
-        Message message = mHandler.obtainMessage(MainActivity.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(MainActivity.TOAST, "Unable to connect device");
-        message.setData(bundle);
-        mHandler.sendMessage(message);
+        sendToast("Unable to connect device");
 
         //启动服务以重新启动监听模式
         start();
@@ -209,62 +696,285 @@ public class BluetoothChatService {
      * 提示连接丢失并通知UI Activity
      */
     private void connectionLost() {
+        if(tryReconnect()) {
+            sendToast("Device connection was lost, reconnecting");
+            return;
+        }
+
         // 发送失败消息到 Activity
-        Message message = mHandler.obtainMessage(MainActivity.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(MainActivity.TOAST, "Device connection was lost");
-        message.setData(bundle);
-        mHandler.sendMessage(message);
+        sendToast("Device connection was lost");
 
         //启动服务以重新启动监听模式
         start();
     }
 
+    /**
+     * 主动连接的设备断开或者重连失败后，等一段退避时间再连接同一个设备，同时监听对方连过来
+     * @return  不需要重连或者已经超过最大次数时返回false
+     */
+    private synchronized boolean tryReconnect() {
+        if(!mAutoReconnect || mHubMode || mReconnectAddress == null) return false;
+        if(mReconnectAttempt >= RECONNECT_MAX_ATTEMPTS) {
+            Log.w(TAG, "give up reconnecting to " + mReconnectAddress);
+            mReconnectAddress = null;
+            mReconnectAttempt = 0;
+            return false;
+        }
+
+        String address = mReconnectAddress;
+        long delay = backoffDelay(mReconnectAttempt++);
+        mMetrics.onReconnect(address);
+        Log.i(TAG, "reconnect to " + address + " in " + delay + "ms, attempt " + mReconnectAttempt);
+
+        //start() 会取消旧的连接线程并开始监听
+        start();
+        mConnectThread = new ConnectThread(new String[] {address}, delay);
+        mConnectThread.start();
+        setState(STATE_CONNECTING);
+        return true;
+    }
+
+    /**
+     * 第 attempt 次重连前等待的时间.
+     * 指数增长，在后一半中随机取值，避免两端或多个设备同时重试
+     */
+    private long backoffDelay(int attempt) {
+        long delay = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_BASE_DELAY_MS << Math.min(attempt, 16));
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * 把收到的消息拷贝到租来的缓冲区交给 MessageBatcher 或总线，由它们归还
+     * @param address   消息来自哪个连接
+     * @param peerId    集线器模式下发送者的id，否则为-1
+     */
+    private void deliverMessage(String address, byte[] buffer, int offset, int length, int peerId) {
+        HistoryStore history = mHistory;
+        if(history != null) {
+            history.append(address, false, buffer, offset, length);
+        }
+        byte[] message = mBufferPool.obtain(length);
+        System.arraycopy(buffer, offset, message, 0, length);
+        MessageBatcher batcher = mBatcher;
+        if(batcher != null) {
+            batcher.post(message, length, peerId);
+            return;
+        }
+        //没有订阅者或者被丢弃时没有人归还
+        if(!mEvents.publish(ChatEvent.TYPE_READ, length, peerId, 0, message, null, null)) {
+            recycle(message);
+        }
+    }
+
+    // 发出的消息在回显给UI Activity的同时记下来
+    private void recordSent(String address, byte[] message) {
+        HistoryStore history = mHistory;
+        if(history != null) {
+            history.append(address, true, message, 0, message.length);
+        }
+    }
+
+    private void sendToast(String text) {
+        mEvents.publish(ChatEvent.TYPE_TOAST, 0, 0, 0, null, text, null);
+    }
+
+    /**
+     * 同时带上这个设备现有的聊天记录条数，这之后收发的消息都会另外发给UI Activity，
+     * 它从记录中只需要读到这里
+     */
+    private void sendDeviceName(String address, String name) {
+        HistoryStore history = mHistory;
+        long count = history == null ? 0 : history.getCount(address);
+        mEvents.publish(ChatEvent.TYPE_DEVICE_NAME, 0, 0, count, null, name, address);
+    }
+
+    /**
+     * 集线器模式下的 start()：保留已有的连接，只保证在监听
+     */
+    private void startHub() {
+        if(mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+
+        if(mHub == null) {
+            mHub = new PeerHub(new HubListener(), HUB_WORKER_COUNT, mLifecycle);
+            mHub.start();
+        }
+
+        setState(mHub.getPeerCount() > 0 ? STATE_CONNECTED : STATE_LISTEN, -1, ConnectionState.VIA_HUB);
+
+        if(mAcceptThread == null) {
+            mAcceptThread = new AcceptThread();
+            mAcceptThread.start();
+        }
+    }
+
+    /**
+     * 集线器模式下把新连接加入连接表
+     */
+    private void addPeer(ChatTransport.Connection connection) {
+        if(mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+
+        if(mHub == null) {
+            mHub = new PeerHub(new HubListener(), HUB_WORKER_COUNT, mLifecycle);
+            mHub.start();
+        }
+
+        //握手完成后在 HubListener.onPeerConnected() 中切换状态
+        try {
+            mHub.setCompression(mCompressionEnabled ? mCompressionStats : null);
+            mHub.setMetrics(mMetrics);
+            mHub.add(connection);
+        }
+        catch(IOException e) {
+            Log.e(TAG, "unable to add peer", e);
+            try {
+                connection.close();
+            }
+            catch(IOException e1) {
+                Log.e(TAG, "close() of peer failed", e1);
+            }
+            return;
+        }
+    }
+
+    /**
+     * 集线器模式下各个连接的事件，在 PeerHub 的工作线程中调用
+     */
+    private class HubListener implements PeerHub.Listener {
+
+        @Override
+        public void onPeerConnected(PeerHub.Peer peer) {
+            Log.d(TAG, "peer connected: " + peer.getAddress() + " " + peer.getHandshake());
+            sendDeviceName(peer.getAddress(), peer.getName());
+            //第一个设备连上时才切换状态，避免每加入一个设备UI就清空一次会话；
+            //已经 stop() 时是 STATE_NONE，切换会失败，不用拿锁，监听器的回调由 ConnectionState 排序
+            int state = mState.get();
+            if(state == STATE_LISTEN || state == STATE_CONNECTING) {
+                mState.transition(state, STATE_CONNECTED, -1, ConnectionState.VIA_HUB);
+            }
+        }
+
+        @Override
+        public void onFrame(PeerHub.Peer peer, int type, byte[] buffer, int offset, int length) {
+            switch(type) {
+                case FrameCodec.TYPE_TEXT: {
+                    deliverMessage(peer.getAddress(), buffer, offset, length, peer.getId());
+                    break;
+                }
+                case FrameCodec.TYPE_RELAY: {
+                    if(!mRelay.accept(buffer, offset, length)) break;
+                    deliverMessage(peer.getAddress(), buffer, offset + RelayRouter.HEADER_LENGTH,
+                            length - RelayRouter.HEADER_LENGTH, peer.getId());
+
+                    //转发给除了来源以外的所有设备
+                    byte[] forward = mRelayEnabled ? mRelay.forward(buffer, offset, length) : null;
+                    PeerHub hub = mHub;
+                    if(forward != null && hub != null) {
+                        hub.broadcastExcept(peer, FrameCodec.TYPE_RELAY, forward);
+                    }
+                    break;
+                }
+                default: {
+                    Log.w(TAG, "unknown frame type " + type + ", ignored");
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void onPeerLost(PeerHub.Peer peer, IOException e) {
+            Log.e(TAG, "peer lost: " + peer.getAddress(), e);
+            sendToast(peer.getName() + " connection was lost");
+            synchronized(BluetoothChatService.this) {
+                if(mHub != null && mHub.getPeerCount() == 0) {
+                    mState.transition(STATE_CONNECTED, STATE_LISTEN, -1, ConnectionState.VIA_HUB);
+                }
+            }
+        }
+    }
+
+    /**
+     * 文件传输完成或失败时通知UI Activity
+     */
+    private class FileTransferListener implements FileTransferManager.Listener {
+
+        @Override
+        public void onTransferProgress(FileTransferManager.Transfer transfer) {
+        }
+
+        @Override
+        public void onTransferComplete(FileTransferManager.Transfer transfer) {
+            Log.i(TAG, "file transfer complete: " + transfer.getName() + " " + transfer.getSize() + " bytes");
+            sendToast((transfer.isOutgoing() ? "Sent file " : "Received file ") + transfer.getName());
+        }
+
+        @Override
+        public void onTransferFailed(FileTransferManager.Transfer transfer, IOException e) {
+            Log.e(TAG, "file transfer failed: " + transfer.getName(), e);
+            sendToast("File transfer failed: " + transfer.getName());
+        }
+    }
+
     /**
      * 此线程在监听传入连接时运行.它的行为像服务器端客户端.
      * 直到接受连接或取消连接才停止
      */
-    private class AcceptThread extends Thread {
-        private final BluetoothServerSocket mmServerSocket;
+    private class AcceptThread implements Runnable {
+        private final ChatTransport.Acceptor mmAcceptor;
 
         public AcceptThread() {
             super();
-            BluetoothServerSocket bluetoothServerSocket = null;
+            ChatTransport.Acceptor acceptor = null;
 
             try {
-                bluetoothServerSocket = mAdapter.listenUsingRfcommWithServiceRecord(NAME, BluetoothChatService.MY_UUID);
+                acceptor = mTransport.listen();
             }
             catch(IOException e) {
                 Log.e(TAG, "listen() failed", e);
             }
 
-            mmServerSocket = bluetoothServerSocket;
+            mmAcceptor = acceptor;
+        }
+
+        public void start() {
+            mLifecycle.execute(LifecycleExecutor.TASK_ACCEPT, this);
         }
 
         public void run() {
-            BluetoothSocket bluetoothSocket = null;
+            ChatTransport.Connection connection = null;
             Log.d(TAG, "BEGIN mAcceptThread" + this);
-            setName("AcceptThread");
+            if(mmAcceptor == null) return;
 
-            ////如果没有连接，就监听服务器socket
-            //bugbugbug
-            while(mState != STATE_CONNECTED) {
+            ////如果没有连接，就监听服务器socket，状态不拿锁读
+            while(mHubMode || mState.get() != STATE_CONNECTED) {
                 try {
                     //这是一个阻塞调用，只会返回一个成功连接或异常
-                    bluetoothSocket = mmServerSocket.accept();
+                    connection = mmAcceptor.accept();
                 }
                 catch(IOException e) {
                     Log.e(TAG, "accept() failed,ignore this，it will accept again", e);
                     break;
                 }
 
-                if (bluetoothSocket != null){
+                if (connection != null){
                     synchronized (BluetoothChatService.this){
-                        switch(mState) {
+                        //集线器模式下只要没有停止就一直接受
+                        int state = mState.get();
+                        if(mHubMode && state != STATE_NONE) {
+                            connected(connection);
+                            continue;
+                        }
+
+                        switch(state) {
                             //情况正常. 启动连接的线程.
                             case STATE_LISTEN:
                             case STATE_CONNECTING: {
-                                connected(bluetoothSocket, bluetoothSocket.getRemoteDevice());
+                                connected(connection);
                                 break;
                             }
 
@@ -272,7 +982,7 @@ public class BluetoothChatService {
                             case STATE_NONE:
                             case STATE_CONNECTED: {
                                 try {
-                                    bluetoothSocket.close();
+                                    connection.close();
                                 }catch(IOException e) {
                                     Log.e(TAG, "Could not close unwanted socket", e);
                                 }
@@ -290,8 +1000,9 @@ public class BluetoothChatService {
         public void cancel() {
 
             Log.d(TAG, "cancel " + this);
+            if(mmAcceptor == null) return;
             try {
-                mmServerSocket.close();
+                mmAcceptor.close();
             }
             catch(IOException e) {
                 Log.e(TAG, "close() of server failed", e);
@@ -301,84 +1012,273 @@ public class BluetoothChatService {
     }
 
     /**
-     * 此线程在尝试与设备建立传出连接时运行
+     * 此线程在尝试与设备建立传出连接时运行.
+     * 有多个候选设备时每个设备一个 Attempt 任务，错开开始，第一个连上的关闭其余的连接
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothDevice mmDevice;
-        private final BluetoothSocket mmSocket;
+    private class ConnectThread {
+        private final String[] mmAddresses;
+        private final long mmDelayMillis;
+        private final long mmStaggerMillis;
+        // 以下只在 synchronized(this) 中访问
+        private final Attempt[] mmAttempts;
+        private int mmStarted;
+        private int mmFailed;
+        private Attempt mmWinner;
+        private boolean mmCancelled;
+        private long mmStartedAt;
+
+        /**
+         * @param delayMillis   重连时先等待的时间
+         */
+        public ConnectThread(String[] addresses, long delayMillis) {
+            mmAddresses = addresses;
+            mmDelayMillis = delayMillis;
+            mmStaggerMillis = mConnectStaggerMillis;
+            mmAttempts = new Attempt[addresses.length];
+        }
 
-        public ConnectThread(BluetoothDevice bluetoothDevice) {
-            BluetoothSocket bluetoothSocket = null;
-            mmDevice = bluetoothDevice;
+        // 重连时等待的时间不占用工作线程
+        public void start() {
+            startNext(mmDelayMillis);
+        }
 
-            try {
-                bluetoothSocket = bluetoothDevice.createRfcommSocketToServiceRecord(MY_UUID);
+        /**
+         * 开始下一个候选设备
+         * @param delayMillis   等待多久再开始
+         */
+        private synchronized void startNext(long delayMillis) {
+            if(mmCancelled || mmWinner != null || mmStarted == mmAttempts.length) return;
+            Attempt attempt = new Attempt(mmStarted, mmAddresses[mmStarted]);
+            mmAttempts[mmStarted++] = attempt;
+            attempt.mmTask = mLifecycle.schedule(LifecycleExecutor.TASK_CONNECT, attempt, delayMillis);
+        }
+
+        /**
+         * 一个候选设备开始连接，同一个 Attempt 可能被提交两次，只有第一次运行
+         * @return  已经被取消、已经有连上的或者已经运行过时返回false
+         */
+        private boolean onAttemptStarted(Attempt attempt) {
+            synchronized(this) {
+                if(mmCancelled || mmWinner != null || attempt.mmBegun) return false;
+                attempt.mmBegun = true;
+                if(mmStartedAt == 0) {
+                    mmStartedAt = System.nanoTime();
+                }
             }
-            catch(IOException e) {
-                Log.e(TAG, "create() failed", e);
+            //还有候选设备时，错开一段时间开始下一个，不用等这个超时
+            if(attempt.mmIndex + 1 < mmAddresses.length) {
+                startNext(mmStaggerMillis);
+            }
+            return true;
+        }
+
+        private void onAttemptFailed(Attempt attempt) {
+            boolean allFailed;
+            Attempt waiting = null;
+            synchronized(this) {
+                if(mmCancelled || mmWinner != null) return;
+                mmFailed++;
+                allFailed = mmFailed == mmAttempts.length;
+                //下一个还在错开等待中，这个已经失败就不用再等
+                Attempt last = mmAttempts[mmStarted - 1];
+                if(!last.mmBegun) {
+                    waiting = last;
+                }
+            }
+            if(allFailed) {
+                connectionFailed();
+            }
+            else if(waiting != null) {
+                //等待中的任务到时间后发现已经运行过，直接返回
+                waiting.mmTask = mLifecycle.execute(LifecycleExecutor.TASK_CONNECT, waiting);
             }
+        }
 
-            mmSocket = bluetoothSocket;
+        /**
+         * @return  是第一个连上的返回true，其余的连接都被关闭
+         */
+        private boolean onAttemptConnected(Attempt attempt) {
+            synchronized(this) {
+                if(mmCancelled || mmWinner != null) return false;
+                mmWinner = attempt;
+            }
+            if(mmAttempts.length > 1) {
+                Log.i(TAG, "connected to candidate " + attempt.mmIndex + " " + attempt.mmAddress + " after "
+                        + (System.nanoTime() - mmStartedAt) / 1000000 + "ms");
+            }
+            closeAttempts(attempt);
+            return true;
         }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread");
-            setName("ConnectThread");
-            //应该取消蓝牙设备可见，因为它会减慢连接速度
-            mAdapter.cancelDiscovery();
-            try {
-                //这是一个阻塞调用，只会返回一个成功连接或异常
-                mmSocket.connect();
+        // 取消并关闭 except 之外的所有连接
+        private void closeAttempts(Attempt except) {
+            Attempt[] attempts;
+            synchronized(this) {
+                attempts = mmAttempts.clone();
             }
-            catch(IOException e) {
+            for(Attempt attempt : attempts) {
+                if(attempt != null && attempt != except) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+        public void cancel() {
+            synchronized(this) {
+                mmCancelled = true;
+            }
+            closeAttempts(null);
+        }
+
+
+        /**
+         * 连接一个候选设备
+         */
+        private class Attempt implements Runnable {
+            private final int mmIndex;
+            private final String mmAddress;
+            private volatile LifecycleExecutor.Task mmTask;
+            // 只在 synchronized(ConnectThread.this) 中访问
+            private boolean mmBegun;
+            // 只在 synchronized(this) 中访问
+            private ChatTransport.Connection mmConnection;
+            private boolean mmClosed;
+
+            Attempt(int index, String address) {
+                mmIndex = index;
+                mmAddress = address;
+            }
+
+            public void run() {
+                if(!onAttemptStarted(this)) return;
+                Log.i(TAG, "BEGIN mConnectThread " + mmAddress);
+                ChatTransport.Connection connection;
                 try {
-                    mmSocket.close();
+                    connection = mTransport.open(mmAddress);
+                }
+                catch(IOException e) {
+                    Log.e(TAG, "create() failed", e);
+                    onAttemptFailed(this);
+                    return;
                 }
-                catch(IOException e1) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e1);
+                synchronized(this) {
+                    //打开时已经被取消
+                    if(mmClosed) {
+                        close(connection);
+                        return;
+                    }
+                    mmConnection = connection;
+                }
+                try {
+                    //这是一个阻塞调用，只会返回一个成功连接或异常
+                    connection.connect();
                 }
+                catch(IOException e) {
+                    close(connection);
 
-                connectionFailed();
-                return;
+                    //被取消的不算失败
+                    if(!isClosed()) {
+                        onAttemptFailed(this);
+                    }
+                    return;
+                }
+
+                //晚到的候选设备关掉
+                if(!onAttemptConnected(this)) {
+                    close(connection);
+                    return;
+                }
+
+                // 重置ConnectThread，因为已经完成了
+                synchronized (BluetoothChatService.this){
+                    if(mConnectThread != ConnectThread.this || isCancelled()) return;
+                    mConnectThread = null;
+                }
+
+                // 开始 connected 线程
+                connected(connection, true);
             }
 
-            // 重置ConnectThread，因为已经完成了
-            synchronized (BluetoothChatService.this){
-                mConnectThread = null;
+            private synchronized boolean isClosed() {
+                return mmClosed;
             }
 
-            // 开始 connected 线程
-            connected(mmSocket, mmDevice);
-        }
+            void cancel() {
+                //等待开始时被取消就不再连接
+                LifecycleExecutor.Task task = mmTask;
+                if(task != null) {
+                    task.cancel();
+                }
+                ChatTransport.Connection connection;
+                synchronized(this) {
+                    mmClosed = true;
+                    connection = mmConnection;
+                }
+                if(connection != null) {
+                    close(connection);
+                }
+            }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            }catch(IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+            private void close(ChatTransport.Connection connection) {
+                try {
+                    connection.close();
+                }catch(IOException e) {
+                    Log.e(TAG, "close() of connect socket failed", e);
+                }
             }
         }
+
+        private synchronized boolean isCancelled() {
+            return mmCancelled;
+        }
     }
 
 
     /**
      * 此线程在与远程设备的连接期间运行
-     * 它处理所有传入和传出传输
+     * 它先和对方握手，然后处理所有传入和传出传输
      */
-    private class ConnectedThread extends Thread {
+    private class ConnectedThread
+            implements Runnable, FrameCodec.FrameListener, FrameWriter.Listener, FileTransferManager.FrameSender {
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-        private final BluetoothSocket mmSocket;
+        private final ChatTransport.Connection mmConnection;
+        private final FrameCodec.Decoder mmDecoder;
+        private final FrameCompressor mmCompressor;
+        private final Handshake mmLocal;
+        private final boolean mmOutgoing;
+        private final LinkMetrics mmMetrics;
+        private final LifecycleExecutor mmLifecycle;
+
+        //握手完成后才创建发送线程，合并缓冲区的大小按对方的接收缓冲区
+        private volatile Handshake mmHandshake;
+        private volatile FrameWriter mmWriter;
+        private volatile boolean mmCancelled;
+
+        //双方都支持时才有会话，收到对方的 TYPE_RESUME 之后才算连上
+        private volatile ResumableSession mmSession;
+        private volatile boolean mmReady;
+
+        //正在进行的延迟探测
+        private volatile LatencyProbe mmProbe;
 
-        public ConnectedThread(BluetoothSocket bluetoothSocket) {
+        //双方都支持时按额度发送和接收聊天消息
+        private volatile CreditFlow mmFlow;
+
+        //双方都支持分片时把对方的 TYPE_FRAGMENT 拼回原来的帧，只在读线程中使用
+        private FrameLanes.Assembler mmAssembler;
+
+        public ConnectedThread(ChatTransport.Connection connection, boolean outgoing) {
             Log.d(TAG, "create ConnectedThread");
+            mmOutgoing = outgoing;
             OutputStream outputStream = null;
             InputStream inputStream = null;
-            mmSocket = bluetoothSocket;
+            mmConnection = connection;
+            mmDecoder = new FrameCodec.Decoder(this);
 
             try {
-                inputStream = bluetoothSocket.getInputStream();
-                outputStream = bluetoothSocket.getOutputStream();
+                inputStream = connection.getInputStream();
+                outputStream = connection.getOutputStream();
             }
             catch(IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
@@ -386,41 +1286,350 @@ public class BluetoothChatService {
 
             mmInStream = inputStream;
             mmOutStream = outputStream;
+            mmLocal = localHandshake();
+            mmMetrics = mMetrics.connect(connection.getRemoteAddress());
+            mmLifecycle = mLifecycle;
+            mmCompressor = mmLocal.hasFeature(Handshake.FEATURE_COMPRESSION)
+                    ? new FrameCompressor(mCompressionStats) : null;
+        }
+
+        // 读任务，发送任务在握手完成后再开始
+        public void start() {
+            mmLifecycle.execute(LifecycleExecutor.TASK_CONNECTED, this);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] message = new byte[1024];
-            while(mState == STATE_CONNECTED){
-                try {
-                    mHandler.obtainMessage(MainActivity.MESSAGE_READ, mmInStream.read(message), -1, message)
-                            .sendToTarget();
+            if(mmInStream == null || mmOutStream == null) {
+                connectionFailed();
+                return;
+            }
+            ScheduledFuture<?> timeout = Handshake.scheduleTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mmReady) {
+                        Log.w(TAG, "handshake timeout");
+                        closeConnection();
+                    }
                 }
-                catch(IOException e) {
+            });
+
+            byte[] buffer = new byte[mmLocal.getBufferSize()];
+            try {
+                //发送线程还没启动，HELLO直接写
+                mmOutStream.write(FrameCodec.encode(FrameCodec.TYPE_HELLO, mmLocal.encode()));
+                mmOutStream.flush();
+
+                while(!mmCancelled) {
+                    //一次read()可能只有半帧，也可能有好几帧，交给解码器重新拼成完整的消息
+                    int bytes = mmInStream.read(buffer);
+                    if(bytes < 0) {
+                        throw new IOException("end of stream");
+                    }
+                    mmMetrics.onRead(bytes);
+                    mmDecoder.feed(buffer, 0, bytes);
+                }
+            }
+            catch(IOException e) {
+                //被 cancel() 关闭的不用处理
+                if(mmCancelled) return;
+
+                if(!mmReady) {
+                    Log.e(TAG, "handshake failed", e);
+                    connectionFailed();
+                }
+                else {
                     Log.e(TAG, "disconnected", e);
                     connectionLost();
+                }
+            }
+            finally {
+                timeout.cancel(false);
+                mmMetrics.onDisconnected();
+            }
+        }
+
+        // 第一帧必须是对方的 HELLO
+        private void handshake(int type, byte[] buffer, int offset, int length) throws IOException {
+            if(type != FrameCodec.TYPE_HELLO) {
+                throw new ProtocolException("expected hello, got frame type " + type);
+            }
+            Handshake handshake = mmLocal.negotiate(buffer, offset, length);
+
+            FrameWriter writer = new FrameWriter(mmOutStream, this, SEND_QUEUE_CAPACITY,
+                    handshake.getBufferSize());
+            writer.setMetrics(mmMetrics);
+            if(handshake.hasFeature(Handshake.FEATURE_COMPRESSION)) {
+                writer.setCompressor(mmCompressor);
+            }
+            if(handshake.hasFeature(Handshake.FEATURE_CREDIT)) {
+                mmFlow = new CreditFlow();
+            }
+            if(handshake.hasFeature(Handshake.FEATURE_FRAGMENT)) {
+                writer.setFragmentSize(FrameLanes.FRAGMENT_SIZE);
+                mmAssembler = new FrameLanes.Assembler(this, handshake.getMaxPayloadLength());
+            }
+            mmWriter = writer;
+            mmHandshake = handshake;
+            writer.start(mmLifecycle);
+            if(mmCancelled) {
+                writer.cancel();
+                return;
+            }
+
+            //先交换双方收到的消息数，补发完断线期间的消息再开始发新消息
+            if(handshake.hasFeature(Handshake.FEATURE_RESUME)) {
+                mmSession = session(mmConnection.getRemoteAddress());
+                writer.offer(FrameCodec.TYPE_RESUME, mmSession.encodeResume());
+                return;
+            }
+
+            mmReady = true;
+            handshakeComplete(this, handshake, false);
+        }
 
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+            //压缩帧解压后、分片拼好后会再回调一次，只算一次
+            if(type != FrameCodec.TYPE_COMPRESSED && type != FrameCodec.TYPE_FRAGMENT) {
+                mmMetrics.onFrameIn();
+            }
+            if(mmHandshake == null) {
+                handshake(type, buffer, offset, length);
+                return;
+            }
+
+            switch(type) {
+                case FrameCodec.TYPE_RESUME: {
+                    if(mmSession == null || mmReady) {
+                        throw new ProtocolException("unexpected resume");
+                    }
+                    boolean resumed = mmSession.resume(buffer, offset, length, this);
+                    mmReady = true;
+                    handshakeComplete(this, mmHandshake, resumed);
+                    break;
+                }
+                case FrameCodec.TYPE_RESUME_SYNC: {
+                    if(mmSession == null) {
+                        throw new ProtocolException("unexpected resume sync");
+                    }
+                    mmSession.onSync(buffer, offset, length);
+                    break;
+                }
+                case FrameCodec.TYPE_RESUME_ACK: {
+                    if(mmSession == null) {
+                        throw new ProtocolException("unexpected resume ack");
+                    }
+                    mmSession.onAck(buffer, offset, length);
+                    break;
+                }
+                case FrameCodec.TYPE_COMPRESSED: {
+                    if(mmCompressor == null) {
+                        throw new ProtocolException("compressed frame not negotiated");
+                    }
+                    //解压后按原来的类型再处理一次
+                    mmCompressor.inflate(buffer, offset, length, this);
+                    break;
+                }
+                case FrameCodec.TYPE_FRAGMENT: {
+                    if(mmAssembler == null) {
+                        throw new ProtocolException("fragment not negotiated");
+                    }
+                    //最后一片到了按原来的类型再处理一次
+                    mmAssembler.onFragment(buffer, offset, length);
+                    break;
+                }
+                case FrameCodec.TYPE_PING: {
+                    //原样发回，不交给UI
+                    byte[] pong = new byte[length];
+                    System.arraycopy(buffer, offset, pong, 0, length);
+                    offer(FrameCodec.TYPE_PONG, pong);
+                    break;
+                }
+                case FrameCodec.TYPE_CREDIT: {
+                    CreditFlow flow = mmFlow;
+                    if(flow == null) {
+                        throw new ProtocolException("credit not negotiated");
+                    }
+                    flow.onCredit(buffer, offset, length);
+                    //额度回来了，接着补发会话中没发出的消息
+                    ResumableSession session = mmSession;
+                    if(session != null) {
+                        session.flush();
+                    }
+                    break;
+                }
+                case FrameCodec.TYPE_PONG: {
+                    LatencyProbe probe = mmProbe;
+                    if(probe != null) {
+                        probe.onPong(buffer, offset, length);
+                    }
+                    break;
+                }
+                case FrameCodec.TYPE_TEXT:
+                case FrameCodec.TYPE_RELAY: {
+                    CreditFlow flow = mmFlow;
+                    if(flow != null) {
+                        flow.onReceived();
+                    }
+                    boolean delivered = false;
+                    ResumableSession session = mmSession;
+                    if(session == null) {
+                        delivered = receiveMessage(type, buffer, offset, length);
+                    }
+                    else {
+                        //旧连接的读线程被取消后可能还在处理已经读到的数据，不能再交给UI，
+                        //否则会和新连接补发的消息乱序；计数和交给UI在会话锁内完成，和 TYPE_RESUME 的处理互斥
+                        synchronized(session) {
+                            if(!mmCancelled) {
+                                if(session.onMessage()) {
+                                    offer(FrameCodec.TYPE_RESUME_ACK, session.encodeAck());
+                                }
+                                delivered = receiveMessage(type, buffer, offset, length);
+                            }
+                        }
+                    }
+                    //没有交给UI的消息不会被归还，直接算消费掉
+                    if(!delivered) {
+                        onConsumed();
+                    }
+                    break;
+                }
+                case FrameCodec.TYPE_FILE_OFFER:
+                case FrameCodec.TYPE_FILE_ACCEPT:
+                case FrameCodec.TYPE_FILE_CHUNK:
+                case FrameCodec.TYPE_FILE_ACK: {
+                    try {
+                        mFileTransfers.onFrame(type, buffer, offset, length);
+                    }
+                    catch(IOException e) {
+                        //写文件出错不影响聊天连接
+                        Log.e(TAG, "file transfer error", e);
+                    }
+                    break;
+                }
+                default: {
+                    Log.w(TAG, "unknown frame type " + type + ", ignored");
                     break;
                 }
             }
         }
 
 
-        public void write(byte[] message) {
-            try {
-                mmOutStream.write(message);
+        /**
+         * @return  交给了UI时返回true，重复的转发消息返回false
+         */
+        private boolean receiveMessage(int type, byte[] buffer, int offset, int length) {
+            if(type == FrameCodec.TYPE_TEXT) {
+                //解码器的缓冲区会被复用，所以要拷贝到租来的缓冲区再交给UI Activity，由它归还
+                deliverMessage(mmConnection.getRemoteAddress(), buffer, offset, length, -1);
+                return true;
+            }
+            //只有一个连接，没有别的设备可以转发
+            if(mRelay.accept(buffer, offset, length)) {
+                deliverMessage(mmConnection.getRemoteAddress(), buffer, offset + RelayRouter.HEADER_LENGTH,
+                        length - RelayRouter.HEADER_LENGTH, -1);
+                return true;
+            }
+            return false;
+        }
 
-                //将发送的消息共享回UI Activity
-                mHandler.obtainMessage(MainActivity.MESSAGE_WRITE, -1, -1, message).sendToTarget();
+        /**
+         * @return  握手还没完成、负载超过协商的最大长度、聊天消息的额度用完或队列已满时返回false
+         */
+        @Override
+        public boolean offer(int type, byte[] payload) {
+            Handshake handshake = mmHandshake;
+            FrameWriter writer = mmWriter;
+            if(handshake == null || writer == null || payload.length > handshake.getMaxPayloadLength()) {
+                return false;
             }
-            catch(IOException e) {
-                Log.e(TAG, "Exception during write", e);
+            CreditFlow flow = mmFlow;
+            boolean credited = flow != null && CreditFlow.isCredited(type);
+            if(credited && !flow.tryAcquire()) {
+                return false;
+            }
+            if(!writer.offer(type, payload)) {
+                if(credited) {
+                    flow.release();
+                }
+                return false;
+            }
+            return true;
+        }
+
+        // 对方的一条消息被消费掉，攒够了就回复额度
+        private void onConsumed() {
+            CreditFlow flow = mmFlow;
+            if(flow == null) return;
+            flow.onConsumed();
+            sendCredits(flow);
+        }
+
+        private void sendCredits(CreditFlow flow) {
+            int grant = flow.takeGrant();
+            //发送队列满了就等下一帧写出后再试，不能丢掉，否则对方可能一直等
+            if(grant > 0 && !offer(FrameCodec.TYPE_CREDIT, CreditFlow.encodeCredit(grant))) {
+                flow.restoreGrant(grant);
+            }
+        }
+
+
+        public int getQueueDepth() {
+            FrameWriter writer = mmWriter;
+            return writer == null ? 0 : writer.getQueueDepth();
+        }
+
+        @Override
+        public void onFrameWritten(int type, byte[] payload) {
+            CreditFlow flow = mmFlow;
+            if(flow != null) {
+                sendCredits(flow);
+            }
+            //队列有了空间
+            ResumableSession session = mmSession;
+            if(session != null) {
+                session.flush();
+            }
+            if(type == FrameCodec.TYPE_TEXT) {
+                //将发送的消息共享回UI Activity，有会话时放进会话就已经回显
+                if(mmSession == null) {
+                    recordSent(mmConnection.getRemoteAddress(), payload);
+                    mEvents.publish(ChatEvent.TYPE_WRITE, -1, -1, 0, payload, null, null);
+                }
+            }
+            else {
+                mFileTransfers.onFrameWritten(type, payload);
             }
         }
 
+        @Override
+        public void onWriteFailed(IOException e) {
+            //读线程会发现连接断开并处理
+            Log.e(TAG, "Exception during write", e);
+        }
+
         public void cancel() {
+            mmCancelled = true;
+            FrameWriter writer = mmWriter;
+            if(writer != null) {
+                writer.cancel();
+            }
+            if(mmCompressor != null) {
+                mmCompressor.end();
+            }
+            //之后的消息等重连后补发
+            if(mmSession != null) {
+                mmSession.detach(this);
+            }
+            //未完成的文件传输等下次连接时续传
+            mFileTransfers.onDisconnected();
+            closeConnection();
+        }
+
+        private void closeConnection() {
             try {
-                mmSocket.close();
+                mmConnection.close();
             }
             catch(IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
@@ -428,4 +1637,4 @@ public class BluetoothChatService {
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,60 @@
+package com.qq.blue;
+
+/**
+ * 可回收的接收缓冲区池.
+ * 读线程用 obtain() 租出一个缓冲区交给 UI Activity，UI Activity 用完后 recycle() 归还，
+ * 这样每条消息都有自己的缓冲区，又不会在持续接收时不停地分配内存
+ */
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final byte[][] mFree;
+    private int mFreeCount;
+
+    /**
+     * @param bufferSize    每个缓冲区的大小
+     * @param capacity  最多缓存多少个空闲缓冲区
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mFree = new byte[capacity][];
+        mFreeCount = 0;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * 租出一个至少 minSize 字节的缓冲区.
+     * 超过池中缓冲区大小的请求直接分配，归还时会被丢弃
+     */
+    public byte[] obtain(int minSize) {
+        if(minSize > mBufferSize) {
+            return new byte[minSize];
+        }
+        synchronized(this) {
+            if(mFreeCount > 0) {
+                byte[] buffer = mFree[--mFreeCount];
+                mFree[mFreeCount] = null;
+                return buffer;
+            }
+        }
+        return new byte[mBufferSize];
+    }
+
+    // 归还缓冲区，池满了或者大小不对就交给GC
+    public void recycle(byte[] buffer) {
+        if(buffer == null || buffer.length != mBufferSize) return;
+        synchronized(this) {
+            if(mFreeCount < mFree.length) {
+                mFree[mFreeCount++] = buffer;
+            }
+        }
+    }
+
+    // 当前空闲的缓冲区数量
+    public synchronized int getFreeCount() {
+        return mFreeCount;
+    }
+}
@@ -0,0 +1,99 @@
+package com.qq.blue;
+
+/**
+ * BluetoothChatService 发出的一个事件，是 ChatEventBus 环形缓冲区中的一个槽.
+ * 槽是预先分配、反复使用的，只在 Listener.onEvent() 期间有效，要保留内容就自己拷贝出来
+ */
+public final class ChatEvent {
+
+    //事件类型，和 MainActivity.MESSAGE_* 的值相同
+    public static final int TYPE_STATE_CHANGE = 1;     //getState() getFlags()
+    public static final int TYPE_READ = 2;             //getBuffer() getLength() getPeerId()，缓冲区由总线归还
+    public static final int TYPE_WRITE = 3;            //getBuffer() 是发出的消息
+    public static final int TYPE_DEVICE_NAME = 4;      //getDeviceName() getDeviceAddress() getHistoryCount()
+    public static final int TYPE_TOAST = 5;            //getText()
+
+    int type;
+    int arg1;
+    int arg2;
+    long value;
+    Object obj;
+    String text;
+    String address;
+    // 发布时的 System.nanoTime()
+    long publishedAt;
+
+    ChatEvent() {
+    }
+
+    void set(int type, int arg1, int arg2, long value, Object obj, String text, String address) {
+        this.type = type;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.value = value;
+        this.obj = obj;
+        this.text = text;
+        this.address = address;
+        this.publishedAt = System.nanoTime();
+    }
+
+    // 所有消费者都处理完后清掉引用，缓冲区和字符串不会被环形缓冲区留住
+    void clear() {
+        obj = null;
+        text = null;
+        address = null;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    // TYPE_STATE_CHANGE：ConnectionState.STATE_*
+    public int getState() {
+        return arg1;
+    }
+
+    // TYPE_STATE_CHANGE：比如 BluetoothChatService.FLAG_RESUMED，没有时为-1
+    public int getFlags() {
+        return arg2;
+    }
+
+    // TYPE_READ：消息长度，缓冲区可能更长
+    public int getLength() {
+        return arg1;
+    }
+
+    // TYPE_READ：集线器模式下发送者的id，否则为-1
+    public int getPeerId() {
+        return arg2;
+    }
+
+    // TYPE_READ、TYPE_WRITE：消息内容
+    public byte[] getBuffer() {
+        return (byte[]) obj;
+    }
+
+    // TYPE_DEVICE_NAME
+    public String getDeviceName() {
+        return text;
+    }
+
+    public String getDeviceAddress() {
+        return address;
+    }
+
+    // TYPE_DEVICE_NAME：连接时这个设备已有的聊天记录条数
+    public long getHistoryCount() {
+        return value;
+    }
+
+    // TYPE_TOAST
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return "ChatEvent type=" + type + " arg1=" + arg1 + " arg2=" + arg2;
+    }
+}
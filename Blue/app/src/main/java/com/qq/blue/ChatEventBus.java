@@ -0,0 +1,432 @@
+package com.qq.blue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * BluetoothChatService 的事件分发，不依赖 Android 的 Looper.
+ * 事件放在预先分配的环形缓冲区中，多个线程可以同时发布：用 CAS 取得序号，写入槽后标记这个序号已发布，
+ * 发布时不分配对象.
+ * 每个订阅者有自己的 Executor 和读取位置，UI、保存记录、统计可以各自在自己的线程中处理，互不等待；
+ * 订阅者有未处理的事件时只提交一次任务，任务中一次处理完所有已发布的事件.
+ * 最慢的订阅者落后一整圈时发布者从不等待，UI线程也可以发布：TYPE_READ 直接丢弃并计数；
+ * 其它事件（状态、设备名、提示、发出的消息）少一个界面就不对了，先放进溢出队列，
+ * 有空位时按顺序补发，溢出队列不空时新的事件也排在后面.
+ * TYPE_READ 事件带的缓冲区由总线持有：最后一个订阅者处理完后交给 Recycler 归还一次，
+ * 订阅者不能自己归还；没有订阅者或者被丢弃时 publish() 返回false，由发布者归还.
+ * 不依赖 Android，可以在普通JVM上测试和压测
+ */
+public class ChatEventBus {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+
+    /**
+     * 在订阅时指定的 Executor 中调用，同一个订阅者的回调不会并发，按发布顺序
+     */
+    public interface Listener {
+        // event 只在回调期间有效
+        void onEvent(ChatEvent event);
+    }
+
+
+    /**
+     * 归还 TYPE_READ 事件的缓冲区，在最后一个处理完这个事件的订阅者的线程中调用，每个事件只调用一次
+     */
+    public interface Recycler {
+        void recycle(byte[] buffer);
+    }
+
+
+    /**
+     * 一个订阅者
+     */
+    public final class Subscription implements Runnable {
+        private final Listener mmListener;
+        private final Executor mmExecutor;
+        // 下一个要处理的序号
+        private final AtomicLong mmCursor;
+        // 取消订阅后不再算上它的第一个序号，见 endOf()
+        private final AtomicLong mmEnd = new AtomicLong(UNDECIDED);
+        private final AtomicBoolean mmScheduled = new AtomicBoolean();
+        // 取消订阅后只释放已经算上它的事件，不再回调
+        private volatile boolean mmClosed;
+        // 从发布到开始处理的时间
+        private final LatencyHistogram mmDelay = new LatencyHistogram();
+
+        Subscription(Listener listener, Executor executor) {
+            mmListener = listener;
+            mmExecutor = executor;
+            //加入订阅列表之后才确定从哪里开始，见 cursorOf()
+            mmCursor = new AtomicLong(UNDECIDED);
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                long next = mmCursor.get();
+                while(hasNext(next)) {
+                    int index = (int) next & mMask;
+                    ChatEvent event = mRing[index];
+                    if(!mmClosed) {
+                        mmDelay.record((System.nanoTime() - event.publishedAt) / 1000);
+                        try {
+                            mmListener.onEvent(event);
+                        }
+                        catch(RuntimeException e) {
+                            //一个订阅者出错不影响其它订阅者和缓冲区的归还
+                            mListenerErrors.incrementAndGet();
+                        }
+                    }
+                    release(index, event);
+                    //先释放再前进，发布者看到游标前进时这个槽一定已经空出来
+                    mmCursor.set(++next);
+                }
+                //取消订阅后算上它的事件都处理完了才从列表中去掉，之前一直算在最慢的订阅者里，槽不会被覆盖
+                if(mmClosed && next >= endOf(this)) {
+                    remove(this);
+                }
+                //空出了槽，补发溢出的事件
+                drainDeferred();
+                //先清掉标记再检查，和 publish() 的顺序相反，不会漏掉事件
+                mmScheduled.set(false);
+                if(!hasNext(next) || !mmScheduled.compareAndSet(false, true)) return;
+            }
+        }
+
+        // 取消订阅后只处理算上它的事件，之后的事件槽不归它释放
+        private boolean hasNext(long next) {
+            return next < endOf(this) && isPublished(next);
+        }
+
+        private void schedule() {
+            if(mmScheduled.compareAndSet(false, true)) {
+                mmExecutor.execute(this);
+            }
+        }
+
+        public LatencyHistogram getDelayHistogram() {
+            return mmDelay;
+        }
+
+        // 已发布还没处理的事件数
+        public long getBacklog() {
+            long cursor = mmCursor.get();
+            return cursor == UNDECIDED ? 0 : mNext.get() - cursor;
+        }
+    }
+
+
+    // 缓冲区满时暂存的事件，只在这种少见的情况下分配
+    private static final class Deferred {
+        final int mmType;
+        final int mmArg1;
+        final int mmArg2;
+        final long mmValue;
+        final Object mmObj;
+        final String mmText;
+        final String mmAddress;
+
+        Deferred(int type, int arg1, int arg2, long value, Object obj, String text, String address) {
+            mmType = type;
+            mmArg1 = arg1;
+            mmArg2 = arg2;
+            mmValue = value;
+            mmObj = obj;
+            mmText = text;
+            mmAddress = address;
+        }
+    }
+
+
+    // 订阅者的起始序号还没确定
+    private static final long UNDECIDED = Long.MAX_VALUE;
+
+    //tryPublish() 的结果
+    private static final int PUBLISHED = 0;
+    private static final int NO_SUBSCRIBER = 1;
+    private static final int FULL = 2;
+
+
+    private final ChatEvent[] mRing;
+    private final int mMask;
+    // 每个槽最后发布的序号
+    private final AtomicLongArray mPublished;
+    // 每个槽还有几个订阅者没处理
+    private final AtomicIntegerArray mPending;
+    // 下一个发布的序号
+    private final AtomicLong mNext = new AtomicLong();
+
+    // 订阅时整个替换，发布时遍历数组不分配迭代器
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+
+    private final Recycler mRecycler;
+
+    // 缓冲区满时暂存的非 TYPE_READ 事件，按发布顺序
+    private final ConcurrentLinkedQueue<Deferred> mDeferred = new ConcurrentLinkedQueue<Deferred>();
+    // 同时只有一个线程补发，保持顺序
+    private final AtomicBoolean mDraining = new AtomicBoolean();
+
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mDeferredCount = new AtomicLong();
+    private final AtomicLong mListenerErrors = new AtomicLong();
+
+    public ChatEventBus() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ChatEventBus(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity  环形缓冲区的槽数，向上取到2的幂
+     * @param recycler  归还 TYPE_READ 的缓冲区，null表示不用归还
+     */
+    public ChatEventBus(int capacity, Recycler recycler) {
+        mRecycler = recycler;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mRing = new ChatEvent[size];
+        for(int i = 0; i < size; i++) {
+            mRing[i] = new ChatEvent();
+        }
+        mMask = size - 1;
+        mPublished = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            mPublished.set(i, -1);
+        }
+        mPending = new AtomicIntegerArray(size);
+    }
+
+    /**
+     * 从下一个发布的事件开始接收
+     * @param executor  回调在哪里执行，比如UI线程的 Handler.post()
+     */
+    public synchronized Subscription subscribe(Listener listener, Executor executor) {
+        Subscription subscription = new Subscription(listener, executor);
+        Subscription[] subscriptions = new Subscription[mSubscriptions.length + 1];
+        System.arraycopy(mSubscriptions, 0, subscriptions, 0, mSubscriptions.length);
+        subscriptions[mSubscriptions.length] = subscription;
+        mSubscriptions = subscriptions;
+        //发布者可能已经替它确定了起始序号
+        cursorOf(subscription);
+        subscription.schedule();
+        return subscription;
+    }
+
+    /**
+     * 不再回调，已经发布、算上这个订阅者的事件仍然在它的 Executor 中释放
+     */
+    public void unsubscribe(Subscription subscription) {
+        subscription.mmClosed = true;
+        endOf(subscription);
+        subscription.schedule();
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        Subscription[] current = mSubscriptions;
+        for(int i = 0; i < current.length; i++) {
+            if(current[i] != subscription) continue;
+            Subscription[] subscriptions = new Subscription[current.length - 1];
+            System.arraycopy(current, 0, subscriptions, 0, i);
+            System.arraycopy(current, i + 1, subscriptions, i, current.length - i - 1);
+            mSubscriptions = subscriptions;
+            return;
+        }
+    }
+
+    /**
+     * 订阅者的起始序号.
+     * 订阅时先加入订阅列表，之后第一个读到它的线程（订阅者自己或者发布者）用那时的 mNext 确定起始序号，
+     * 只设置一次.
+     * 读 mNext 在加入列表之后，所以不小于这个序号的事件，发布者取得序号后重新读列表时一定能看到它，
+     * 并且读到的游标已经确定，处理和计数的事件完全一致；更早的事件它不处理也不计数
+     */
+    private long cursorOf(Subscription subscription) {
+        long cursor = subscription.mmCursor.get();
+        if(cursor != UNDECIDED) return cursor;
+        subscription.mmCursor.compareAndSet(UNDECIDED, mNext.get());
+        return subscription.mmCursor.get();
+    }
+
+    /**
+     * 取消订阅后第一个不再算上这个订阅者的序号，没有取消时是 UNDECIDED.
+     * 和 cursorOf() 一样，先标记取消再读 mNext，第一个看到标记的线程确定，只设置一次：
+     * 发布者没看到标记时它的序号一定小于结束序号，订阅者会处理它；看到标记时按同一个结束序号计数
+     */
+    private long endOf(Subscription subscription) {
+        long end = subscription.mmEnd.get();
+        if(end != UNDECIDED || !subscription.mmClosed) return end;
+        subscription.mmEnd.compareAndSet(UNDECIDED, mNext.get());
+        return subscription.mmEnd.get();
+    }
+
+    /**
+     * 发布一个事件，任意线程调用，不会阻塞；参数的含义见 ChatEvent 的 get 方法.
+     * 缓冲区满时 TYPE_READ 被丢弃，其它事件暂存起来稍后按顺序补发
+     * @return  交给了订阅者或者暂存起来时返回true；没有订阅者或者 TYPE_READ 被丢弃时返回false，
+     *          这时 TYPE_READ 的缓冲区由调用者归还
+     */
+    boolean publish(int type, int arg1, int arg2, long value, Object obj, String text, String address) {
+        if(mSubscriptions.length == 0) return false;
+
+        //有暂存的事件时先补发，补发不完新的事件排在后面
+        if(!mDeferred.isEmpty()) {
+            drainDeferred();
+            if(!mDeferred.isEmpty()) {
+                return defer(type, arg1, arg2, value, obj, text, address);
+            }
+        }
+        switch(tryPublish(type, arg1, arg2, value, obj, text, address)) {
+            case PUBLISHED:
+                return true;
+            case FULL:
+                return defer(type, arg1, arg2, value, obj, text, address);
+            default:
+                return false;
+        }
+    }
+
+    private boolean defer(int type, int arg1, int arg2, long value, Object obj, String text, String address) {
+        if(type == ChatEvent.TYPE_READ) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        mDeferred.add(new Deferred(type, arg1, arg2, value, obj, text, address));
+        mDeferredCount.incrementAndGet();
+        //放进去之前订阅者可能已经处理完了，不会再来补发
+        drainDeferred();
+        return true;
+    }
+
+    // 按顺序补发暂存的事件，直到缓冲区又满了
+    private void drainDeferred() {
+        while(!mDeferred.isEmpty() && mDraining.compareAndSet(false, true)) {
+            boolean full = false;
+            try {
+                Deferred deferred;
+                while((deferred = mDeferred.peek()) != null) {
+                    if(tryPublish(deferred.mmType, deferred.mmArg1, deferred.mmArg2, deferred.mmValue,
+                            deferred.mmObj, deferred.mmText, deferred.mmAddress) == FULL) {
+                        full = true;
+                        break;
+                    }
+                    mDeferred.poll();
+                }
+            }
+            finally {
+                mDraining.set(false);
+            }
+            //补发的线程放手之前订阅者空出了槽，它的 drainDeferred() 没抢到，这里再试一次
+            if(full && isFull()) return;
+        }
+    }
+
+    private boolean isFull() {
+        return mNext.get() - mRing.length >= minCursor(mSubscriptions);
+    }
+
+    private int tryPublish(int type, int arg1, int arg2, long value, Object obj, String text, String address) {
+        Subscription[] subscriptions = mSubscriptions;
+        if(subscriptions.length == 0) return NO_SUBSCRIBER;
+
+        long sequence;
+        do {
+            sequence = mNext.get();
+            //槽里还是上一圈的事件，最慢的订阅者还没处理完
+            if(sequence - mRing.length >= minCursor(subscriptions)) {
+                return FULL;
+            }
+        } while(!mNext.compareAndSet(sequence, sequence + 1));
+
+        //取得序号之后重新读订阅列表：游标不超过这个序号的订阅者一定会处理它，
+        //刚订阅的订阅者在这里确定起始序号，在这之后开始的不会处理，也不算在内
+        subscriptions = mSubscriptions;
+        int pending = 0;
+        for(int i = 0; i < subscriptions.length; i++) {
+            if(cursorOf(subscriptions[i]) <= sequence && sequence < endOf(subscriptions[i])) {
+                pending++;
+            }
+        }
+        int index = (int) sequence & mMask;
+        ChatEvent event = mRing[index];
+        event.set(type, arg1, arg2, value, obj, text, address);
+        mPending.set(index, pending);
+        if(pending == 0) {
+            //序号已经用掉，照样标记发布让订阅者跳过
+            event.clear();
+            mPublished.set(index, sequence);
+            return NO_SUBSCRIBER;
+        }
+        mPublished.set(index, sequence);
+        mPublishedCount.incrementAndGet();
+
+        for(int i = 0; i < subscriptions.length; i++) {
+            subscriptions[i].schedule();
+        }
+        return PUBLISHED;
+    }
+
+    // 最后一个处理完的订阅者归还缓冲区并清掉引用
+    private void release(int index, ChatEvent event) {
+        if(mPending.decrementAndGet(index) != 0) return;
+        if(event.type == ChatEvent.TYPE_READ && mRecycler != null) {
+            mRecycler.recycle((byte[]) event.obj);
+        }
+        event.clear();
+    }
+
+    private boolean isPublished(long sequence) {
+        return mPublished.get((int) sequence & mMask) == sequence;
+    }
+
+    private long minCursor(Subscription[] subscriptions) {
+        long min = Long.MAX_VALUE;
+        for(int i = 0; i < subscriptions.length; i++) {
+            min = Math.min(min, subscriptions[i].mmCursor.get());
+        }
+        return min;
+    }
+
+    public int getCapacity() {
+        return mRing.length;
+    }
+
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+
+    // 缓冲区满时丢弃的 TYPE_READ 事件数，不为0说明有订阅者处理得太慢
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    // 缓冲区满时暂存、稍后补发的其它事件数
+    public long getDeferredCount() {
+        return mDeferredCount.get();
+    }
+
+    // 订阅者回调抛出异常的次数
+    public long getListenerErrorCount() {
+        return mListenerErrors.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("published=").append(getPublishedCount())
+                .append(" dropped=").append(getDroppedCount())
+                .append(" deferred=").append(getDeferredCount())
+                .append(" listenerErrors=").append(getListenerErrorCount());
+        Subscription[] subscriptions = mSubscriptions;
+        for(int i = 0; i < subscriptions.length; i++) {
+            builder.append(" [").append(i).append(" backlog=").append(subscriptions[i].getBacklog())
+                    .append(" delay ").append(subscriptions[i].getDelayHistogram()).append(']');
+        }
+        return builder.toString();
+    }
+}
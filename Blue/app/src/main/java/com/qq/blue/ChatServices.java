@@ -0,0 +1,50 @@
+package com.qq.blue;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * 在 Android 上创建 BluetoothChatService：用蓝牙 RFCOMM 传输，通道缓存和收到的文件保存在应用目录下.
+ * BluetoothChatService 本身不依赖 Context 和 Handler，可以直接在JVM上构造
+ */
+public final class ChatServices {
+
+    private static final String TAG = "ChatServices";
+
+    //保存 RfcommChannelCache 的 SharedPreferences
+    private static final String CHANNEL_CACHE_NAME = "rfcomm_channels";
+
+    private ChatServices() {
+    }
+
+    /**
+     * 事件用 getEvents().subscribe() 接收
+     */
+    public static BluetoothChatService create(Context context) {
+        return new BluetoothChatService(new RfcommTransport(BluetoothAdapter.getDefaultAdapter(),
+                new RfcommChannelCache(context.getSharedPreferences(CHANNEL_CACHE_NAME, Context.MODE_PRIVATE))),
+                receivedFilesDirectory(context));
+    }
+
+    /**
+     * @param handler  设置界面状态的处理程序，事件转换成 MainActivity.MESSAGE_* 消息
+     */
+    public static BluetoothChatService create(Context context, Handler handler) {
+        BluetoothChatService service = create(context);
+        HandlerEventListener.subscribe(service.getEvents(), handler);
+        return service;
+    }
+
+    private static File receivedFilesDirectory(Context context) {
+        File directory = new File(context.getFilesDir(), "received");
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "unable to create " + directory);
+            return null;
+        }
+        return directory;
+    }
+}
@@ -0,0 +1,62 @@
+package com.qq.blue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 底层传输接口.
+ * BluetoothChatService 只通过这个接口监听、连接和收发数据，
+ * 除了蓝牙RFCOMM，还可以换成进程内回环或TCP，在普通JVM上测试和压测
+ */
+public interface ChatTransport {
+
+    /**
+     * 开始监听传入连接
+     */
+    Acceptor listen() throws IOException;
+
+    /**
+     * 创建一个到 address 的连接，此时还没有连上，需要调用 Connection.connect()
+     * @param address   远程地址，格式由具体实现决定
+     */
+    Connection open(String address) throws IOException;
+
+
+    /**
+     * 服务端监听
+     */
+    interface Acceptor extends Closeable {
+        /**
+         * 这是一个阻塞调用，只会返回一个成功连接或异常.
+         * 在另一个线程里调用 close() 可以让它抛出异常返回
+         */
+        Connection accept() throws IOException;
+
+        void close() throws IOException;
+    }
+
+
+    /**
+     * 一个连接
+     */
+    interface Connection extends Closeable {
+        /**
+         * 阻塞直到连接建立，accept() 返回的连接已经连上，调用它什么也不做.
+         * 在另一个线程里调用 close() 可以取消连接
+         */
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getRemoteAddress();
+
+        // 显示给用户的名字
+        String getRemoteName();
+
+        void close() throws IOException;
+    }
+}
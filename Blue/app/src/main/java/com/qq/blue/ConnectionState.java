@@ -0,0 +1,249 @@
+package com.qq.blue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * BluetoothChatService 的连接状态机.
+ * 读状态只是一次 volatile 读，不用拿服务的锁，读写线程和UI线程随时可以调用 get().
+ * 状态只能沿 isValid() 允许的边切换，不允许的切换被拒绝并计数，
+ * 条件切换用 transition(from, to)，当前状态不是 from 时什么也不做.
+ * 切换是对状态快照的一次 CAS，不拿锁；每次切换得到一个序号，监听器在锁外按序号回调，
+ * 不管从哪个线程切换，监听器收到的顺序都和切换的顺序一致
+ */
+public class ConnectionState {
+
+    public static final int STATE_NONE = 0;         //什么也不做
+    public static final int STATE_LISTEN = 1;       //监听传入连接
+    public static final int STATE_CONNECTING = 2;   //与远程设备连接
+    public static final int STATE_CONNECTED = 3;    //已连接到远程设备
+    static final int STATE_COUNT = 4;
+
+    //切换的原因，有的边只有特定的原因才能走
+    public static final int VIA_LOCAL = 0;      //本机的操作：开始监听、主动连接、断开、主动连接的握手完成
+    public static final int VIA_ACCEPT = 1;     //接受的连接握手完成
+    public static final int VIA_HUB = 2;        //集线器中的连接加入或全部断开
+    private static final int VIA_COUNT = 3;
+
+    // 每个原因下每个状态可以切换到的状态，按位表示；任何状态都可以重新进入自己，界面会再刷新一次
+    private static final int[][] EDGES = new int[VIA_COUNT][STATE_COUNT];
+
+    static {
+        int[] local = EDGES[VIA_LOCAL];
+        //没有开始监听或连接就不会有连接
+        local[STATE_NONE] = bits(STATE_NONE, STATE_LISTEN, STATE_CONNECTING);
+        //监听中只有接受的连接或集线器能直接切换到已连接
+        local[STATE_LISTEN] = bits(STATE_LISTEN, STATE_NONE, STATE_CONNECTING);
+        local[STATE_CONNECTING] = bits(STATE_CONNECTING, STATE_NONE, STATE_LISTEN, STATE_CONNECTED);
+        //已连接时要先断开（回到监听或停止）才能连接别的设备
+        local[STATE_CONNECTED] = bits(STATE_CONNECTED, STATE_NONE, STATE_LISTEN);
+
+        //对方连过来，可能正在监听，也可能同时在主动连接
+        EDGES[VIA_ACCEPT][STATE_LISTEN] = bits(STATE_CONNECTED);
+        EDGES[VIA_ACCEPT][STATE_CONNECTING] = bits(STATE_CONNECTED);
+
+        //集线器里的连接可以是接受的也可以是主动连接的
+        EDGES[VIA_HUB][STATE_LISTEN] = bits(STATE_CONNECTED);
+        EDGES[VIA_HUB][STATE_CONNECTING] = bits(STATE_CONNECTED);
+
+        //本机的操作总是允许的，其它原因在这之外多几条边
+        for(int via = VIA_LOCAL + 1; via < VIA_COUNT; via++) {
+            for(int state = 0; state < STATE_COUNT; state++) {
+                EDGES[via][state] |= local[state];
+            }
+        }
+    }
+
+    private static int bits(int... states) {
+        int bits = 0;
+        for(int state : states) {
+            bits |= 1 << state;
+        }
+        return bits;
+    }
+
+
+    /**
+     * 状态切换回调，在某个切换状态的线程中调用，可能是读线程、工作线程或UI线程，不持有状态机的锁.
+     * 同一时刻只有一个线程回调，按切换的顺序；别的线程正在回调时，切换的线程不等回调完成就返回.
+     * 切换的线程可能持有 BluetoothChatService 的锁，所以不能阻塞，也不能调用它的 synchronized 方法
+     */
+    public interface Listener {
+        /**
+         * @param flags 切换时附带的参数，比如 BluetoothChatService.FLAG_RESUMED，没有时为-1
+         */
+        void onStateChanged(int previous, int state, int flags);
+    }
+
+
+    /**
+     * 状态和进入 STATE_CONNECTED 的次数一起切换，每次切换整个替换
+     */
+    private static final class Snapshot {
+        final int mmState;
+        // 从别的状态切换到 STATE_CONNECTED 的次数，每个新连接加一
+        final long mmConnectedCount;
+        // 切换的序号，监听器按它的顺序回调
+        final long mmSequence;
+
+        Snapshot(int state, long connectedCount, long sequence) {
+            mmState = state;
+            mmConnectedCount = connectedCount;
+            mmSequence = sequence;
+        }
+
+        Snapshot moveTo(int state) {
+            boolean connected = state == STATE_CONNECTED && mmState != STATE_CONNECTED;
+            return new Snapshot(state, mmConnectedCount + (connected ? 1 : 0), mmSequence + 1);
+        }
+    }
+
+
+    /**
+     * 一次切换，等待回调监听器
+     */
+    private static final class Transition {
+        final int mmPrevious;
+        final int mmState;
+        final int mmFlags;
+
+        Transition(int previous, int state, int flags) {
+            mmPrevious = previous;
+            mmState = state;
+            mmFlags = flags;
+        }
+    }
+
+
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<Snapshot>(new Snapshot(STATE_NONE, 0, 0));
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private final AtomicLong mRejected = new AtomicLong();
+
+    // 还没回调的切换，按序号排列；CAS 成功之后才放进来，先切换的可能后放进来
+    private final ConcurrentSkipListMap<Long, Transition> mUndelivered = new ConcurrentSkipListMap<Long, Transition>();
+    // 同时只有一个线程回调
+    private final AtomicBoolean mNotifying = new AtomicBoolean();
+    // 下一个要回调的序号
+    private volatile long mNextNotify = 1;
+
+    public int get() {
+        return mSnapshot.get().mmState;
+    }
+
+    public static boolean isValid(int from, int to) {
+        return isValid(from, to, VIA_LOCAL);
+    }
+
+    /**
+     * @param via   VIA_*，切换的原因
+     */
+    public static boolean isValid(int from, int to, int via) {
+        if(from < 0 || from >= STATE_COUNT || to < 0 || to >= STATE_COUNT) return false;
+        if(via < 0 || via >= VIA_COUNT) return false;
+        return (EDGES[via][from] & (1 << to)) != 0;
+    }
+
+    /**
+     * 本机的操作，从任何允许的状态切换到 state
+     * @return  原来的状态，不允许这样切换时返回-1
+     */
+    public int moveTo(int state, int flags) {
+        return moveTo(state, flags, VIA_LOCAL);
+    }
+
+    public int moveTo(int state, int flags, int via) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = mSnapshot.get();
+            if(!isValid(current.mmState, state, via)) {
+                mRejected.incrementAndGet();
+                return -1;
+            }
+            next = current.moveTo(state);
+        } while(!mSnapshot.compareAndSet(current, next));
+        notifyListeners(next.mmSequence, new Transition(current.mmState, state, flags));
+        return current.mmState;
+    }
+
+    /**
+     * 当前状态是 from 时才切换到 to
+     * @return  切换了返回true
+     */
+    public boolean transition(int from, int to, int flags) {
+        return transition(from, to, flags, VIA_LOCAL);
+    }
+
+    public boolean transition(int from, int to, int flags, int via) {
+        if(!isValid(from, to, via)) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = mSnapshot.get();
+            if(current.mmState != from) return false;
+            next = current.moveTo(to);
+        } while(!mSnapshot.compareAndSet(current, next));
+        notifyListeners(next.mmSequence, new Transition(from, to, flags));
+        return true;
+    }
+
+    /**
+     * 进入 STATE_CONNECTED 的次数，可以用来区分消息属于哪个连接，
+     * 和状态在同一次 CAS 中更新，不依赖事件有没有送到
+     */
+    public long getConnectedCount() {
+        return mSnapshot.get().mmConnectedCount;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    // 被拒绝的切换次数，不为0说明有代码在错误的状态下切换
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * 放进等待回调的切换，抢到回调的线程按序号依次回调，遇到还没放进来的序号就停下，
+     * 那个切换的线程放进来之后会接着回调
+     */
+    private void notifyListeners(long sequence, Transition transition) {
+        mUndelivered.put(sequence, transition);
+        while(mNotifying.compareAndSet(false, true)) {
+            try {
+                Map.Entry<Long, Transition> first;
+                while((first = mUndelivered.firstEntry()) != null && first.getKey() == mNextNotify) {
+                    mUndelivered.remove(first.getKey());
+                    mNextNotify++;
+                    Transition next = first.getValue();
+                    for(Listener listener : mListeners) {
+                        listener.onStateChanged(next.mmPrevious, next.mmState, next.mmFlags);
+                    }
+                }
+            }
+            finally {
+                mNotifying.set(false);
+            }
+            //放手之前别的线程放进了下一个切换，它没抢到回调，这里再试一次
+            Map.Entry<Long, Transition> first = mUndelivered.firstEntry();
+            if(first == null || first.getKey() != mNextNotify) return;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "state=" + get() + " rejected=" + getRejectedCount();
+    }
+}
@@ -0,0 +1,362 @@
+package com.qq.blue;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 会话列表的数据，只在内存中保留最多 WINDOW_SIZE 条消息.
+ * 新消息到达时丢掉最早的；列表滚到顶部时从 MessageLog 读取更早的一页，这时丢掉最新的，
+ * 滚回底部时再从记录中读回来，所以会话再长占用的内存也不变.
+ * 打开和读取记录都在后台的 Executor 中进行，读完后在UI线程中加入列表，同时只读一页.
+ * 每一行是 [发送者][消息] 两个 TextView，发送者的名字共用同一个字符串，不用每条消息拼接一次
+ */
+public class ConversationAdapter extends BaseAdapter {
+
+    private static final String TAG = "ConversationAdapter";
+
+    public static final int WINDOW_SIZE = 200;
+
+    // 每次从记录中读取的条数
+    public static final int PAGE_SIZE = 50;
+
+    private static final String SELF = "Me";
+
+
+    /**
+     * 后台读取的一页加入列表之后在UI线程中调用，列表要按行数调整位置保持不动
+     */
+    public interface Listener {
+        // 在开头加入了 added 行
+        void onOlderLoaded(int added);
+
+        // 从开头丢掉了 removed 行
+        void onNewerLoaded(int removed);
+    }
+
+
+    private final LayoutInflater mInflater;
+    // 打开和读取记录
+    private final Executor mIoExecutor;
+    // 读到的行在这里加入列表
+    private final Executor mUiExecutor;
+    private Listener mListener;
+    private final Row[] mRows = new Row[WINDOW_SIZE];
+    private int mHead;
+    private int mSize;
+
+    // 当前设备的聊天记录和对方的名字，没有记录时只保留最近的消息，不能往前翻
+    private MessageLog mLog;
+    private String mPeerName;
+    // 第一行在记录中的编号
+    private long mStart;
+    // 已经显示过的记录条数：连接时已有的加上之后收发的，之后的记录还没有通过 add() 到达
+    private long mKnownCount;
+
+    // 正在后台读一页，滚动时反复调用 loadOlder()/loadNewer() 只读一次
+    private boolean mLoading;
+    // 每次 reset() 加一，之前开始的读取结果不再使用
+    private int mGeneration;
+
+    // beginBatch() 和 endBatch() 之间只在最后刷新一次
+    private boolean mBatching;
+    private boolean mChanged;
+
+    // 只在UI线程中使用，所有消息共用
+    private final Utf8Codec.Decoder mDecoder = new Utf8Codec.Decoder();
+
+    /**
+     * @param ioExecutor    打开和读取记录的后台线程
+     * @param uiExecutor    UI线程，读到的行在这里加入列表
+     */
+    public ConversationAdapter(Context context, Executor ioExecutor, Executor uiExecutor) {
+        mInflater = LayoutInflater.from(context);
+        mIoExecutor = ioExecutor;
+        mUiExecutor = uiExecutor;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 清空列表，换成显示这个设备的记录；在后台打开记录并读取最近一页，打开之前收发的消息照常加入
+     * @param history   null表示不分页，比如集线器模式下的消息来自多个设备
+     * @param address   记录属于哪个设备，null表示不分页
+     * @param count 记录中已有的条数，之后的消息通过 add() 加入
+     */
+    public void reset(HistoryStore history, String address, String peerName, long count) {
+        clearRows();
+        mGeneration++;
+        mLoading = false;
+        mLog = null;
+        mPeerName = peerName;
+        mKnownCount = history == null || address == null ? 0 : count;
+        mStart = mKnownCount;
+        notifyDataSetChanged();
+        if(history != null && address != null) {
+            int page = (int) Math.min(PAGE_SIZE, count);
+            load(history, address, null, count - page, page, true);
+        }
+    }
+
+    // 收到的消息，sender为null表示当前连接的设备
+    public void addReceived(String sender, byte[] buffer, int length) {
+        add(new Row(sender == null ? mPeerName : sender, mDecoder.decode(buffer, 0, length)));
+    }
+
+    public void addSent(byte[] message) {
+        add(new Row(SELF, mDecoder.decode(message, 0, message.length)));
+    }
+
+    /**
+     * 开始加入一批消息，endBatch() 时才通知列表刷新
+     */
+    public void beginBatch() {
+        mBatching = true;
+    }
+
+    public void endBatch() {
+        mBatching = false;
+        if(mChanged) {
+            mChanged = false;
+            notifyDataSetChanged();
+        }
+    }
+
+    private void changed() {
+        if(mBatching) {
+            mChanged = true;
+        }
+        else {
+            notifyDataSetChanged();
+        }
+    }
+
+    private void add(Row row) {
+        boolean following = isFollowing();
+        mKnownCount++;
+        //已经往前翻过，最新的消息不在内存中，滚回底部时从记录中读
+        if(!following) return;
+        if(mSize == WINDOW_SIZE) {
+            removeFirst();
+            mStart++;
+        }
+        addLast(row);
+        changed();
+    }
+
+    // 内存中是不是最新的消息
+    public boolean isFollowing() {
+        return mLog == null || mStart + mSize == mKnownCount;
+    }
+
+    /**
+     * 在后台读取前一页记录，读完后加在开头，超出 WINDOW_SIZE 的部分从末尾丢掉，
+     * 然后回调 Listener.onOlderLoaded()
+     */
+    public void loadOlder() {
+        if(mLog == null || mStart == 0 || mLoading) return;
+        int count = (int) Math.min(PAGE_SIZE, mStart);
+        load(null, null, mLog, mStart - count, count, true);
+    }
+
+    /**
+     * 往前翻过之后，在后台读取后一页记录，读完后加在末尾，超出 WINDOW_SIZE 的部分从开头丢掉，
+     * 然后回调 Listener.onNewerLoaded()
+     */
+    public void loadNewer() {
+        if(isFollowing() || mLoading) return;
+        long end = mStart + mSize;
+        load(null, null, mLog, end, (int) Math.min(PAGE_SIZE, mKnownCount - end), false);
+    }
+
+    /**
+     * 在后台读取 [from, from + count) 的记录
+     * @param log   null时先从 history 中打开 address 的记录
+     */
+    private void load(final HistoryStore history, final String address, final MessageLog log,
+                      final long from, final int count, final boolean older) {
+        mLoading = true;
+        final int generation = mGeneration;
+        final String peerName = mPeerName;
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final MessageLog source = log != null ? log : open(history, address);
+                final List<Row> rows = source == null ? null : read(source, from, count, peerName);
+                mUiExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        //读的过程中换了设备
+                        if(generation != mGeneration) return;
+                        mLoading = false;
+                        mLog = source;
+                        if(rows == null) return;
+                        if(older) {
+                            addOlder(from, count, rows);
+                        }
+                        else {
+                            addNewer(from, rows);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // 后台线程
+    private static MessageLog open(HistoryStore history, String address) {
+        try {
+            return history.get(address);
+        }
+        catch(IOException e) {
+            Log.e(TAG, "unable to open history of " + address, e);
+            return null;
+        }
+    }
+
+    // 后台线程，UI线程的 mDecoder 不能在这里用
+    private static List<Row> read(MessageLog log, long from, int count, String peerName) {
+        List<MessageLog.Entry> entries;
+        try {
+            entries = log.read(from, count);
+        }
+        catch(IOException e) {
+            Log.e(TAG, "unable to read history", e);
+            return null;
+        }
+        Utf8Codec.Decoder decoder = new Utf8Codec.Decoder();
+        List<Row> rows = new ArrayList<Row>(entries.size());
+        for(MessageLog.Entry entry : entries) {
+            rows.add(new Row(entry.outgoing ? SELF : peerName,
+                    decoder.decode(entry.message, 0, entry.message.length)));
+        }
+        return rows;
+    }
+
+    private void addOlder(long from, int count, List<Row> rows) {
+        //读的过程中新消息挤掉了开头，接不上了，下次滚到顶部时再读
+        if(from + count != mStart) return;
+        for(int i = rows.size() - 1; i >= 0; i--) {
+            if(mSize == WINDOW_SIZE) {
+                removeLast();
+            }
+            addFirst(rows.get(i));
+        }
+        mStart -= rows.size();
+        notifyDataSetChanged();
+        if(mListener != null) {
+            mListener.onOlderLoaded(rows.size());
+        }
+    }
+
+    private void addNewer(long from, List<Row> rows) {
+        if(from != mStart + mSize) return;
+        int removed = 0;
+        for(Row row : rows) {
+            if(mSize == WINDOW_SIZE) {
+                removeFirst();
+                removed++;
+            }
+            addLast(row);
+        }
+        mStart += removed;
+        notifyDataSetChanged();
+        if(mListener != null) {
+            mListener.onNewerLoaded(removed);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mSize;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mRows[(mHead + position) % WINDOW_SIZE];
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if(convertView == null) {
+            convertView = mInflater.inflate(R.layout.message, parent, false);
+            holder = new ViewHolder();
+            holder.mmSender = (TextView) convertView.findViewById(R.id.message_sender);
+            holder.mmText = (TextView) convertView.findViewById(R.id.message_text);
+            convertView.setTag(holder);
+        }
+        else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        Row row = (Row) getItem(position);
+        holder.mmSender.setText(row.sender);
+        holder.mmText.setText(row.text);
+        return convertView;
+    }
+
+    private void addFirst(Row row) {
+        mHead = (mHead + WINDOW_SIZE - 1) % WINDOW_SIZE;
+        mRows[mHead] = row;
+        mSize++;
+    }
+
+    private void addLast(Row row) {
+        mRows[(mHead + mSize) % WINDOW_SIZE] = row;
+        mSize++;
+    }
+
+    private void removeFirst() {
+        mRows[mHead] = null;
+        mHead = (mHead + 1) % WINDOW_SIZE;
+        mSize--;
+    }
+
+    private void removeLast() {
+        mRows[(mHead + mSize - 1) % WINDOW_SIZE] = null;
+        mSize--;
+    }
+
+    private void clearRows() {
+        while(mSize > 0) {
+            removeLast();
+        }
+        mHead = 0;
+    }
+
+
+    /**
+     * 一行消息
+     */
+    public static class Row {
+        public final String sender;
+        public final String text;
+
+        Row(String sender, String text) {
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+
+    private static class ViewHolder {
+        TextView mmSender;
+        TextView mmText;
+    }
+}
@@ -0,0 +1,124 @@
+package com.qq.blue;
+
+import java.net.ProtocolException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按额度的流量控制，双方都声明 Handshake.FEATURE_CREDIT 时使用.
+ * 连接建立时双方各有 INITIAL_CREDITS 的额度，每发一条聊天消息（TYPE_TEXT/TYPE_RELAY）用掉一个，
+ * 用完后 offer() 返回false，和发送队列满了一样，发送方暂停发送.
+ * 接收方的UI处理完一条消息、归还缓冲区时才算消费掉，攒够 GRANT_THRESHOLD 个后
+ * 发 TYPE_CREDIT：[新增额度 4字节] 给对方.
+ * 所以对方发来的消息在本机最多积压 INITIAL_CREDITS 条，慢的一端不会被快的一端压垮.
+ * 控制帧和文件块不占额度，文件传输有自己的窗口，控制帧被卡住会死锁
+ */
+public class CreditFlow {
+
+    // 要不小于 ResumableSession.REPLAY_CAPACITY，重连后的补发不会因为额度不够而丢失
+    public static final int INITIAL_CREDITS = 128;
+
+    // 攒够这么多再回复，不用每条消息回一帧
+    static final int GRANT_THRESHOLD = 32;
+
+    static final int CREDIT_LENGTH = 4;
+
+    // 发送方：还能发的消息数
+    private final AtomicInteger mCredits = new AtomicInteger(INITIAL_CREDITS);
+    private final AtomicLong mStalls = new AtomicLong();
+
+    // 接收方：收到还没被消费的消息数，已经消费但还没回复的额度
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private final AtomicInteger mConsumed = new AtomicInteger();
+
+    // 占额度的帧类型
+    public static boolean isCredited(int type) {
+        return type == FrameCodec.TYPE_TEXT || type == FrameCodec.TYPE_RELAY;
+    }
+
+    /**
+     * 发送前取一个额度
+     * @return  额度用完时返回false
+     */
+    public boolean tryAcquire() {
+        int credits;
+        do {
+            credits = mCredits.get();
+            if(credits <= 0) {
+                mStalls.incrementAndGet();
+                return false;
+            }
+        } while(!mCredits.compareAndSet(credits, credits - 1));
+        return true;
+    }
+
+    // 取了额度但没能放进发送队列
+    public void release() {
+        mCredits.incrementAndGet();
+    }
+
+    // 收到对方的 TYPE_CREDIT
+    public void onCredit(byte[] buffer, int offset, int length) throws ProtocolException {
+        if(length < CREDIT_LENGTH) {
+            throw new ProtocolException("bad credit length " + length);
+        }
+        int credits = FrameCodec.readLength(buffer, offset);
+        if(credits <= 0) {
+            throw new ProtocolException("bad credit " + credits);
+        }
+        mCredits.addAndGet(credits);
+    }
+
+    // 收到一条占额度的消息
+    public void onReceived() {
+        mOutstanding.incrementAndGet();
+    }
+
+    // 一条消息被消费掉，或者没有交给UI就丢弃
+    public void onConsumed() {
+        mOutstanding.decrementAndGet();
+        mConsumed.incrementAndGet();
+    }
+
+    /**
+     * 取出要回复给对方的额度
+     * @return  还没攒够时返回0
+     */
+    public int takeGrant() {
+        if(mConsumed.get() < GRANT_THRESHOLD) return 0;
+        return mConsumed.getAndSet(0);
+    }
+
+    // TYPE_CREDIT 没能发出去，下次再回复
+    public void restoreGrant(int credits) {
+        mConsumed.addAndGet(credits);
+    }
+
+    public static byte[] encodeCredit(int credits) {
+        byte[] credit = new byte[CREDIT_LENGTH];
+        credit[0] = (byte) (credits >>> 24);
+        credit[1] = (byte) (credits >>> 16);
+        credit[2] = (byte) (credits >>> 8);
+        credit[3] = (byte) credits;
+        return credit;
+    }
+
+    public int getCredits() {
+        return mCredits.get();
+    }
+
+    // 因为额度用完而暂停发送的次数
+    public long getStallCount() {
+        return mStalls.get();
+    }
+
+    // 对方发来还没被消费的消息数，正常时不超过 INITIAL_CREDITS
+    public int getOutstanding() {
+        return mOutstanding.get();
+    }
+
+    @Override
+    public String toString() {
+        return "credits=" + getCredits() + " stalls=" + getStallCount() + " outstanding=" + getOutstanding();
+    }
+}
@@ -0,0 +1,232 @@
+package com.qq.blue;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 搜寻到的设备缓存，按MAC地址去重.
+ * 每次 ACTION_FOUND 只在哈希表中更新名字、信号强度和最后发现的时间，O(1)；
+ * 保存到 SharedPreferences 的操作合并到 flush() 中，一次扫描只写一次.
+ * 打开设备列表时直接显示缓存的设备，按最近发现的时间和信号强度排序，不用等扫描完成
+ */
+public class DeviceCache {
+
+    // 最多记住的设备数，超过时丢掉最久没见到的
+    public static final int MAX_ENTRIES = 64;
+
+    // 超过这个时间没见到的设备不再显示
+    public static final long MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    // 没有信号强度时按这个算
+    public static final int UNKNOWN_RSSI = -100;
+
+    // 排序时每过这么久相当于信号弱1dBm，刚扫描到的设备按信号排，之前见过的按时间排
+    private static final long AGE_PER_DBM_MILLIS = 30 * 1000;
+
+    private static final String KEY_NAME = "name:";
+    private static final String KEY_RSSI = "rssi:";
+    private static final String KEY_SEEN = "seen:";
+
+    private final SharedPreferences mPreferences;
+    private final Map<String, Device> mDevices = new HashMap<String, Device>();
+    // 上次 flush() 之后删掉的设备
+    private final List<String> mRemoved = new ArrayList<String>();
+    private boolean mDirty;
+
+
+    /**
+     * 一个设备最后一次被发现时的信息
+     */
+    public static final class Device {
+        private final String mmAddress;
+        private String mmName;
+        private int mmRssi = UNKNOWN_RSSI;
+        private long mmLastSeen;
+        // 还没有保存
+        private boolean mmDirty;
+
+        Device(String address) {
+            mmAddress = address;
+        }
+
+        private Device(Device device) {
+            mmAddress = device.mmAddress;
+            mmName = device.mmName;
+            mmRssi = device.mmRssi;
+            mmLastSeen = device.mmLastSeen;
+        }
+
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        // 可能为null，有的设备搜寻时不带名字
+        public String getName() {
+            return mmName;
+        }
+
+        // 单位dBm，没有时为 UNKNOWN_RSSI
+        public int getRssi() {
+            return mmRssi;
+        }
+
+        public long getLastSeen() {
+            return mmLastSeen;
+        }
+
+        // 越大越靠前
+        long score(long now) {
+            return mmRssi - (now - mmLastSeen) / AGE_PER_DBM_MILLIS;
+        }
+    }
+
+
+    /**
+     * @param preferences   保存缓存，重启应用后仍然有效，null表示只保存在内存中
+     */
+    public DeviceCache(SharedPreferences preferences) {
+        mPreferences = preferences;
+        if(preferences != null) {
+            load(preferences);
+        }
+    }
+
+    /**
+     * 记录一次发现，同一个地址只更新原来的记录
+     * @param name  null表示这次没带名字，保留原来的
+     * @param rssi  没有时传 UNKNOWN_RSSI
+     * @return  第一次见到这个设备时返回true
+     */
+    public synchronized boolean update(String address, String name, int rssi) {
+        Device device = mDevices.get(address);
+        boolean added = device == null;
+        if(added) {
+            if(mDevices.size() >= MAX_ENTRIES) {
+                removeOldest();
+            }
+            device = new Device(address);
+            mDevices.put(address, device);
+            mRemoved.remove(address);
+        }
+        if(name != null) {
+            device.mmName = name;
+        }
+        device.mmRssi = rssi;
+        device.mmLastSeen = System.currentTimeMillis();
+        device.mmDirty = true;
+        mDirty = true;
+        return added;
+    }
+
+    /**
+     * @return  这个设备的拷贝，没有时返回null
+     */
+    public synchronized Device get(String address) {
+        Device device = mDevices.get(address);
+        return device == null ? null : new Device(device);
+    }
+
+    public synchronized int size() {
+        return mDevices.size();
+    }
+
+    /**
+     * 按最近发现的时间和信号强度排序的拷贝，过期的设备同时被删掉
+     */
+    public synchronized List<Device> getRanked() {
+        final long now = System.currentTimeMillis();
+        List<Device> devices = new ArrayList<Device>(mDevices.size());
+        Iterator<Device> iterator = mDevices.values().iterator();
+        while(iterator.hasNext()) {
+            Device device = iterator.next();
+            if(now - device.mmLastSeen > MAX_AGE_MILLIS) {
+                iterator.remove();
+                mRemoved.add(device.mmAddress);
+                mDirty = true;
+                continue;
+            }
+            devices.add(new Device(device));
+        }
+        Collections.sort(devices, new Comparator<Device>() {
+            @Override
+            public int compare(Device a, Device b) {
+                long scoreA = a.score(now);
+                long scoreB = b.score(now);
+                if(scoreA != scoreB) return scoreA > scoreB ? -1 : 1;
+                return a.mmAddress.compareTo(b.mmAddress);
+            }
+        });
+        return devices;
+    }
+
+    /**
+     * 把上次之后更新和删除的设备一次写入 SharedPreferences
+     */
+    public synchronized void flush() {
+        if(!mDirty) return;
+        mDirty = false;
+        if(mPreferences == null) {
+            mRemoved.clear();
+            return;
+        }
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for(String address : mRemoved) {
+            editor.remove(KEY_NAME + address)
+                    .remove(KEY_RSSI + address)
+                    .remove(KEY_SEEN + address);
+        }
+        mRemoved.clear();
+        for(Device device : mDevices.values()) {
+            if(!device.mmDirty) continue;
+            device.mmDirty = false;
+            if(device.mmName != null) {
+                editor.putString(KEY_NAME + device.mmAddress, device.mmName);
+            }
+            editor.putInt(KEY_RSSI + device.mmAddress, device.mmRssi)
+                    .putLong(KEY_SEEN + device.mmAddress, device.mmLastSeen);
+        }
+        editor.apply();
+    }
+
+    private void removeOldest() {
+        Device oldest = null;
+        for(Device device : mDevices.values()) {
+            if(oldest == null || device.mmLastSeen < oldest.mmLastSeen) {
+                oldest = device;
+            }
+        }
+        if(oldest != null) {
+            mDevices.remove(oldest.mmAddress);
+            mRemoved.add(oldest.mmAddress);
+        }
+    }
+
+    private void load(SharedPreferences preferences) {
+        long now = System.currentTimeMillis();
+        for(String key : preferences.getAll().keySet()) {
+            if(!key.startsWith(KEY_SEEN)) continue;
+            String address = key.substring(KEY_SEEN.length());
+            Device device = new Device(address);
+            device.mmLastSeen = preferences.getLong(key, 0);
+            device.mmRssi = preferences.getInt(KEY_RSSI + address, UNKNOWN_RSSI);
+            device.mmName = preferences.getString(KEY_NAME + address, null);
+            if(now - device.mmLastSeen > MAX_AGE_MILLIS) {
+                mRemoved.add(address);
+                mDirty = true;
+                continue;
+            }
+            mDevices.put(address, device);
+        }
+        while(mDevices.size() > MAX_ENTRIES) {
+            removeOldest();
+            mDirty = true;
+        }
+    }
+}
@@ -17,11 +17,14 @@ import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * 这个 Activity显示为对话框.
  * 它会列出已配对的设备和在该区域检测后发现的设备
+ * 以前发现过的设备从 DeviceCache 中读出来直接显示，扫描时同一个设备只显示一次
  * 当用户选择一个设备后，该设备的Mac地址就会被发送到父Activity
  */
 
@@ -30,10 +33,20 @@ public class DeviceListActivity extends Activity{
     private static final String TAG = "DeviceListActivity";
     public static String EXTRA_DEVICE_ADDRESS = "device_address";
 
+    //保存 DeviceCache 的 SharedPreferences
+    private static final String DEVICE_CACHE_NAME = "discovered_devices";
+
     private BluetoothAdapter mBtAdapter;
     private ArrayAdapter mNewDevicesArrayAdapter;
     private ArrayAdapter mPairedDevicesArrayAdapter;
 
+    //发现过的设备，按地址去重
+    private DeviceCache mDeviceCache;
+    //已配对的设备在上面的列表中，不再显示在新设备中
+    private final Set<String> mPairedAddresses = new HashSet<String>();
+    //新设备列表中已有的地址
+    private final Set<String> mShownAddresses = new HashSet<String>();
+
 
 
     @Override
@@ -89,11 +102,44 @@ public class DeviceListActivity extends Activity{
 
             for (BluetoothDevice device : pairedDevices) {
                 mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                mPairedAddresses.add(device.getAddress());
             }
         }
         else {
             mPairedDevicesArrayAdapter.add(getResources().getText(R.string.none_paired).toString());
         }
+
+        //不用等扫描，先显示以前发现过的设备
+        mDeviceCache = new DeviceCache(getSharedPreferences(DEVICE_CACHE_NAME, MODE_PRIVATE));
+        if(showCachedDevices() > 0) {
+            findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * 按最近发现的时间和信号强度重新排列新设备列表
+     * @return  显示的设备数
+     */
+    private int showCachedDevices() {
+        mNewDevicesArrayAdapter.setNotifyOnChange(false);
+        mNewDevicesArrayAdapter.clear();
+        mShownAddresses.clear();
+        List<DeviceCache.Device> devices = mDeviceCache.getRanked();
+        for(DeviceCache.Device device : devices) {
+            if(mPairedAddresses.contains(device.getAddress())) continue;
+            mNewDevicesArrayAdapter.add(formatDevice(device.getName(), device.getAddress(), device.getRssi()));
+            mShownAddresses.add(device.getAddress());
+        }
+        mNewDevicesArrayAdapter.notifyDataSetChanged();
+        return mShownAddresses.size();
+    }
+
+    // 地址放在最后，点击时取最后17个字符
+    private static String formatDevice(String name, String address, int rssi) {
+        if(rssi == DeviceCache.UNKNOWN_RSSI) {
+            return name + "\n" + address;
+        }
+        return name + " (" + rssi + "dBm)\n" + address;
     }
 
 
@@ -107,6 +153,11 @@ public class DeviceListActivity extends Activity{
 
         //取消注册广播监听器
         this.unregisterReceiver(mReceiver);
+
+        //扫描中途退出时也保存已经发现的设备
+        if(mDeviceCache != null) {
+            mDeviceCache.flush();
+        }
     }
 
     /**
@@ -166,17 +217,22 @@ public class DeviceListActivity extends Activity{
             // 搜寻到一个设备时
             if(BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
-                // 如果已经配对，跳过，因为已经列出
-                if(device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                short extraRssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                int rssi = extraRssi == Short.MIN_VALUE ? DeviceCache.UNKNOWN_RSSI : extraRssi;
+                String address = device.getAddress();
+                mDeviceCache.update(address, device.getName(), rssi);
+
+                // 如果已经配对，跳过，因为已经列出；同一个设备会被发现多次，只加一次，扫描完成时再按信号排序
+                if(device.getBondState() != BluetoothDevice.BOND_BONDED && mShownAddresses.add(address)) {
+                    mNewDevicesArrayAdapter.add(formatDevice(device.getName(), address, rssi));
                 }
             }
             //搜寻完成后，改变Activity标题
             else if(BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 setProgressBarIndeterminateVisibility(false);
                 setTitle(R.string.select_device);
-                if(mNewDevicesArrayAdapter.getCount() == 0) {
+                mDeviceCache.flush();
+                if(showCachedDevices() == 0) {
                     String noDevices = getResources().getText(R.string.none_found).toString();
                     mNewDevicesArrayAdapter.add(noDevices);
                 }
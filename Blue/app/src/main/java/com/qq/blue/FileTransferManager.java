@@ -0,0 +1,598 @@
+package com.qq.blue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 文件传输.
+ * 发送方把文件分成大块直接从磁盘读出发送，同时最多有 WINDOW_CHUNKS 块未确认，链路一直有数据可发；
+ * 接收方按顺序写入 .part 文件并回复累计确认.
+ * 连接断开后传输不会丢弃，重新连上时发送方再次发出 FILE_OFFER，
+ * 接收方回复 .part 文件已有的长度，从这个位置继续发送.
+ * 传输ID由源文件的路径、大小和修改时间算出，文件改过就是新的传输；
+ * .part 文件按对方地址和传输ID命名，旁边的 .info 记录文件大小和文件名，对不上时从头接收.
+ *
+ * 帧负载：
+ * FILE_OFFER   [传输ID 8][文件大小 8][文件名 UTF-8]
+ * FILE_ACCEPT  [传输ID 8][开始位置 8]  开始位置为-1表示拒绝
+ * FILE_CHUNK   [传输ID 8][位置 8][数据]
+ * FILE_ACK     [传输ID 8][已经收到的字节数 8]
+ */
+public class FileTransferManager {
+
+    // 数据块最大的长度，对方能接收的负载更小时按它缩小
+    public static final int CHUNK_SIZE = 32 * 1024;
+    public static final int WINDOW_CHUNKS = 8;
+
+    private static final int ID_OFFSET_LENGTH = 16;
+
+    // 等待对方回复 FILE_ACCEPT 或新的确认的时间，超时后重新发出 FILE_OFFER
+    private static final long REPLY_TIMEOUT_MS = 10 * 1000;
+
+    // 发送队列满时等待的时间
+    private static final long QUEUE_FULL_WAIT_MS = 5;
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String INFO_SUFFIX = ".info";
+
+    // FNV-1a 64位
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+
+    /**
+     * 连接的发送队列
+     */
+    public interface FrameSender {
+        boolean offer(int type, byte[] payload);
+    }
+
+    /**
+     * 传输状态回调，在读线程或发送文件的任务中调用
+     */
+    public interface Listener {
+        void onTransferProgress(Transfer transfer);
+
+        void onTransferComplete(Transfer transfer);
+
+        void onTransferFailed(Transfer transfer, IOException e);
+    }
+
+
+    /**
+     * 一次传输，发送和接收都用它
+     */
+    public static class Transfer {
+        private final long mId;
+        private final String mName;
+        private final long mSize;
+        private final boolean mOutgoing;
+        private final File mFile;
+        private volatile long mDoneBytes;
+
+        // 发送方：对方回复的开始位置，-2表示还没有回复
+        private long mAcceptedOffset = -2;
+
+        // 接收方：正在写入的 .part 文件
+        private RandomAccessFile mOutput;
+
+        Transfer(long id, String name, long size, boolean outgoing, File file) {
+            mId = id;
+            mName = name;
+            mSize = size;
+            mOutgoing = outgoing;
+            mFile = file;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public boolean isOutgoing() {
+            return mOutgoing;
+        }
+
+        // 已经确认的字节数
+        public long getDoneBytes() {
+            return mDoneBytes;
+        }
+
+        // 发送方是源文件，接收方是完成后的文件
+        public File getFile() {
+            return mFile;
+        }
+    }
+
+
+    private final Listener mListener;
+    private final File mDirectory;
+    // 和当前连接的数据块一样大，换了大小时整个替换，旧的缓冲区归还时大小对不上会被丢掉
+    private volatile BufferPool mChunkPool;
+    private int mChunkSize = CHUNK_SIZE;
+    // 当前连接协商出的最大负载长度
+    private int mMaxPayloadLength;
+
+    // 等待发送的文件，第一个是正在发送的
+    private final LinkedList<Transfer> mOutgoing = new LinkedList<Transfer>();
+    private final HashMap<Long, Transfer> mIncoming = new HashMap<Long, Transfer>();
+    private FrameSender mSender;
+    // 当前连接的对方地址，.part 文件按它区分
+    private String mPeerAddress;
+    private SendTask mSendTask;
+    // 发送任务在这里运行，由 BluetoothChatService 设置
+    private LifecycleExecutor mLifecycle;
+
+    /**
+     * @param listener  传输状态回调
+     * @param directory 接收文件的目录，null表示拒绝接收
+     */
+    public FileTransferManager(Listener listener, File directory) {
+        mListener = listener;
+        mDirectory = directory;
+        mChunkPool = new BufferPool(ID_OFFSET_LENGTH + mChunkSize, WINDOW_CHUNKS * 2);
+    }
+
+    /**
+     * 把文件加入发送队列，连接后开始发送
+     */
+    public synchronized Transfer send(File file) throws IOException {
+        if(!file.isFile() || !file.canRead()) {
+            throw new IOException("cannot read " + file);
+        }
+        //同一个文件没有修改过就是同一个ID，断开重连后接收方据此续传
+        long size = file.length();
+        long id = transferId(file.getAbsolutePath(), size, file.lastModified());
+
+        Transfer transfer = new Transfer(id, file.getName(), size, true, file);
+        mOutgoing.add(transfer);
+        startSending();
+        return transfer;
+    }
+
+    /**
+     * 发送文件的任务在 lifecycle 的工作线程中运行，要在 onConnected() 之前设置
+     */
+    public synchronized void setLifecycleExecutor(LifecycleExecutor lifecycle) {
+        mLifecycle = lifecycle;
+    }
+
+    public synchronized List<Transfer> getTransfers() {
+        List<Transfer> transfers = new ArrayList<Transfer>(mOutgoing);
+        transfers.addAll(mIncoming.values());
+        return transfers;
+    }
+
+    /**
+     * 连接建立后调用，继续发送队列中的文件
+     * @param address   对方的地址，收到的 .part 文件只和同一个设备续传
+     * @param maxPayloadLength  握手协商出的最大负载长度，数据块和 FILE_OFFER 都不超过它
+     */
+    public synchronized void onConnected(FrameSender sender, String address, int maxPayloadLength) {
+        int chunkSize = Math.max(1, Math.min(CHUNK_SIZE, maxPayloadLength - ID_OFFSET_LENGTH));
+        if(chunkSize != mChunkSize) {
+            mChunkSize = chunkSize;
+            mChunkPool = new BufferPool(ID_OFFSET_LENGTH + chunkSize, WINDOW_CHUNKS * 2);
+        }
+        mMaxPayloadLength = maxPayloadLength;
+        mSender = sender;
+        mPeerAddress = address;
+        startSending();
+    }
+
+    /**
+     * 连接断开后调用，未完成的传输保留下来，下次连接时续传
+     */
+    public synchronized void onDisconnected() {
+        mSender = null;
+        mPeerAddress = null;
+        if(mSendTask != null) {
+            mSendTask.cancel();
+            mSendTask = null;
+        }
+        for(Transfer transfer : mIncoming.values()) {
+            closeQuietly(transfer);
+        }
+        mIncoming.clear();
+        notifyAll();
+    }
+
+    /**
+     * 读线程收到 FILE_* 帧时调用
+     */
+    public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+        if(length < ID_OFFSET_LENGTH) return;
+        long id = readLong(buffer, offset);
+        long value = readLong(buffer, offset + 8);
+
+        switch(type) {
+            case FrameCodec.TYPE_FILE_OFFER: {
+                String name = new String(buffer, offset + ID_OFFSET_LENGTH, length - ID_OFFSET_LENGTH, "UTF-8");
+                onOffer(id, value, name);
+                break;
+            }
+            case FrameCodec.TYPE_FILE_ACCEPT: {
+                onAccept(id, value);
+                break;
+            }
+            case FrameCodec.TYPE_FILE_CHUNK: {
+                onChunk(id, value, buffer, offset + ID_OFFSET_LENGTH, length - ID_OFFSET_LENGTH);
+                break;
+            }
+            case FrameCodec.TYPE_FILE_ACK: {
+                onAck(id, value);
+                break;
+            }
+        }
+    }
+
+    /**
+     * 发送线程写出一帧后调用，归还数据块的缓冲区
+     */
+    public void onFrameWritten(int type, byte[] payload) {
+        if(type == FrameCodec.TYPE_FILE_CHUNK) {
+            mChunkPool.recycle(payload);
+        }
+    }
+
+    private void startSending() {
+        if(mSender != null && mLifecycle != null && mSendTask == null && !mOutgoing.isEmpty()) {
+            mSendTask = new SendTask(mSender, mChunkSize, mChunkPool, mMaxPayloadLength);
+            mSendTask.mmTask = mLifecycle.execute(LifecycleExecutor.TASK_FILE_SEND, mSendTask);
+        }
+    }
+
+    private synchronized void onOffer(long id, long size, String name) throws IOException {
+        if(mDirectory == null || mPeerAddress == null) {
+            reply(FrameCodec.TYPE_FILE_ACCEPT, id, -1);
+            return;
+        }
+
+        Transfer transfer = mIncoming.get(id);
+        if(transfer == null) {
+            //只保留文件名，防止写到目录外面
+            File target = new File(mDirectory, new File(name).getName());
+            transfer = new Transfer(id, name, size, false, target);
+            File part = partFile(id);
+            transfer.mOutput = new RandomAccessFile(part, "rw");
+            //上次记下的大小和文件名对不上，已有的数据不是这个文件的
+            long existing = 0;
+            if(matchesInfo(infoFile(part), size, name)) {
+                existing = Math.min(transfer.mOutput.length(), size);
+            }
+            else {
+                writeInfo(infoFile(part), size, name);
+            }
+            transfer.mOutput.setLength(existing);
+            transfer.mDoneBytes = existing;
+            mIncoming.put(id, transfer);
+        }
+
+        //从已经写入的位置继续
+        transfer.mOutput.seek(transfer.mDoneBytes);
+        reply(FrameCodec.TYPE_FILE_ACCEPT, id, transfer.mDoneBytes);
+        if(transfer.mDoneBytes == size) {
+            finishIncoming(transfer);
+        }
+    }
+
+    private synchronized void onChunk(long id, long position, byte[] buffer, int offset, int length)
+            throws IOException {
+        Transfer transfer = mIncoming.get(id);
+        //续传前还在路上的旧数据块位置对不上，直接丢弃
+        if(transfer == null || position != transfer.mDoneBytes) return;
+
+        transfer.mOutput.write(buffer, offset, length);
+        transfer.mDoneBytes += length;
+        reply(FrameCodec.TYPE_FILE_ACK, id, transfer.mDoneBytes);
+        mListener.onTransferProgress(transfer);
+
+        if(transfer.mDoneBytes >= transfer.mSize) {
+            finishIncoming(transfer);
+        }
+    }
+
+    private void finishIncoming(Transfer transfer) throws IOException {
+        mIncoming.remove(transfer.mId);
+        transfer.mOutput.close();
+        File part = partFile(transfer.mId);
+        infoFile(part).delete();
+        if(transfer.mFile.exists()) {
+            transfer.mFile.delete();
+        }
+        if(!part.renameTo(transfer.mFile)) {
+            mListener.onTransferFailed(transfer, new IOException("rename to " + transfer.mFile + " failed"));
+            return;
+        }
+        mListener.onTransferComplete(transfer);
+    }
+
+    private synchronized void onAccept(long id, long offset) {
+        Transfer transfer = mOutgoing.peek();
+        if(transfer != null && transfer.mId == id) {
+            transfer.mAcceptedOffset = offset;
+            notifyAll();
+        }
+    }
+
+    private synchronized void onAck(long id, long received) {
+        Transfer transfer = mOutgoing.peek();
+        if(transfer != null && transfer.mId == id && received > transfer.mDoneBytes) {
+            transfer.mDoneBytes = received;
+            notifyAll();
+            mListener.onTransferProgress(transfer);
+        }
+    }
+
+    private void reply(int type, long id, long value) {
+        FrameSender sender = mSender;
+        if(sender == null) return;
+        byte[] payload = new byte[ID_OFFSET_LENGTH];
+        writeLong(payload, 0, id);
+        writeLong(payload, 8, value);
+        //回复丢了也没关系，发送方超时后会重新发出 FILE_OFFER
+        sender.offer(type, payload);
+    }
+
+    // 地址中的冒号等字符不能用在文件名中
+    private File partFile(long id) {
+        String peer = mPeerAddress.replaceAll("[^0-9A-Za-z]", "");
+        return new File(mDirectory, peer + "-" + Long.toHexString(id) + PART_SUFFIX);
+    }
+
+    private static File infoFile(File part) {
+        return new File(part.getPath() + INFO_SUFFIX);
+    }
+
+    private static boolean matchesInfo(File info, long size, String name) {
+        if(!info.isFile()) return false;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(info));
+            try {
+                return in.readLong() == size && in.readUTF().equals(name);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+    private static void writeInfo(File info, long size, String name) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(info));
+        try {
+            out.writeLong(size);
+            out.writeUTF(name);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 由源文件的绝对路径、大小和修改时间算出传输ID，
+     * 用64位的 FNV-1a 而不是 String.hashCode()，不同的文件几乎不会得到相同的ID
+     */
+    static long transferId(String path, long size, long lastModified) {
+        long hash = FNV_OFFSET;
+        byte[] bytes;
+        try {
+            bytes = path.getBytes("UTF-8");
+        }
+        catch(IOException e) {
+            bytes = path.getBytes();
+        }
+        for(byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        for(int i = 56; i >= 0; i -= 8) {
+            hash = (hash ^ ((size >>> i) & 0xff)) * FNV_PRIME;
+        }
+        for(int i = 56; i >= 0; i -= 8) {
+            hash = (hash ^ ((lastModified >>> i) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static void closeQuietly(Transfer transfer) {
+        try {
+            transfer.mOutput.close();
+        }
+        catch(IOException e) {
+            // 忽略
+        }
+    }
+
+    static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    static void writeLong(byte[] buffer, int offset, long value) {
+        for(int i = 0; i < 8; i++) {
+            buffer[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+
+    /**
+     * 依次发送队列中的文件，连接断开时退出
+     */
+    private class SendTask implements Runnable {
+        private final FrameSender mmSender;
+        private final int mmChunkSize;
+        // 创建时的缓冲池，之后换了大小也不混用
+        private final BufferPool mmChunkPool;
+        private final int mmMaxPayloadLength;
+        private volatile LifecycleExecutor.Task mmTask;
+        private volatile boolean mmCancelled;
+
+        SendTask(FrameSender sender, int chunkSize, BufferPool chunkPool, int maxPayloadLength) {
+            mmSender = sender;
+            mmChunkSize = chunkSize;
+            mmChunkPool = chunkPool;
+            mmMaxPayloadLength = maxPayloadLength;
+        }
+
+        public void run() {
+            try {
+                while(!mmCancelled) {
+                    Transfer transfer;
+                    synchronized(FileTransferManager.this) {
+                        transfer = mOutgoing.peek();
+                        if(transfer == null) {
+                            if(mSendTask == this) {
+                                mSendTask = null;
+                            }
+                            return;
+                        }
+                    }
+
+                    try {
+                        if(sendFile(transfer)) {
+                            synchronized(FileTransferManager.this) {
+                                mOutgoing.remove(transfer);
+                            }
+                            mListener.onTransferComplete(transfer);
+                        }
+                    }
+                    catch(IOException e) {
+                        synchronized(FileTransferManager.this) {
+                            mOutgoing.remove(transfer);
+                        }
+                        mListener.onTransferFailed(transfer, e);
+                    }
+                }
+            }
+            catch(InterruptedException e) {
+                // cancel()
+            }
+        }
+
+        /**
+         * @return  全部确认后返回true，超时需要重新开始时返回false
+         */
+        private boolean sendFile(Transfer transfer) throws IOException, InterruptedException {
+            byte[] offer = transfer.mName.getBytes("UTF-8");
+            byte[] payload = new byte[ID_OFFSET_LENGTH + offer.length];
+            writeLong(payload, 0, transfer.mId);
+            writeLong(payload, 8, transfer.mSize);
+            System.arraycopy(offer, 0, payload, ID_OFFSET_LENGTH, offer.length);
+
+            synchronized(FileTransferManager.this) {
+                transfer.mAcceptedOffset = -2;
+            }
+            offer(FrameCodec.TYPE_FILE_OFFER, payload);
+
+            long start;
+            synchronized(FileTransferManager.this) {
+                long deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MS;
+                while(transfer.mAcceptedOffset == -2 && !mmCancelled) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if(wait <= 0) return false;
+                    FileTransferManager.this.wait(wait);
+                }
+                if(mmCancelled) throw new InterruptedException();
+                start = transfer.mAcceptedOffset;
+                if(start < 0) {
+                    throw new IOException("peer refused " + transfer.mName);
+                }
+                transfer.mDoneBytes = start;
+            }
+
+            RandomAccessFile input = new RandomAccessFile(transfer.mFile, "r");
+            try {
+                input.seek(start);
+                long position = start;
+                while(position < transfer.mSize) {
+                    //等待窗口中有空位
+                    synchronized(FileTransferManager.this) {
+                        if(!awaitAck(transfer, position - (long) WINDOW_CHUNKS * mmChunkSize)) {
+                            return false;
+                        }
+                    }
+
+                    int length = (int) Math.min(mmChunkSize, transfer.mSize - position);
+                    byte[] chunk = length == mmChunkSize ? mmChunkPool.obtain(ID_OFFSET_LENGTH + length)
+                            : new byte[ID_OFFSET_LENGTH + length];
+                    writeLong(chunk, 0, transfer.mId);
+                    writeLong(chunk, 8, position);
+                    input.readFully(chunk, ID_OFFSET_LENGTH, length);
+                    offer(FrameCodec.TYPE_FILE_CHUNK, chunk);
+                    position += length;
+                }
+
+                //等待最后的确认
+                synchronized(FileTransferManager.this) {
+                    return awaitAck(transfer, transfer.mSize - 1);
+                }
+            }
+            finally {
+                input.close();
+            }
+        }
+
+        /**
+         * 等待确认的字节数超过 threshold
+         * @return  超时没有新的确认时返回false
+         */
+        private boolean awaitAck(Transfer transfer, long threshold) throws InterruptedException {
+            long lastDone = transfer.mDoneBytes;
+            long deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MS;
+            while(transfer.mDoneBytes <= threshold) {
+                if(mmCancelled) throw new InterruptedException();
+                if(transfer.mDoneBytes != lastDone) {
+                    lastDone = transfer.mDoneBytes;
+                    deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MS;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) return false;
+                FileTransferManager.this.wait(wait);
+            }
+            return true;
+        }
+
+        /**
+         * @throws IOException  这一帧超过了对方能接收的长度，怎么等也发不出去
+         */
+        private void offer(int type, byte[] payload) throws IOException, InterruptedException {
+            if(payload.length > mmMaxPayloadLength) {
+                throw new IOException("frame of " + payload.length + " bytes exceeds peer limit "
+                        + mmMaxPayloadLength);
+            }
+            while(!mmSender.offer(type, payload)) {
+                if(mmCancelled) throw new InterruptedException();
+                Thread.sleep(QUEUE_FULL_WAIT_MS);
+            }
+        }
+
+        void cancel() {
+            mmCancelled = true;
+            LifecycleExecutor.Task task = mmTask;
+            if(task != null) {
+                task.cancel();
+            }
+        }
+    }
+}
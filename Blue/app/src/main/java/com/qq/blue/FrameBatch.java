@@ -0,0 +1,112 @@
+package com.qq.blue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 把多个帧拼到同一个缓冲区，满了或者 flush() 时才写入输出流.
+ * 不是线程安全的，同一时间只能有一个线程使用
+ */
+class FrameBatch {
+
+    /**
+     * 排队等待发送的一帧
+     */
+    static final class Frame {
+        final int type;
+        final byte[] payload;
+
+        Frame(int type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+
+    private final OutputStream mOutStream;
+    private final byte[] mBuffer;
+    private int mCount;
+    private LinkMetrics mMetrics;
+
+    FrameBatch(OutputStream outputStream, int bufferSize) {
+        mOutStream = outputStream;
+        mBuffer = new byte[bufferSize];
+    }
+
+    // 统计每次写入的字节数和阻塞时间，要在开始写之前设置
+    void setMetrics(LinkMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    void append(Frame frame) throws IOException {
+        append(frame.type, frame.payload, 0, frame.payload.length);
+    }
+
+    // payload 在返回后就可以复用
+    void append(int type, byte[] payload, int offset, int length) throws IOException {
+        if(mCount + FrameCodec.HEADER_LENGTH + length > mBuffer.length) {
+            writeBuffer();
+        }
+
+        //放不进缓冲区的大帧直接写
+        if(FrameCodec.HEADER_LENGTH + length > mBuffer.length) {
+            long start = System.nanoTime();
+            FrameCodec.writeHeader(mBuffer, 0, type, length);
+            mOutStream.write(mBuffer, 0, FrameCodec.HEADER_LENGTH);
+            mOutStream.write(payload, offset, length);
+            if(mMetrics != null) {
+                mMetrics.onWrite(FrameCodec.HEADER_LENGTH + length, System.nanoTime() - start);
+            }
+            return;
+        }
+
+        mCount += FrameCodec.writeHeader(mBuffer, mCount, type, length);
+        System.arraycopy(payload, offset, mBuffer, mCount, length);
+        mCount += length;
+    }
+
+    /**
+     * 追加一个 TYPE_FRAGMENT 分片，见 FrameLanes.
+     * 分片加上帧头不能超过缓冲区大小
+     */
+    void appendFragment(int lane, int type, boolean last, byte[] data, int offset, int length) throws IOException {
+        int payloadLength = FrameLanes.FRAGMENT_HEADER_LENGTH + length;
+        if(mCount + FrameCodec.HEADER_LENGTH + payloadLength > mBuffer.length) {
+            writeBuffer();
+        }
+        mCount += FrameCodec.writeHeader(mBuffer, mCount, FrameCodec.TYPE_FRAGMENT, payloadLength);
+        FrameLanes.writeFragmentHeader(mBuffer, mCount, lane, type, last);
+        mCount += FrameLanes.FRAGMENT_HEADER_LENGTH;
+        System.arraycopy(data, offset, mBuffer, mCount, length);
+        mCount += length;
+    }
+
+    int getBufferSize() {
+        return mBuffer.length;
+    }
+
+    // 写出缓冲区中所有的帧
+    void flush() throws IOException {
+        long start = System.nanoTime();
+        int count = mCount;
+        if(count > 0) {
+            mOutStream.write(mBuffer, 0, count);
+            mCount = 0;
+        }
+        mOutStream.flush();
+        if(mMetrics != null && count > 0) {
+            mMetrics.onWrite(count, System.nanoTime() - start);
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if(mCount > 0) {
+            long start = System.nanoTime();
+            mOutStream.write(mBuffer, 0, mCount);
+            if(mMetrics != null) {
+                mMetrics.onWrite(mCount, System.nanoTime() - start);
+            }
+            mCount = 0;
+        }
+    }
+}
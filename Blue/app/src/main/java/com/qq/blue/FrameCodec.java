@@ -0,0 +1,164 @@
+package com.qq.blue;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+
+/**
+ * 消息帧编解码.
+ * RFCOMM 会拆分或合并写入的数据，所以每条消息都加上帧头：
+ * [负载长度 4字节 大端][类型 1字节][负载]
+ */
+public class FrameCodec {
+
+    // 帧头长度
+    public static final int HEADER_LENGTH = 5;
+
+    // 默认允许的最大负载长度
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    //帧类型
+    public static final int TYPE_TEXT = 1;     //聊天文本
+    public static final int TYPE_RELAY = 2;    //需要转发的聊天文本，见 RelayRouter
+    public static final int TYPE_FILE_OFFER = 3;   //文件传输，见 FileTransferManager
+    public static final int TYPE_FILE_ACCEPT = 4;
+    public static final int TYPE_FILE_CHUNK = 5;
+    public static final int TYPE_FILE_ACK = 6;
+    public static final int TYPE_HELLO = 7;        //连接后的握手，见 Handshake
+    public static final int TYPE_COMPRESSED = 8;   //压缩过的帧，见 FrameCompressor
+    public static final int TYPE_RESUME = 9;       //重连后恢复会话，见 ResumableSession
+    public static final int TYPE_RESUME_SYNC = 10;
+    public static final int TYPE_RESUME_ACK = 11;
+    public static final int TYPE_PING = 12;        //往返延迟探测，见 LatencyProbe
+    public static final int TYPE_PONG = 13;
+    public static final int TYPE_CREDIT = 14;      //流量控制的额度，见 CreditFlow
+    public static final int TYPE_FRAGMENT = 15;    //大帧的一个分片，见 FrameLanes
+
+
+    private FrameCodec() {
+    }
+
+    /**
+     * 把负载编码成一个完整的帧
+     * @param type  帧类型
+     * @param payload   负载
+     * @return  帧头 + 负载
+     */
+    public static byte[] encode(int type, byte[] payload) {
+        return encode(type, payload, 0, payload.length);
+    }
+
+    public static byte[] encode(int type, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        writeHeader(frame, 0, type, length);
+        System.arraycopy(payload, offset, frame, HEADER_LENGTH, length);
+        return frame;
+    }
+
+    /**
+     * 在 dst 的 offset 处写入帧头
+     * @return  写入的字节数
+     */
+    public static int writeHeader(byte[] dst, int offset, int type, int length) {
+        dst[offset] = (byte) (length >>> 24);
+        dst[offset + 1] = (byte) (length >>> 16);
+        dst[offset + 2] = (byte) (length >>> 8);
+        dst[offset + 3] = (byte) length;
+        dst[offset + 4] = (byte) type;
+        return HEADER_LENGTH;
+    }
+
+    static int readLength(byte[] src, int offset) {
+        return ((src[offset] & 0xff) << 24)
+                | ((src[offset + 1] & 0xff) << 16)
+                | ((src[offset + 2] & 0xff) << 8)
+                | (src[offset + 3] & 0xff);
+    }
+
+
+    /**
+     * 接收到完整帧时的回调.
+     * buffer 只在回调期间有效，之后会被解码器复用
+     */
+    public interface FrameListener {
+        void onFrame(int type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+
+    /**
+     * 流式解码器.
+     * 每次读到的数据交给 feed()，解码器把跨多次读取的半帧拼起来，每凑齐一帧就回调一次
+     */
+    public static class Decoder {
+        private final FrameListener mListener;
+        private final int mMaxPayloadLength;
+
+        // 还没凑成完整帧的数据
+        private byte[] mBuffer;
+        private int mCount;
+
+        public Decoder(FrameListener listener) {
+            this(listener, MAX_PAYLOAD_LENGTH);
+        }
+
+        public Decoder(FrameListener listener, int maxPayloadLength) {
+            mListener = listener;
+            mMaxPayloadLength = maxPayloadLength;
+            mBuffer = new byte[1024];
+            mCount = 0;
+        }
+
+        public void feed(byte[] data, int offset, int length) throws IOException {
+            //没有残留数据时直接在输入数组上解析，避免一次拷贝
+            if(mCount == 0) {
+                int consumed = parse(data, offset, length);
+                append(data, offset + consumed, length - consumed);
+                return;
+            }
+
+            append(data, offset, length);
+            int consumed = parse(mBuffer, 0, mCount);
+            if(consumed > 0) {
+                System.arraycopy(mBuffer, consumed, mBuffer, 0, mCount - consumed);
+                mCount -= consumed;
+            }
+        }
+
+        // 丢弃残留的半帧，连接断开后调用
+        public void reset() {
+            mCount = 0;
+        }
+
+        /**
+         * 解析 src 中所有完整的帧
+         * @return  已经消耗的字节数
+         */
+        private int parse(byte[] src, int offset, int length) throws IOException {
+            int position = offset;
+            int end = offset + length;
+            while(end - position >= HEADER_LENGTH) {
+                int payloadLength = readLength(src, position);
+                if(payloadLength < 0 || payloadLength > mMaxPayloadLength) {
+                    throw new ProtocolException("bad frame length " + payloadLength);
+                }
+                if(end - position - HEADER_LENGTH < payloadLength) {
+                    break;
+                }
+                int type = src[position + 4] & 0xff;
+                mListener.onFrame(type, src, position + HEADER_LENGTH, payloadLength);
+                position += HEADER_LENGTH + payloadLength;
+            }
+            return position - offset;
+        }
+
+        private void append(byte[] data, int offset, int length) {
+            if(length == 0) return;
+            if(mCount + length > mBuffer.length) {
+                byte[] buffer = new byte[Math.max(mBuffer.length * 2, mCount + length)];
+                System.arraycopy(mBuffer, 0, buffer, 0, mCount);
+                mBuffer = buffer;
+            }
+            System.arraycopy(data, offset, mBuffer, mCount, length);
+            mCount += length;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.qq.blue;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 帧压缩，握手时双方都声明 Handshake.FEATURE_COMPRESSION 才使用.
+ * 压缩后的帧类型是 TYPE_COMPRESSED，负载：[原帧类型 1字节][raw deflate 数据]
+ * 每个连接一个实例，Deflater/Inflater 和输出缓冲区一直复用，不会每条消息分配一次.
+ * compress() 只能在发送线程调用，inflate() 只能在接收线程调用
+ */
+public class FrameCompressor {
+
+    // 小于这个长度的负载不压缩，deflate 的开销比省下的字节多
+    public static final int MIN_COMPRESS_LENGTH = 128;
+
+    private final Deflater mDeflater;
+    private final Inflater mInflater;
+    private final byte[] mDeflateBuffer;
+    private final byte[] mInflateBuffer;
+    private final Stats mStats;
+    private volatile boolean mEnded;
+
+    /**
+     * @param stats 压缩统计，可以多个连接共用
+     */
+    public FrameCompressor(Stats stats) {
+        //不要zlib头和校验，帧本身已经有长度
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        mInflater = new Inflater(true);
+        mDeflateBuffer = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+        mInflateBuffer = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+        mStats = stats;
+    }
+
+    /**
+     * 尝试压缩一帧，结果在 getOutput() 中
+     * @return  压缩后 TYPE_COMPRESSED 负载的长度，太短或压缩后不会更小时返回-1
+     */
+    public int compress(int type, byte[] payload) {
+        int length = payload.length;
+        if(length < MIN_COMPRESS_LENGTH || length > mDeflateBuffer.length) {
+            mStats.mSkipped.incrementAndGet();
+            return -1;
+        }
+
+        int compressed;
+        synchronized(mDeflater) {
+            if(mEnded) return -1;
+            mDeflateBuffer[0] = (byte) type;
+            mDeflater.reset();
+            mDeflater.setInput(payload, 0, length);
+            mDeflater.finish();
+            //输出最多比原来小一个字节，已经压缩过的数据（图片等）写满就停，不会整块白白压完
+            compressed = mDeflater.deflate(mDeflateBuffer, 1, length - 2);
+            if(!mDeflater.finished()) {
+                mStats.mSkipped.incrementAndGet();
+                return -1;
+            }
+        }
+
+        mStats.mCompressed.incrementAndGet();
+        mStats.mBytesIn.addAndGet(length);
+        mStats.mBytesOut.addAndGet(compressed + 1);
+        return compressed + 1;
+    }
+
+    // compress() 的结果，下次调用前有效
+    public byte[] getOutput() {
+        return mDeflateBuffer;
+    }
+
+    /**
+     * 解压一个 TYPE_COMPRESSED 帧，把原来的帧交给 listener
+     */
+    public void inflate(byte[] buffer, int offset, int length, FrameCodec.FrameListener listener)
+            throws IOException {
+        if(length < 1) {
+            throw new ProtocolException("empty compressed frame");
+        }
+        int type = buffer[offset] & 0xff;
+        if(type == FrameCodec.TYPE_COMPRESSED) {
+            throw new ProtocolException("nested compressed frame");
+        }
+
+        int inflated;
+        synchronized(mInflater) {
+            if(mEnded) throw new IOException("compressor ended");
+            mInflater.reset();
+            mInflater.setInput(buffer, offset + 1, length - 1);
+            try {
+                inflated = mInflater.inflate(mInflateBuffer);
+            }
+            catch(DataFormatException e) {
+                throw new ProtocolException("bad compressed frame: " + e.getMessage());
+            }
+            //解压后超过最大负载长度，和普通帧一样当作协议错误
+            if(!mInflater.finished()) {
+                throw new ProtocolException("compressed frame too large");
+            }
+        }
+
+        mStats.mInflated.incrementAndGet();
+        listener.onFrame(type, mInflateBuffer, 0, inflated);
+    }
+
+    /**
+     * 释放 Deflater/Inflater 占用的本地内存，连接断开后调用.
+     * 收发线程可能还没退出，之后的 compress() 不再压缩，inflate() 抛出异常
+     */
+    public void end() {
+        mEnded = true;
+        synchronized(mDeflater) {
+            mDeflater.end();
+        }
+        synchronized(mInflater) {
+            mInflater.end();
+        }
+    }
+
+
+    /**
+     * 压缩统计
+     */
+    public static class Stats {
+        private final AtomicLong mCompressed = new AtomicLong();
+        private final AtomicLong mSkipped = new AtomicLong();
+        private final AtomicLong mInflated = new AtomicLong();
+        private final AtomicLong mBytesIn = new AtomicLong();
+        private final AtomicLong mBytesOut = new AtomicLong();
+
+        // 压缩发送的帧数
+        public long getCompressedCount() {
+            return mCompressed.get();
+        }
+
+        // 太短或压不小而原样发送的帧数
+        public long getSkippedCount() {
+            return mSkipped.get();
+        }
+
+        // 收到并解压的帧数
+        public long getInflatedCount() {
+            return mInflated.get();
+        }
+
+        // 被压缩的帧压缩前的总字节数
+        public long getBytesIn() {
+            return mBytesIn.get();
+        }
+
+        // 被压缩的帧压缩后的总字节数
+        public long getBytesOut() {
+            return mBytesOut.get();
+        }
+
+        /**
+         * @return  压缩后/压缩前，没有压缩过时返回1
+         */
+        public double getRatio() {
+            long in = mBytesIn.get();
+            return in == 0 ? 1.0 : (double) mBytesOut.get() / in;
+        }
+
+        @Override
+        public String toString() {
+            return "compressed=" + getCompressedCount() + " skipped=" + getSkippedCount()
+                    + " inflated=" + getInflatedCount() + " ratio=" + String.format("%.2f", getRatio());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.qq.blue;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+
+/**
+ * 一个连接上的几条逻辑通道.
+ * 每种帧类型固定属于一条通道：控制帧（握手、确认、额度、PING）、聊天消息、大块数据（文件）.
+ * FrameWriter 每条通道一个队列，控制通道最先发，聊天和大块数据按权重轮流发，
+ * 发文件时聊天消息和确认不用排在几十KB的文件块后面.
+ * 双方都声明 Handshake.FEATURE_FRAGMENT 时，超过分片长度的帧拆成 TYPE_FRAGMENT 发送，
+ * 其它通道的帧可以插在两个分片之间：
+ * FRAGMENT [通道 1字节，最高位表示最后一片][原帧类型 1字节][数据]
+ * 同一条通道的分片按顺序连续发送，接收方每条通道拼一个帧
+ */
+public class FrameLanes {
+
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_CHAT = 1;
+    public static final int LANE_BULK = 2;
+    public static final int LANE_COUNT = 3;
+
+    // 默认的分片长度，RFCOMM 上大约几十毫秒
+    public static final int FRAGMENT_SIZE = 4 * 1024;
+
+    static final int FRAGMENT_HEADER_LENGTH = 2;
+
+    private static final int LAST_FRAGMENT = 0x80;
+
+
+    private FrameLanes() {
+    }
+
+    // 帧类型所属的通道，压缩和分片在放进通道之后才做
+    public static int laneOf(int type) {
+        switch(type) {
+            case FrameCodec.TYPE_TEXT:
+            case FrameCodec.TYPE_RELAY:
+                return LANE_CHAT;
+            case FrameCodec.TYPE_FILE_OFFER:
+            case FrameCodec.TYPE_FILE_CHUNK:
+                return LANE_BULK;
+            default:
+                return LANE_CONTROL;
+        }
+    }
+
+    static void writeFragmentHeader(byte[] dst, int offset, int lane, int type, boolean last) {
+        dst[offset] = (byte) (last ? lane | LAST_FRAGMENT : lane);
+        dst[offset + 1] = (byte) type;
+    }
+
+
+    /**
+     * 接收方把 TYPE_FRAGMENT 拼回原来的帧.
+     * 只能在读线程中使用
+     */
+    public static class Assembler {
+        private final FrameCodec.FrameListener mListener;
+        private final int mMaxPayloadLength;
+
+        // 每条通道正在拼的帧，类型为-1表示没有
+        private final byte[][] mBuffers = new byte[LANE_COUNT][];
+        private final int[] mTypes = new int[LANE_COUNT];
+        private final int[] mCounts = new int[LANE_COUNT];
+
+        /**
+         * @param listener  拼好的帧交给它，buffer 只在回调期间有效
+         * @param maxPayloadLength  拼好的帧的最大长度，一般是协商出的最大负载长度
+         */
+        public Assembler(FrameCodec.FrameListener listener, int maxPayloadLength) {
+            mListener = listener;
+            mMaxPayloadLength = maxPayloadLength;
+            for(int i = 0; i < LANE_COUNT; i++) {
+                mTypes[i] = -1;
+            }
+        }
+
+        public void onFragment(byte[] buffer, int offset, int length) throws IOException {
+            if(length < FRAGMENT_HEADER_LENGTH) {
+                throw new ProtocolException("bad fragment length " + length);
+            }
+            int lane = buffer[offset] & ~LAST_FRAGMENT & 0xff;
+            boolean last = (buffer[offset] & LAST_FRAGMENT) != 0;
+            int type = buffer[offset + 1] & 0xff;
+            if(lane >= LANE_COUNT || type == FrameCodec.TYPE_FRAGMENT) {
+                throw new ProtocolException("bad fragment lane " + lane + " type " + type);
+            }
+            if(mTypes[lane] >= 0 && mTypes[lane] != type) {
+                throw new ProtocolException("fragment type " + type + " interleaved with " + mTypes[lane]);
+            }
+
+            int dataLength = length - FRAGMENT_HEADER_LENGTH;
+            int count = mCounts[lane] + dataLength;
+            if(count > mMaxPayloadLength) {
+                throw new ProtocolException("fragmented frame too long " + count);
+            }
+            byte[] frame = mBuffers[lane];
+            if(frame == null || frame.length < count) {
+                byte[] grown = new byte[Math.min(mMaxPayloadLength, Math.max(count, frame == null ? 0 : frame.length * 2))];
+                if(frame != null) {
+                    System.arraycopy(frame, 0, grown, 0, mCounts[lane]);
+                }
+                frame = grown;
+                mBuffers[lane] = frame;
+            }
+            System.arraycopy(buffer, offset + FRAGMENT_HEADER_LENGTH, frame, mCounts[lane], dataLength);
+            mCounts[lane] = count;
+            mTypes[lane] = type;
+            if(!last) return;
+
+            mTypes[lane] = -1;
+            mCounts[lane] = 0;
+            mListener.onFrame(type, frame, 0, count);
+        }
+    }
+}
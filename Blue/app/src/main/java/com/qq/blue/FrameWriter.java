@@ -0,0 +1,314 @@
+package com.qq.blue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 发送线程.
+ * 调用者只把帧放进有界队列，由这个线程一次取出所有待发送的帧，
+ * 拼到同一个缓冲区后一次写入socket，慢速链路不会阻塞UI线程，大量小消息也不会各自一次write().
+ * 每条逻辑通道（见 FrameLanes）一个队列：控制帧最先发，聊天消息和大块数据按权重轮流发，
+ * 设置了分片长度时大帧拆成分片，文件块发到一半也能插进聊天消息.
+ * 由 start() 交给 LifecycleExecutor 运行，不单独占一个线程对象
+ */
+public class FrameWriter implements Runnable {
+
+    // 一次最多合并多少帧
+    private static final int MAX_BATCH = 64;
+
+    // 默认的合并缓冲区大小
+    private static final int BATCH_BUFFER_SIZE = 8 * 1024;
+
+    // 每一轮聊天和大块数据通道最多发 权重*FRAGMENT_SIZE 字节，控制通道不限
+    private static final int CHAT_WEIGHT = 4;
+    private static final int BULK_WEIGHT = 1;
+
+
+    /**
+     * 发送结果回调，在发送线程中调用
+     */
+    public interface Listener {
+        void onFrameWritten(int type, byte[] payload);
+
+        void onWriteFailed(IOException e);
+    }
+
+
+    /**
+     * 一条通道的队列和正在分片发送的帧，只有发送线程访问队列以外的字段
+     */
+    private static final class Lane {
+        private final int mmId;
+        private final BlockingQueue<FrameBatch.Frame> mmQueue;
+        private final int mmQuantum;
+
+        // 从队列取出、还没发完的帧
+        private FrameBatch.Frame mmFrame;
+        // 已经开始分片时是压缩后的数据，否则为null
+        private byte[] mmData;
+        private int mmType;
+        private int mmLength;
+        private int mmPosition;
+        private int mmFragmentSize;
+        // 这一轮还能发的字节数
+        private int mmDeficit;
+
+        Lane(int id, int capacity, int weight) {
+            mmId = id;
+            mmQueue = new ArrayBlockingQueue<FrameBatch.Frame>(capacity);
+            mmQuantum = weight * FrameLanes.FRAGMENT_SIZE;
+        }
+    }
+
+
+    private final Listener mListener;
+    private final Lane[] mLanes = new Lane[FrameLanes.LANE_COUNT];
+    // 所有队列中的帧数，没有帧可发时发送线程在这里等
+    private final Semaphore mQueued = new Semaphore(0);
+    private final FrameBatch mBatch;
+    private volatile FrameCompressor mCompressor;
+    private volatile int mFragmentSize;
+    private LinkMetrics mMetrics;
+    private volatile LifecycleExecutor.Task mTask;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param outputStream  socket的输出流
+     * @param listener  发送结果回调
+     * @param capacity  每条通道的队列最多能放多少帧
+     */
+    public FrameWriter(OutputStream outputStream, Listener listener, int capacity) {
+        this(outputStream, listener, capacity, BATCH_BUFFER_SIZE);
+    }
+
+    /**
+     * @param batchSize 合并缓冲区大小，一般是握手时对方声明的接收缓冲区大小
+     */
+    public FrameWriter(OutputStream outputStream, Listener listener, int capacity, int batchSize) {
+        mListener = listener;
+        mLanes[FrameLanes.LANE_CONTROL] = new Lane(FrameLanes.LANE_CONTROL, capacity, 0);
+        mLanes[FrameLanes.LANE_CHAT] = new Lane(FrameLanes.LANE_CHAT, capacity, CHAT_WEIGHT);
+        mLanes[FrameLanes.LANE_BULK] = new Lane(FrameLanes.LANE_BULK, capacity, BULK_WEIGHT);
+        mBatch = new FrameBatch(outputStream, batchSize);
+    }
+
+    /**
+     * 把一帧放进它所属通道的发送队列，不会阻塞
+     * @return  队列已满或已取消时返回false
+     */
+    public boolean offer(int type, byte[] payload) {
+        if(mCancelled) return false;
+        if(!mLanes[FrameLanes.laneOf(type)].mmQueue.offer(new FrameBatch.Frame(type, payload))) {
+            return false;
+        }
+        mQueued.release();
+        return true;
+    }
+
+    /**
+     * 握手协商出压缩后设置，之后发送的帧能压小的都压缩发送.
+     * onFrameWritten() 收到的仍然是原来的负载
+     * @param compressor    null表示不压缩
+     */
+    public void setCompressor(FrameCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * 双方都声明 Handshake.FEATURE_FRAGMENT 后设置，之后开始发送的帧（压缩后）超过这个长度就分片发送.
+     * 分片不会超过合并缓冲区
+     * @param fragmentSize  0表示不分片
+     */
+    public void setFragmentSize(int fragmentSize) {
+        int max = mBatch.getBufferSize() - FrameCodec.HEADER_LENGTH - FrameLanes.FRAGMENT_HEADER_LENGTH;
+        mFragmentSize = Math.min(fragmentSize, max);
+    }
+
+    /**
+     * 统计写入的字节数、次数和阻塞时间，要在 start() 之前设置
+     */
+    public void setMetrics(LinkMetrics metrics) {
+        mMetrics = metrics;
+        mBatch.setMetrics(metrics);
+    }
+
+    // 排队等待发送的帧数
+    public int getQueueDepth() {
+        int depth = 0;
+        for(Lane lane : mLanes) {
+            depth += lane.mmQueue.size();
+        }
+        return depth;
+    }
+
+    // 某条通道排队等待发送的帧数
+    public int getQueueDepth(int lane) {
+        return mLanes[lane].mmQueue.size();
+    }
+
+    // 在 executor 的工作线程中开始发送
+    public void start(LifecycleExecutor executor) {
+        LifecycleExecutor.Task task = executor.execute(LifecycleExecutor.TASK_WRITER, this);
+        mTask = task;
+        //start() 期间被取消
+        if(mCancelled) {
+            task.cancel();
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<FrameBatch.Frame> written = new ArrayList<FrameBatch.Frame>(MAX_BATCH);
+        Lane control = mLanes[FrameLanes.LANE_CONTROL];
+        try {
+            while(!mCancelled) {
+                //所有通道都空了才等
+                if(!hasPending()) {
+                    mQueued.acquire();
+                    mQueued.release();
+                }
+                if(mMetrics != null) {
+                    mMetrics.onQueueDepth(getQueueDepth());
+                }
+
+                //每一轮先发完控制帧，再按权重轮流发其它通道，合并缓冲区写满或者都发完了才写出
+                int frames = 0;
+                int bytes = 0;
+                while(frames < MAX_BATCH && bytes < mBatch.getBufferSize() && hasPending()) {
+                    while(frames < MAX_BATCH && next(control)) {
+                        bytes += write(control, written);
+                        frames++;
+                    }
+                    for(int i = FrameLanes.LANE_CONTROL + 1; i < FrameLanes.LANE_COUNT; i++) {
+                        Lane lane = mLanes[i];
+                        if(!next(lane)) continue;
+                        //帧比一轮的额度大时攒几轮再发
+                        lane.mmDeficit += lane.mmQuantum;
+                        while(frames < MAX_BATCH && next(lane) && pieceLength(lane) <= lane.mmDeficit) {
+                            int length = write(lane, written);
+                            lane.mmDeficit -= length;
+                            bytes += length;
+                            frames++;
+                        }
+                        if(!next(lane)) {
+                            lane.mmDeficit = 0;
+                        }
+                    }
+                }
+                mBatch.flush();
+                if(mMetrics != null) {
+                    mMetrics.onFramesOut(frames);
+                }
+
+                //分片的帧在最后一片写出后才回调
+                for(int i = 0; i < written.size(); i++) {
+                    FrameBatch.Frame frame = written.get(i);
+                    mListener.onFrameWritten(frame.type, frame.payload);
+                }
+                written.clear();
+            }
+        }
+        catch(InterruptedException e) {
+            // cancel()
+        }
+        catch(IOException e) {
+            if(!mCancelled) {
+                mListener.onWriteFailed(e);
+            }
+        }
+        for(Lane lane : mLanes) {
+            lane.mmQueue.clear();
+            lane.mmFrame = null;
+            lane.mmData = null;
+        }
+    }
+
+    private boolean hasPending() {
+        for(Lane lane : mLanes) {
+            if(lane.mmFrame != null || !lane.mmQueue.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    // 通道的当前帧，发完了从队列取下一帧
+    private boolean next(Lane lane) throws InterruptedException {
+        if(lane.mmFrame == null) {
+            lane.mmFrame = lane.mmQueue.poll();
+            if(lane.mmFrame == null) return false;
+            //offer() 放进队列后才 release()，这里最多等一下
+            mQueued.acquire();
+        }
+        return true;
+    }
+
+    // 下一次 write() 要发的数据长度，还没开始发的帧按压缩前的长度算
+    private int pieceLength(Lane lane) {
+        if(lane.mmData != null) {
+            return Math.min(lane.mmFragmentSize, lane.mmLength - lane.mmPosition);
+        }
+        int length = lane.mmFrame.payload.length;
+        int fragmentSize = mFragmentSize;
+        return fragmentSize > 0 ? Math.min(fragmentSize, length) : length;
+    }
+
+    /**
+     * 发出通道当前帧的一整帧或者下一个分片，发完的帧放进 written
+     * @return  写入的数据长度，不含帧头
+     */
+    private int write(Lane lane, List<FrameBatch.Frame> written) throws IOException {
+        FrameBatch.Frame frame = lane.mmFrame;
+        if(lane.mmData == null) {
+            int type = frame.type;
+            byte[] data = frame.payload;
+            int length = data.length;
+            FrameCompressor compressor = mCompressor;
+            int compressed = compressor == null ? -1 : compressor.compress(type, data);
+            if(compressed > 0) {
+                type = FrameCodec.TYPE_COMPRESSED;
+                data = compressor.getOutput();
+                length = compressed;
+            }
+
+            int fragmentSize = mFragmentSize;
+            if(fragmentSize <= 0 || length <= fragmentSize) {
+                mBatch.append(type, data, 0, length);
+                lane.mmFrame = null;
+                written.add(frame);
+                return length;
+            }
+
+            //压缩缓冲区下一帧会复用，分片发完之前要留着
+            lane.mmData = compressed > 0 ? Arrays.copyOf(data, length) : data;
+            lane.mmType = type;
+            lane.mmLength = length;
+            lane.mmPosition = 0;
+            lane.mmFragmentSize = fragmentSize;
+        }
+
+        int length = Math.min(lane.mmFragmentSize, lane.mmLength - lane.mmPosition);
+        boolean last = lane.mmPosition + length == lane.mmLength;
+        mBatch.appendFragment(lane.mmId, lane.mmType, last, lane.mmData, lane.mmPosition, length);
+        lane.mmPosition += length;
+        if(last) {
+            lane.mmFrame = null;
+            lane.mmData = null;
+            written.add(frame);
+        }
+        return length;
+    }
+
+    // 停止发送线程，丢弃还没发送的帧
+    public void cancel() {
+        mCancelled = true;
+        LifecycleExecutor.Task task = mTask;
+        if(task != null) {
+            task.cancel();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.qq.blue;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * 把 ChatEventBus 的事件转换成原来的 MainActivity.MESSAGE_* 消息，由 Handler 切换线程.
+ * 事件只在回调期间有效，而 Handler 消息要等 Looper 处理，
+ * 所以 MESSAGE_READ 带的是消息的拷贝，不用也不能 recycle()，总线里的缓冲区照常归还
+ */
+public class HandlerEventListener implements ChatEventBus.Listener {
+
+    // 在发布事件的线程中直接转换，不再多切换一次线程
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Handler mHandler;
+
+    public HandlerEventListener(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * 订阅 bus 上的事件，以消息的形式发给 handler
+     */
+    public static ChatEventBus.Subscription subscribe(ChatEventBus bus, Handler handler) {
+        return bus.subscribe(new HandlerEventListener(handler), DIRECT);
+    }
+
+    @Override
+    public void onEvent(ChatEvent event) {
+        switch(event.getType()) {
+            case ChatEvent.TYPE_STATE_CHANGE:
+            case ChatEvent.TYPE_WRITE:
+                mHandler.obtainMessage(event.getType(), event.arg1, event.arg2, event.obj).sendToTarget();
+                break;
+            case ChatEvent.TYPE_READ: {
+                byte[] copy = Arrays.copyOf(event.getBuffer(), event.getLength());
+                mHandler.obtainMessage(event.getType(), event.arg1, event.arg2, copy).sendToTarget();
+                break;
+            }
+            case ChatEvent.TYPE_DEVICE_NAME: {
+                Message message = mHandler.obtainMessage(MainActivity.MESSAGE_DEVICE_NAME);
+                Bundle bundle = new Bundle();
+                bundle.putString(MainActivity.DEVICE_NAME, event.getDeviceName());
+                bundle.putString(MainActivity.DEVICE_ADDRESS, event.getDeviceAddress());
+                bundle.putLong(MainActivity.HISTORY_COUNT, event.getHistoryCount());
+                message.setData(bundle);
+                mHandler.sendMessage(message);
+                break;
+            }
+            case ChatEvent.TYPE_TOAST: {
+                Message message = mHandler.obtainMessage(MainActivity.MESSAGE_TOAST);
+                Bundle bundle = new Bundle();
+                bundle.putString(MainActivity.TOAST, event.getText());
+                message.setData(bundle);
+                mHandler.sendMessage(message);
+                break;
+            }
+        }
+    }
+}
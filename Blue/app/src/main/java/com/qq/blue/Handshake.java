@@ -0,0 +1,142 @@
+package com.qq.blue;
+
+import java.net.ProtocolException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接握手.
+ * 连接建立后双方先互发一个 TYPE_HELLO 帧，收到对方的 HELLO 之后才算连上，在这之前不能发其它帧.
+ * HELLO 的负载：[协议版本 1字节][最低兼容版本 1字节][最大负载长度 4字节][接收缓冲区大小 4字节][功能位 4字节]
+ * 双方取两边都支持的最高版本、较小的负载长度和缓冲区大小，功能位取交集，
+ * 每个连接按两边都支持的最快方式工作，而不是固定用最保守的方式
+ */
+public class Handshake {
+
+    public static final int PROTOCOL_VERSION = 1;
+    public static final int MIN_PROTOCOL_VERSION = 1;
+
+    //功能位
+    public static final int FEATURE_COMPRESSION = 1;        //能解压 TYPE_COMPRESSED 帧
+    public static final int FEATURE_FILE_TRANSFER = 1 << 1; //支持 FILE_* 帧
+    public static final int FEATURE_RESUME = 1 << 2;        //重连后补发消息，见 ResumableSession
+    public static final int FEATURE_PING = 1 << 3;          //回复 TYPE_PING，见 LatencyProbe
+    public static final int FEATURE_CREDIT = 1 << 4;        //按额度发送聊天消息，见 CreditFlow
+    public static final int FEATURE_FRAGMENT = 1 << 5;      //能拼回 TYPE_FRAGMENT，见 FrameLanes
+
+    // 等待对方 HELLO 的时间，超时就断开
+    public static final long TIMEOUT_MILLIS = 5000;
+
+    static final int HELLO_LENGTH = 14;
+
+    // 协商结果的下限，对方声明得比这还小时不能工作，拒绝连接
+    private static final int MIN_PAYLOAD_LENGTH = 1024;
+    private static final int MIN_BUFFER_SIZE = 256;
+
+    private final int mVersion;
+    private final int mMaxPayloadLength;
+    private final int mBufferSize;
+    private final int mFeatures;
+
+    /**
+     * 本机的参数，最高版本是 PROTOCOL_VERSION
+     * @param maxPayloadLength  本机能接收的最大负载长度
+     * @param bufferSize    本机每次读取的缓冲区大小，对方按这个大小合并发送
+     * @param features  本机支持的功能位
+     */
+    public Handshake(int maxPayloadLength, int bufferSize, int features) {
+        this(PROTOCOL_VERSION, maxPayloadLength, bufferSize, features);
+    }
+
+    private Handshake(int version, int maxPayloadLength, int bufferSize, int features) {
+        mVersion = version;
+        mMaxPayloadLength = maxPayloadLength;
+        mBufferSize = bufferSize;
+        mFeatures = features;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getMaxPayloadLength() {
+        return mMaxPayloadLength;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public int getFeatures() {
+        return mFeatures;
+    }
+
+    public boolean hasFeature(int feature) {
+        return (mFeatures & feature) == feature;
+    }
+
+    // 本机的 HELLO 帧负载
+    public byte[] encode() {
+        byte[] hello = new byte[HELLO_LENGTH];
+        hello[0] = (byte) mVersion;
+        hello[1] = (byte) MIN_PROTOCOL_VERSION;
+        writeInt(hello, 2, mMaxPayloadLength);
+        writeInt(hello, 6, mBufferSize);
+        writeInt(hello, 10, mFeatures);
+        return hello;
+    }
+
+    /**
+     * 用对方的 HELLO 和本机的参数协商出这个连接使用的参数
+     * @throws ProtocolException    HELLO 格式不对、双方没有共同支持的版本，或者对方的限制低于下限
+     */
+    public Handshake negotiate(byte[] buffer, int offset, int length) throws ProtocolException {
+        //新版本可能在后面加字段，只检查最短长度
+        if(length < HELLO_LENGTH) {
+            throw new ProtocolException("bad hello length " + length);
+        }
+        int remoteVersion = buffer[offset] & 0xff;
+        int remoteMinVersion = buffer[offset + 1] & 0xff;
+        int version = Math.min(mVersion, remoteVersion);
+        if(version < Math.max(MIN_PROTOCOL_VERSION, remoteMinVersion)) {
+            throw new ProtocolException("incompatible protocol version " + remoteVersion
+                    + " (min " + remoteMinVersion + "), local " + mVersion);
+        }
+
+        int maxPayloadLength = limit("max payload length", mMaxPayloadLength,
+                FrameCodec.readLength(buffer, offset + 2), MIN_PAYLOAD_LENGTH);
+        int bufferSize = limit("buffer size", mBufferSize, FrameCodec.readLength(buffer, offset + 6), MIN_BUFFER_SIZE);
+        int features = mFeatures & FrameCodec.readLength(buffer, offset + 10);
+        return new Handshake(version, maxPayloadLength, bufferSize, features);
+    }
+
+    /**
+     * 取两边较小的限制，不会超过对方声明的值；最高位为1的值是负数，同样低于下限
+     */
+    private static int limit(String name, int local, int remote, int floor) throws ProtocolException {
+        if(remote < floor) {
+            throw new ProtocolException(name + " " + remote + " below minimum " + floor);
+        }
+        return Math.min(local, remote);
+    }
+
+    /**
+     * TIMEOUT_MILLIS 后在共用的定时线程中执行 onTimeout，握手完成后要取消返回的定时
+     */
+    public static ScheduledFuture<?> scheduleTimeout(Runnable onTimeout) {
+        return LifecycleExecutor.scheduler().schedule(onTimeout, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void writeInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + mVersion + " maxPayload=" + mMaxPayloadLength + " buffer=" + mBufferSize
+                + " features=0x" + Integer.toHexString(mFeatures);
+    }
+}
@@ -0,0 +1,91 @@
+package com.qq.blue;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按设备保存的聊天记录，每个设备一个 MessageLog，放在以设备地址命名的子目录中.
+ * 断开、重连和重启应用后记录都还在
+ */
+public class HistoryStore {
+
+    private static final String TAG = "HistoryStore";
+
+    private final File mDirectory;
+    private final Map<String, MessageLog> mLogs = new HashMap<String, MessageLog>();
+    private boolean mClosed;
+
+    public HistoryStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * 取得这个设备的聊天记录，第一次用到时才打开
+     */
+    public synchronized MessageLog get(String address) throws IOException {
+        if(mClosed) throw new IOException("history store closed");
+        MessageLog log = mLogs.get(address);
+        if(log == null) {
+            //地址里的冒号不能出现在某些文件系统的文件名中
+            log = new MessageLog(new File(mDirectory, address.replace(':', '_')));
+            mLogs.put(address, log);
+        }
+        return log;
+    }
+
+    /**
+     * 追加一条消息，失败只记录日志，不影响收发
+     * @return  消息的编号，失败时返回-1
+     */
+    public long append(String address, boolean outgoing, byte[] message, int offset, int length) {
+        try {
+            return get(address).append(outgoing, System.currentTimeMillis(), message, offset, length);
+        }
+        catch(IOException e) {
+            Log.e(TAG, "unable to append to history of " + address, e);
+            return -1;
+        }
+    }
+
+    /**
+     * @return  这个设备的消息总数，打不开时返回0
+     */
+    public long getCount(String address) {
+        try {
+            return get(address).getCount();
+        }
+        catch(IOException e) {
+            Log.e(TAG, "unable to open history of " + address, e);
+            return 0;
+        }
+    }
+
+    // 把所有缓冲的记录写到文件中，应用进入后台时调用
+    public synchronized void flush() {
+        for(Map.Entry<String, MessageLog> entry : mLogs.entrySet()) {
+            try {
+                entry.getValue().flush();
+            }
+            catch(IOException e) {
+                Log.e(TAG, "flush() of history " + entry.getKey() + " failed", e);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        for(Map.Entry<String, MessageLog> entry : mLogs.entrySet()) {
+            try {
+                entry.getValue().close();
+            }
+            catch(IOException e) {
+                Log.e(TAG, "close() of history " + entry.getKey() + " failed", e);
+            }
+        }
+        mLogs.clear();
+        mClosed = true;
+    }
+}
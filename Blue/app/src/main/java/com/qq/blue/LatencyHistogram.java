@@ -0,0 +1,96 @@
+package com.qq.blue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定内存的延迟直方图，单位微秒.
+ * 小于 2*SUB_BUCKETS 的值每个值一个桶，更大的值按2的幂分段，每段再分 SUB_BUCKETS 个桶，
+ * 误差不超过 1/SUB_BUCKETS；从1微秒到几天只要几百个计数.
+ * record() 只有原子操作，可以在多个线程中同时调用
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+
+    public void record(long micros) {
+        if(micros < 0) micros = 0;
+        mCounts.incrementAndGet(bucket(micros));
+        mCount.incrementAndGet();
+        mSum.addAndGet(micros);
+        long max;
+        while(micros > (max = mMax.get())) {
+            if(mMax.compareAndSet(max, micros)) break;
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percentile    0到100
+     * @return  至少 percentile% 的记录不大于这个值，按桶的上限算，没有记录时返回0
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if(count == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if(seen >= target) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    static int bucket(long value) {
+        if(value < LINEAR_LIMIT) return (int) value;
+        //保留最高位后面 SUB_BUCKET_BITS 位
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    // 桶中最大的值
+    static long upperBound(int bucket) {
+        if(bucket < LINEAR_LIMIT) return bucket;
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " p50=" + getPercentile(50) + "us p99=" + getPercentile(99)
+                + "us max=" + getMax() + "us mean=" + getMean() + "us";
+    }
+}
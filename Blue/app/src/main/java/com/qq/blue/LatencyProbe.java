@@ -0,0 +1,112 @@
+package com.qq.blue;
+
+import java.net.ProtocolException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组往返延迟探测.
+ * 隔一段时间发一个 TYPE_PING：[探测ID 4字节][序号 4字节][发送时的 System.nanoTime() 8字节]，
+ * 对方不交给UI，原样放进 TYPE_PONG 发回；收到后用当前时间减去负载里的发送时间，
+ * 不用记录每个 PING，也不依赖两端的时钟.
+ * 双方都声明 Handshake.FEATURE_PING 时才能用
+ */
+public class LatencyProbe {
+
+    static final int PING_LENGTH = 16;
+
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    private final int mId = sNextId.incrementAndGet();
+    private final int mCount;
+    private final CountDownLatch mPending;
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+    private volatile int mSent;
+
+    /**
+     * @param count 发送的 PING 个数
+     */
+    public LatencyProbe(int count) {
+        mCount = count;
+        mPending = new CountDownLatch(count);
+    }
+
+    /**
+     * 发送全部 PING 并等待 PONG，会阻塞调用线程，不能在UI线程中调用
+     * @param intervalMillis    两个 PING 之间的间隔
+     * @param timeoutMillis 发完后等待剩余 PONG 的时间，超时没回来的算丢失
+     * @return  收到的往返时间的分布
+     */
+    public LatencyHistogram run(FileTransferManager.FrameSender sender, long intervalMillis, long timeoutMillis)
+            throws InterruptedException {
+        for(int i = 0; i < mCount; i++) {
+            if(i > 0) {
+                Thread.sleep(intervalMillis);
+            }
+            if(sender.offer(FrameCodec.TYPE_PING, encodePing(i))) {
+                mSent++;
+            }
+            else {
+                //发送队列满了，这一个不算
+                mPending.countDown();
+            }
+        }
+        mPending.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return mHistogram;
+    }
+
+    /**
+     * 收到 TYPE_PONG，在读线程中调用
+     */
+    public void onPong(byte[] buffer, int offset, int length) throws ProtocolException {
+        if(length < PING_LENGTH) {
+            throw new ProtocolException("bad pong length " + length);
+        }
+        //之前超时的探测迟到的回复
+        if(FrameCodec.readLength(buffer, offset) != mId) return;
+        long sentAt = 0;
+        for(int i = 0; i < 8; i++) {
+            sentAt = (sentAt << 8) | (buffer[offset + 8 + i] & 0xff);
+        }
+        mHistogram.record((System.nanoTime() - sentAt) / 1000);
+        mPending.countDown();
+    }
+
+    public LatencyHistogram getHistogram() {
+        return mHistogram;
+    }
+
+    // 已经发出的 PING 个数
+    public int getSentCount() {
+        return mSent;
+    }
+
+    // 发出后没收到回复的个数，run() 返回后才准确
+    public long getLostCount() {
+        return mSent - mHistogram.getCount();
+    }
+
+    private byte[] encodePing(int sequence) {
+        byte[] ping = new byte[PING_LENGTH];
+        writeInt(ping, 0, mId);
+        writeInt(ping, 4, sequence);
+        long now = System.nanoTime();
+        for(int i = 0; i < 8; i++) {
+            ping[8 + i] = (byte) (now >>> (56 - 8 * i));
+        }
+        return ping;
+    }
+
+    private static void writeInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + mSent + " lost=" + getLostCount() + " " + mHistogram;
+    }
+}
@@ -0,0 +1,305 @@
+package com.qq.blue;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 连接生命周期中的阻塞任务（监听、连接、读、写、发送文件、集线器的轮询和工作任务）都在这里执行，
+ * 不再每次状态切换都新建线程.
+ * 默认是最多 WORKER_LIMIT 个线程的线程池，线程都忙时任务排队，队列也满了就拒绝，线程数有明确的上限；
+ * 空闲的线程留一段时间给下一个任务复用，频繁断线重连时不用反复创建线程.
+ * 运行在有虚拟线程的JVM上时可以用 virtualThreads() 改成每个任务一个虚拟线程.
+ * scheduler() 是整个应用共用的定时线程，握手超时、统计日志、延迟提交都用它.
+ * 每类任务统计从提交到开始运行的时间和运行时间，单位微秒.
+ * 不依赖 Android，可以在普通JVM上测试和压测
+ */
+public class LifecycleExecutor {
+
+    //任务类型
+    public static final int TASK_ACCEPT = 0;
+    public static final int TASK_CONNECT = 1;
+    public static final int TASK_CONNECTED = 2;
+    public static final int TASK_WRITER = 3;
+    public static final int TASK_FILE_SEND = 4;
+    public static final int TASK_HUB_POLL = 5;
+    public static final int TASK_HUB_WORKER = 6;
+    static final int TASK_COUNT = 7;
+
+    private static final String[] TASK_NAMES = {"accept", "connect", "connected", "writer",
+            "file-send", "hub-poll", "hub-worker"};
+
+    // 单个连接时有监听、连接、读、写、发送文件，集线器模式下有监听、轮询和工作任务，
+    // 加上同时连接的几个候选设备和刚取消还没退出的任务
+    static final int WORKER_LIMIT = 16;
+
+    // 线程都忙时最多排队的任务数，再多就拒绝
+    static final int QUEUE_LIMIT = 64;
+
+    // 空闲线程保留的时间
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    // 所有实例和其它类共用的定时线程
+    private static ScheduledExecutorService sScheduler;
+
+    private final ExecutorService mExecutor;
+    private final boolean mVirtual;
+
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicLong mThreadsCreated = new AtomicLong();
+    // 提交时线程都在忙、需要排队的任务数
+    private final AtomicLong mQueued = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLongArray mStarted = new AtomicLongArray(TASK_COUNT);
+    private final LatencyHistogram[] mDispatch = new LatencyHistogram[TASK_COUNT];
+    private final LatencyHistogram[] mRun = new LatencyHistogram[TASK_COUNT];
+
+
+    /**
+     * 提交后的一个任务，用来取消
+     */
+    public final class Task implements Runnable {
+        private final int mmKind;
+        private final Runnable mmRunnable;
+        private volatile long mmSubmittedAt;
+        private volatile boolean mmCancelled;
+        private Future<?> mmDelay;
+        // 正在运行的线程，只在 synchronized(this) 中访问，运行结束后不会再被中断
+        private Thread mmThread;
+
+        Task(int kind, Runnable runnable) {
+            mmKind = kind;
+            mmRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            synchronized(this) {
+                if(mmCancelled) return;
+                mmThread = Thread.currentThread();
+            }
+            mStarted.incrementAndGet(mmKind);
+            mDispatch[mmKind].record((start - mmSubmittedAt) / 1000);
+            mActive.incrementAndGet();
+            Thread thread = Thread.currentThread();
+            String name = thread.getName();
+            thread.setName(TASK_NAMES[mmKind]);
+            try {
+                mmRunnable.run();
+            }
+            finally {
+                synchronized(this) {
+                    mmThread = null;
+                    //cancel() 的中断不能留给线程池的下一个任务
+                    Thread.interrupted();
+                }
+                thread.setName(name);
+                mActive.decrementAndGet();
+                mRun[mmKind].record((System.nanoTime() - start) / 1000);
+            }
+        }
+
+        /**
+         * 还没开始的不再运行，正在运行的被中断
+         */
+        public synchronized void cancel() {
+            mmCancelled = true;
+            if(mmDelay != null) {
+                mmDelay.cancel(false);
+            }
+            if(mmThread != null) {
+                mmThread.interrupt();
+            }
+        }
+
+        public boolean isCancelled() {
+            return mmCancelled;
+        }
+
+        private void submit() {
+            mmSubmittedAt = System.nanoTime();
+            if(!mVirtual && mActive.get() >= WORKER_LIMIT) {
+                mQueued.incrementAndGet();
+            }
+            try {
+                mExecutor.execute(this);
+            }
+            catch(RejectedExecutionException e) {
+                //已经关闭，或者排队的任务太多
+                mRejected.incrementAndGet();
+                mmCancelled = true;
+            }
+        }
+    }
+
+
+    /**
+     * 有上限的线程池，Android 和没有虚拟线程的JVM都用这个
+     */
+    public LifecycleExecutor() {
+        //核心线程数等于上限，线程没满时新任务总是开新线程，满了才排队；空闲的线程超时后退出
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKER_LIMIT, WORKER_LIMIT,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_LIMIT),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Lifecycle-" + mThreadsCreated.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        init();
+        mExecutor = executor;
+        mVirtual = false;
+    }
+
+    private LifecycleExecutor(ExecutorService executor) {
+        init();
+        mExecutor = executor;
+        mVirtual = true;
+    }
+
+    private void init() {
+        for(int i = 0; i < TASK_COUNT; i++) {
+            mDispatch[i] = new LatencyHistogram();
+            mRun[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * 每个任务一个虚拟线程，阻塞的读写不占用系统线程
+     * @return  JVM 不支持虚拟线程（包括 Android）时返回null
+     */
+    public static LifecycleExecutor virtualThreads() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new LifecycleExecutor((ExecutorService) method.invoke(null));
+        }
+        catch(Exception e) {
+            return null;
+        }
+    }
+
+    public boolean isVirtual() {
+        return mVirtual;
+    }
+
+    /**
+     * 在工作线程中运行 runnable
+     * @param kind  TASK_*，按类型统计
+     */
+    public Task execute(int kind, Runnable runnable) {
+        Task task = new Task(kind, runnable);
+        task.submit();
+        return task;
+    }
+
+    /**
+     * delayMillis 之后再运行，等待期间不占用工作线程
+     */
+    public Task schedule(int kind, Runnable runnable, long delayMillis) {
+        if(delayMillis <= 0) {
+            return execute(kind, runnable);
+        }
+        final Task task = new Task(kind, runnable);
+        synchronized(task) {
+            task.mmDelay = scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    task.submit();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        return task;
+    }
+
+    /**
+     * 不再接受新任务，正在运行的任务由调用者先取消
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return mExecutor.isShutdown();
+    }
+
+    // 正在运行的任务数
+    public int getActiveCount() {
+        return mActive.get();
+    }
+
+    // 创建过的线程数，远小于运行过的任务数说明线程在被复用
+    public long getThreadsCreated() {
+        return mThreadsCreated.get();
+    }
+
+    // 提交时所有线程都在忙、需要排队的任务数，经常不为0说明 WORKER_LIMIT 太小或者有任务没有退出
+    public long getQueuedCount() {
+        return mQueued.get();
+    }
+
+    // 关闭后或者队列满时被拒绝、没有运行的任务数
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    public long getStartedCount(int kind) {
+        return mStarted.get(kind);
+    }
+
+    // 从提交（延迟任务从延迟结束）到开始运行的时间
+    public LatencyHistogram getDispatchHistogram(int kind) {
+        return mDispatch[kind];
+    }
+
+    // 任务的运行时间，连接和读写任务就是连接持续的时间
+    public LatencyHistogram getRunHistogram(int kind) {
+        return mRun[kind];
+    }
+
+    /**
+     * 整个应用共用的定时线程，只能执行很快就结束的回调，阻塞的工作要交给 execute()
+     */
+    static synchronized ScheduledExecutorService scheduler() {
+        if(sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "LifecycleScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sScheduler;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(mVirtual ? "virtual" : "pool")
+                .append(" active=").append(getActiveCount())
+                .append(" threads=").append(getThreadsCreated())
+                .append(" queued=").append(getQueuedCount())
+                .append(" rejected=").append(getRejectedCount());
+        for(int i = 0; i < TASK_COUNT; i++) {
+            builder.append("\n  ").append(TASK_NAMES[i]).append(" started=").append(mStarted.get(i))
+                    .append(" dispatch p50=").append(mDispatch[i].getPercentile(50))
+                    .append("us p99=").append(mDispatch[i].getPercentile(99))
+                    .append("us run p50=").append(mRun[i].getPercentile(50)).append("us");
+        }
+        return builder.toString();
+    }
+}
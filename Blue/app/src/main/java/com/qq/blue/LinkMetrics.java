@@ -0,0 +1,137 @@
+package com.qq.blue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个连接的收发统计.
+ * 在读线程、发送线程中更新，都是原子计数，不加锁；读取时用 snapshot() 得到一份拷贝
+ */
+public class LinkMetrics {
+
+    private final String mAddress;
+    private final long mConnectedAt;
+
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mFramesIn = new AtomicLong();
+    private final AtomicLong mFramesOut = new AtomicLong();
+    private final AtomicLong mReads = new AtomicLong();
+    private final AtomicLong mWrites = new AtomicLong();
+    // 阻塞在输出流 write()/flush() 中的时间
+    private final AtomicLong mWriteStallNanos = new AtomicLong();
+    private final AtomicLong mMaxQueueDepth = new AtomicLong();
+    private volatile long mDisconnectedAt;
+
+    LinkMetrics(String address) {
+        mAddress = address;
+        mConnectedAt = System.currentTimeMillis();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    // 一次 read() 读到 bytes 字节
+    void onRead(int bytes) {
+        mReads.incrementAndGet();
+        mBytesIn.addAndGet(bytes);
+    }
+
+    // 解码出一帧，压缩帧只按解压后的算一次
+    void onFrameIn() {
+        mFramesIn.incrementAndGet();
+    }
+
+    // 一次写入输出流
+    void onWrite(int bytes, long stallNanos) {
+        mWrites.incrementAndGet();
+        mBytesOut.addAndGet(bytes);
+        mWriteStallNanos.addAndGet(stallNanos);
+    }
+
+    void onFramesOut(int count) {
+        mFramesOut.addAndGet(count);
+    }
+
+    // 发送线程每次取帧时的队列长度，只记最大值
+    void onQueueDepth(int depth) {
+        long max;
+        while(depth > (max = mMaxQueueDepth.get())) {
+            if(mMaxQueueDepth.compareAndSet(max, depth)) break;
+        }
+    }
+
+    void onDisconnected() {
+        mDisconnectedAt = System.currentTimeMillis();
+    }
+
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    public long getFramesIn() {
+        return mFramesIn.get();
+    }
+
+    public long getFramesOut() {
+        return mFramesOut.get();
+    }
+
+    public Snapshot snapshot(long reconnects) {
+        return new Snapshot(this, reconnects);
+    }
+
+
+    /**
+     * 某一时刻的统计，各项分别读取，相互之间不保证一致
+     */
+    public static class Snapshot {
+        public final String address;
+        public final long connectedAt;
+        // 还连着时为0
+        public final long disconnectedAt;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final long framesIn;
+        public final long framesOut;
+        public final long reads;
+        public final long writes;
+        public final long writeStallMillis;
+        public final long maxQueueDepth;
+        // 这个设备断线后自动重连的次数，不只是这个连接
+        public final long reconnects;
+
+        Snapshot(LinkMetrics metrics, long reconnects) {
+            address = metrics.mAddress;
+            connectedAt = metrics.mConnectedAt;
+            disconnectedAt = metrics.mDisconnectedAt;
+            bytesIn = metrics.mBytesIn.get();
+            bytesOut = metrics.mBytesOut.get();
+            framesIn = metrics.mFramesIn.get();
+            framesOut = metrics.mFramesOut.get();
+            reads = metrics.mReads.get();
+            writes = metrics.mWrites.get();
+            writeStallMillis = metrics.mWriteStallNanos.get() / 1000000;
+            maxQueueDepth = metrics.mMaxQueueDepth.get();
+            this.reconnects = reconnects;
+        }
+
+        // 平均每次 read() 读到的字节数，越大说明每次系统调用搬运的数据越多
+        public long getAverageReadSize() {
+            return reads == 0 ? 0 : bytesIn / reads;
+        }
+
+        @Override
+        public String toString() {
+            return address + (disconnectedAt == 0 ? " connected" : " disconnected")
+                    + " in=" + bytesIn + "B/" + framesIn + "f out=" + bytesOut + "B/" + framesOut + "f"
+                    + " reads=" + reads + " avgRead=" + getAverageReadSize() + "B"
+                    + " writes=" + writes + " stall=" + writeStallMillis + "ms"
+                    + " maxQueue=" + maxQueueDepth + " reconnects=" + reconnects;
+        }
+    }
+}
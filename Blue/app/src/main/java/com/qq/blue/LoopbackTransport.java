@@ -0,0 +1,258 @@
+package com.qq.blue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 进程内回环传输.
+ * 同一个 Network 里的多个 LoopbackTransport 通过内存管道互相连接，不需要蓝牙硬件，
+ * 用于在JVM上测试和压测连接、收发流程
+ */
+public class LoopbackTransport implements ChatTransport {
+
+    // 每个方向管道的缓冲区大小
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    /**
+     * 一个虚拟网络，按地址保存正在监听的一方
+     */
+    public static class Network {
+        private final ConcurrentHashMap<String, LoopbackAcceptor> mAcceptors =
+                new ConcurrentHashMap<String, LoopbackAcceptor>();
+    }
+
+
+    private final Network mNetwork;
+    private final String mLocalAddress;
+
+    /**
+     * @param network   所在的虚拟网络
+     * @param localAddress  本端地址，监听时对方用这个地址连接
+     */
+    public LoopbackTransport(Network network, String localAddress) {
+        mNetwork = network;
+        mLocalAddress = localAddress;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        LoopbackAcceptor acceptor = new LoopbackAcceptor();
+        if(mNetwork.mAcceptors.putIfAbsent(mLocalAddress, acceptor) != null) {
+            throw new IOException(mLocalAddress + " is already listening");
+        }
+        return acceptor;
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        return new LoopbackConnection(address, null, null);
+    }
+
+
+    private class LoopbackAcceptor implements Acceptor {
+        // 放进队列表示已经关闭
+        private final LoopbackConnection mmClosed = new LoopbackConnection(null, null, null);
+        private final BlockingQueue<LoopbackConnection> mmPending = new LinkedBlockingQueue<LoopbackConnection>();
+        private volatile boolean mmIsClosed;
+
+        @Override
+        public Connection accept() throws IOException {
+            LoopbackConnection connection;
+            try {
+                connection = mmPending.take();
+            }
+            catch(InterruptedException e) {
+                throw new InterruptedIOException("accept() interrupted");
+            }
+            if(connection == mmClosed) {
+                mmPending.offer(mmClosed);
+                throw new IOException("acceptor closed");
+            }
+            return connection;
+        }
+
+        void enqueue(LoopbackConnection connection) throws IOException {
+            if(mmIsClosed) {
+                throw new ConnectException("connection refused");
+            }
+            mmPending.offer(connection);
+        }
+
+        @Override
+        public void close() {
+            mmIsClosed = true;
+            mNetwork.mAcceptors.remove(mLocalAddress, this);
+            mmPending.offer(mmClosed);
+        }
+    }
+
+
+    private class LoopbackConnection implements Connection {
+        private final String mmRemoteAddress;
+        private Pipe mmIn;
+        private Pipe mmOut;
+
+        LoopbackConnection(String remoteAddress, Pipe in, Pipe out) {
+            mmRemoteAddress = remoteAddress;
+            mmIn = in;
+            mmOut = out;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if(mmIn != null) return;
+            LoopbackAcceptor acceptor = mNetwork.mAcceptors.get(mmRemoteAddress);
+            if(acceptor == null) {
+                throw new ConnectException("no one is listening on " + mmRemoteAddress);
+            }
+            Pipe toServer = new Pipe(PIPE_SIZE);
+            Pipe toClient = new Pipe(PIPE_SIZE);
+            acceptor.enqueue(new LoopbackConnection(mLocalAddress, toServer, toClient));
+            mmIn = toClient;
+            mmOut = toServer;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if(mmIn == null) throw new IOException("not connected");
+            return mmIn.mInput;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if(mmOut == null) throw new IOException("not connected");
+            return mmOut.mOutput;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public synchronized void close() {
+            if(mmIn != null) mmIn.close();
+            if(mmOut != null) mmOut.close();
+        }
+    }
+
+
+    /**
+     * 单向的内存管道，环形缓冲区.
+     * 任一端关闭后，读端读完剩余数据返回-1，写端抛出异常
+     */
+    static class Pipe {
+        private final byte[] mBuffer;
+        private int mReadPos;
+        private int mCount;
+        private boolean mClosed;
+
+        final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized(Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            try {
+                while(mCount == 0 && !mClosed) {
+                    wait();
+                }
+            }
+            catch(InterruptedException e) {
+                throw new InterruptedIOException("read() interrupted");
+            }
+            if(mCount == 0) return -1;
+
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mReadPos);
+            System.arraycopy(mBuffer, mReadPos, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mReadPos = (mReadPos + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while(len > 0) {
+                    while(mCount == mBuffer.length && !mClosed) {
+                        wait();
+                    }
+                    if(mClosed) throw new IOException("pipe closed");
+
+                    int writePos = (mReadPos + mCount) % mBuffer.length;
+                    int n = Math.min(len, mBuffer.length - mCount);
+                    int first = Math.min(n, mBuffer.length - writePos);
+                    System.arraycopy(b, off, mBuffer, writePos, first);
+                    System.arraycopy(b, off + first, mBuffer, 0, n - first);
+                    mCount += n;
+                    off += n;
+                    len -= n;
+                    notifyAll();
+                }
+            }
+            catch(InterruptedException e) {
+                throw new InterruptedIOException("write() interrupted");
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
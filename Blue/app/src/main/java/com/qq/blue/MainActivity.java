@@ -5,7 +5,6 @@ import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
 import android.graphics.YuvImage;
 import android.os.Handler;
-import android.os.Message;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
@@ -14,13 +13,19 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
-import android.widget.ArrayAdapter;
+import android.widget.AbsListView;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import static android.bluetooth.BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE;
 import static android.bluetooth.BluetoothAdapter.STATE_DISCONNECTING;
 import static android.view.Window.FEATURE_CUSTOM_TITLE;
@@ -34,23 +39,39 @@ public class MainActivity extends Activity{
     //从BluetoothChatService处理程序接收的键名称
     public static final String DEVICE_NAME = "device_name";
     public static final String TOAST = "toast";
+    public static final String DEVICE_ADDRESS = "device_address";
+    public static final String HISTORY_COUNT = "history_count";
 
-    // 从BluetoothChatService处理程序发送的消息类型
-    public static final int MESSAGE_STATE_CHANGE = 1;
-    public static final int MESSAGE_READ = 2;
-    public static final int MESSAGE_WRITE = 3;
-    public static final int MESSAGE_DEVICE_NAME = 4;
-    public static final int MESSAGE_TOAST = 5;
+    // 从BluetoothChatService发出的事件类型
+    public static final int MESSAGE_STATE_CHANGE = ChatEvent.TYPE_STATE_CHANGE;
+    public static final int MESSAGE_READ = ChatEvent.TYPE_READ;
+    public static final int MESSAGE_WRITE = ChatEvent.TYPE_WRITE;
+    public static final int MESSAGE_DEVICE_NAME = ChatEvent.TYPE_DEVICE_NAME;
+    public static final int MESSAGE_TOAST = ChatEvent.TYPE_TOAST;
 
     //意图请求代码
     private static final int REQUEST_CONNECT_DEVICE = 1;
     private static final int REQUEST_ENABLE_BT = 2;
 
+    //连接统计写到日志的间隔
+    private static final long METRICS_DUMP_PERIOD_MS = 60 * 1000;
+
     // 已连接设备名字
     private String mConnectedDeviceName;
+    private String mConnectedDeviceAddress;
+    // 连接时这个设备已有的聊天记录条数，之后的消息通过 MESSAGE_READ/MESSAGE_WRITE 显示
+    private long mHistoryCount;
+
+    //聊天记录
+    private HistoryStore mHistory;
+    //打开、分页读取和关闭聊天记录，不在UI线程中读写文件
+    private ExecutorService mHistoryExecutor;
+
+    //会话列表，只在内存中保留最近的一部分，其余的从聊天记录中分页读取
+    private ConversationAdapter mConversationAdapter;
 
-    //用于会话线程的数组适配器
-    private ArrayAdapter mConversationArrayAdapter;
+    //收到的消息每帧合并显示一次
+    private MessageBatcher mMessageBatcher;
 
     //本地蓝牙适配器
     private BluetoothAdapter mBluetoothAdapter;
@@ -125,13 +146,32 @@ public class MainActivity extends Activity{
     protected void onStop() {
         super.onStop();
         Log.e(TAG, "onStop");
+        //进入后台后进程随时可能被杀掉
+        if (mHistory != null) {
+            mHistory.flush();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         if (mChatService != null) {
-            mChatService.stop();
+            mChatService.shutdown();
+            mChatService.getMetrics().stopDump();
+        }
+        if (mHistory != null) {
+            //排在还没读完的分页后面
+            final HistoryStore history = mHistory;
+            mHistoryExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    history.close();
+                }
+            });
+            mHistoryExecutor.shutdown();
+        }
+        if (mMessageBatcher != null) {
+            mMessageBatcher.clear();
         }
         Log.e(TAG, "onDestroy");
     }
@@ -157,6 +197,16 @@ public class MainActivity extends Activity{
             case R.id.discoverable:
                 ensureDiscoverable();
                 return true;
+            case R.id.relay:
+                item.setChecked(!item.isChecked());
+                mChatService.setRelayEnabled(item.isChecked());
+                return true;
+            case R.id.hub_mode:
+                // 切换集线器模式后重新开始监听
+                item.setChecked(!item.isChecked());
+                mChatService.setHubMode(item.isChecked());
+                mChatService.start();
+                return true;
         }
         return true;
     }
@@ -166,10 +216,13 @@ public class MainActivity extends Activity{
         Log.d(TAG, "setupChat()");
 
         //初始化会话线程的数组适配器
-        mConversationArrayAdapter = new ArrayAdapter(MainActivity.this, R.layout.message);
+        mHistoryExecutor = Executors.newSingleThreadExecutor();
+        mConversationAdapter = new ConversationAdapter(MainActivity.this, mHistoryExecutor, mUiExecutor);
+        mConversationAdapter.setListener(mPageListener);
 
         mConversationView = (ListView) findViewById(R.id.in);
-        mConversationView.setAdapter(mConversationArrayAdapter);
+        mConversationView.setAdapter(mConversationAdapter);
+        mConversationView.setOnScrollListener(mScrollListener);
 
         mOutEditText = (EditText) findViewById(R.id.edit_text_out);
         mOutEditText.setOnEditorActionListener(mWriteListener);
@@ -184,7 +237,13 @@ public class MainActivity extends Activity{
         });
 
         //初始化BluetoothChatService以执行蓝牙连接
-        mChatService = new BluetoothChatService(MainActivity.this, mHandler);
+        mChatService = ChatServices.create(MainActivity.this);
+        mChatService.getEvents().subscribe(mEventListener, mUiExecutor);
+        mHistory = new HistoryStore(new File(getFilesDir(), "history"));
+        mChatService.setHistoryStore(mHistory);
+        mMessageBatcher = new MessageBatcher(mBatchListener, mChatService.getConnectionState());
+        mChatService.setMessageBatcher(mMessageBatcher);
+        mChatService.getMetrics().startDump(METRICS_DUMP_PERIOD_MS);
 
         //初始化外发消息的缓冲区
         mOutStringBuffer = new StringBuffer("");
@@ -203,12 +262,16 @@ public class MainActivity extends Activity{
 
 
     private void sendMessage(String message) {
-        //检测是否已连接
-        if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
+        //检测是否已连接，重连期间发的消息会在连上后补发
+        if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED
+                && !mChatService.isReconnecting()) {
             Toast.makeText(MainActivity.this, R.string.not_connected, Toast.LENGTH_SHORT).show();
         } else if (message.length() > 0) {
-            //获取消息字节并通知BluetoothChatService写入
-            mChatService.write(message.getBytes());
+            //获取消息的 UTF-8 字节并通知BluetoothChatService写入，发送队列满了就保留编辑框的内容
+            if (!mChatService.offer(Utf8Codec.encode(message))) {
+                Toast.makeText(MainActivity.this, R.string.send_queue_full, Toast.LENGTH_SHORT).show();
+                return;
+            }
 
             //将发送消息缓冲区重置为零并清除编辑消息框
             mOutStringBuffer.setLength(0);
@@ -217,6 +280,73 @@ public class MainActivity extends Activity{
     }
 
 
+    /**
+     * 换成显示已连接设备的聊天记录，集线器模式下的消息来自多个设备，不分页
+     */
+    private void showHistory() {
+        String address = mChatService.isHubMode() ? null : mConnectedDeviceAddress;
+        mConversationAdapter.reset(mHistory, address, mConnectedDeviceName, mHistoryCount);
+    }
+
+
+    /**
+     * 滚到顶部时读取更早的记录，往前翻过之后滚到底部时读回较新的记录，列表位置保持不动
+     */
+    private AbsListView.OnScrollListener mScrollListener = new AbsListView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+            if (totalItemCount == 0) return;
+            //在后台读取，读完后在 mPageListener 中调整位置
+            if (firstVisibleItem == 0) {
+                mConversationAdapter.loadOlder();
+            } else if (firstVisibleItem + visibleItemCount >= totalItemCount) {
+                mConversationAdapter.loadNewer();
+            }
+        }
+    };
+
+    /**
+     * 分页读取的记录加入列表后，按加入或丢掉的行数调整位置，看到的消息不动
+     */
+    private final ConversationAdapter.Listener mPageListener = new ConversationAdapter.Listener() {
+        @Override
+        public void onOlderLoaded(int added) {
+            if (added > 0) {
+                mConversationView.setSelection(mConversationView.getFirstVisiblePosition() + added);
+            }
+        }
+
+        @Override
+        public void onNewerLoaded(int removed) {
+            if (removed > 0) {
+                mConversationView.setSelection(Math.max(0, mConversationView.getFirstVisiblePosition() - removed));
+            }
+        }
+    };
+
+
+    /**
+     * 一帧内收到的消息一起加入列表，只刷新一次
+     */
+    private final MessageBatcher.Listener mBatchListener = new MessageBatcher.Listener() {
+        @Override
+        public void onMessages(List<MessageBatcher.Incoming> messages) {
+            mConversationAdapter.beginBatch();
+            for (MessageBatcher.Incoming message : messages) {
+                // 集线器模式下peerId是发送者的id
+                String senderName = message.peerId < 0 ? null : mChatService.getPeerName(message.peerId);
+                mConversationAdapter.addReceived(senderName, message.buffer, message.length);
+                mChatService.recycle(message.buffer);
+            }
+            mConversationAdapter.endBatch();
+        }
+    };
+
+
     // 对startActivityForResult()的返回结果处理
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
 
@@ -225,8 +355,7 @@ public class MainActivity extends Activity{
         switch (requestCode) {
             case REQUEST_CONNECT_DEVICE: {
                 if (resultCode == RESULT_OK) {
-                    mChatService.connect(mBluetoothAdapter.getRemoteDevice(data.getExtras()
-                            .getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS)));
+                    mChatService.connect(data.getExtras().getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS));
                 }
                 break;
             }
@@ -262,21 +391,35 @@ public class MainActivity extends Activity{
     };
 
 
+    // 在UI线程中处理事件
+    private final Handler mUiHandler = new Handler();
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mUiHandler.post(command);
+        }
+    };
+
     /**
-     * 从BluetoothChatService获取信息的处理程序
+     * 从BluetoothChatService获取事件，在UI线程中调用
      */
-    private final Handler mHandler = new Handler(){
+    private final ChatEventBus.Listener mEventListener = new ChatEventBus.Listener() {
         @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
+        public void onEvent(ChatEvent event) {
+            switch (event.getType()) {
                 case MESSAGE_STATE_CHANGE: {
-                    Log.i(TAG, "MESSAGE_STATE_CHANGE: " + msg.arg1);
-                    switch (msg.arg1) {
+                    Log.i(TAG, "MESSAGE_STATE_CHANGE: " + event.getState());
+                    switch (event.getState()) {
                         case BluetoothChatService.STATE_CONNECTED: {
                             mTitle.setText(R.string.title_connected_to);
                             mTitle.setTextColor(0xff11ff11);
                             mTitle.append(mConnectedDeviceName);
-                            mConversationArrayAdapter.clear();
+                            //重连后恢复了原来的会话就保留显示的消息，否则从保存的记录重新显示
+                            if (event.getFlags() != BluetoothChatService.FLAG_RESUMED) {
+                                showHistory();
+                            }
+                            //这个连接收到的消息可以显示了
+                            mMessageBatcher.onConnected();
                             break;
                         }
                         case BluetoothChatService.STATE_CONNECTING: {
@@ -294,26 +437,29 @@ public class MainActivity extends Activity{
                     break;
                 }
                 case MESSAGE_WRITE: {
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    String writeMessage = new String(writeBuf);
-                    mConversationArrayAdapter.add("Me:  " + writeMessage);
+                    mConversationAdapter.addSent(event.getBuffer());
                     break;
                 }
                 case MESSAGE_READ: {
-                    byte[] readBuf = (byte[]) msg.obj;
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + readMessage);
+                    byte[] readBuf = event.getBuffer();
+                    // 集线器模式下是发送者的id
+                    int peerId = event.getPeerId();
+                    String senderName = peerId < 0 ? null : mChatService.getPeerName(peerId);
+                    //缓冲区由总线在回调之后归还
+                    mConversationAdapter.addReceived(senderName, readBuf, event.getLength());
                     break;
                 }
 
                 case MESSAGE_DEVICE_NAME: {
-                    mConnectedDeviceName = msg.getData().getString(DEVICE_NAME);
+                    mConnectedDeviceName = event.getDeviceName();
+                    mConnectedDeviceAddress = event.getDeviceAddress();
+                    mHistoryCount = event.getHistoryCount();
                     Toast.makeText(getApplicationContext(), "Connected to " + mConnectedDeviceName,
                             Toast.LENGTH_SHORT).show();
                     break;
                 }
                 case MESSAGE_TOAST: {
-                    Toast.makeText(getApplicationContext(), msg.getData().getString(TOAST),
+                    Toast.makeText(getApplicationContext(), event.getText(),
                             Toast.LENGTH_SHORT).show();
                     break;
                 }
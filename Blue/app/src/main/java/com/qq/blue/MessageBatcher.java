@@ -0,0 +1,167 @@
+package com.qq.blue;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 把收到的消息按显示帧合并交给UI.
+ * 读线程只把消息放进队列，第一条消息到达时请求下一帧的回调；
+ * 回调中一次取出最多 MAX_BATCH 条交给 Listener，剩下的留到下一帧.
+ * 一阵突发的几百条消息每帧只刷新一次列表，而不是每条消息一个 Handler 消息、一次刷新.
+ *
+ * 消息的连接序号是它到达时 ConnectionState.getConnectedCount()，直接从状态机读，不依赖事件.
+ * UI处理完 STATE_CONNECTED、切换了会话后调用 onConnected()，确认到状态机当前的连接，
+ * 新连接的消息要等确认后才交出去，不会先于切换会话显示；
+ * STATE_CONNECTED 事件没有送到UI时，连接保持 ACK_TIMEOUT_MS 后照样交出去，消息不会一直留在队列里
+ */
+public class MessageBatcher implements Choreographer.FrameCallback, ConnectionState.Listener {
+
+    // 每帧最多交给UI的消息数
+    public static final int MAX_BATCH = 64;
+
+    // 等UI确认新连接的最长时间，远大于 Handler 消息和帧回调之间可能的先后差
+    static final long ACK_TIMEOUT_MS = 500;
+
+    /**
+     * 在UI线程中调用
+     */
+    public interface Listener {
+        void onMessages(List<Incoming> messages);
+    }
+
+    private final Choreographer mChoreographer;
+    private final Listener mListener;
+    private final ConnectionState mState;
+    // 最近一次进入 STATE_CONNECTED 的 System.nanoTime()，和那时的连接序号，先写时间再写序号
+    private volatile long mConnectedAt;
+    private volatile long mConnectedAtCount;
+    private final ConcurrentLinkedQueue<Incoming> mQueue = new ConcurrentLinkedQueue<Incoming>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    // UI线程使用
+    private final List<Incoming> mBatch = new ArrayList<Incoming>(MAX_BATCH);
+    // UI已经切换到的连接
+    private long mAckedCount;
+
+    /**
+     * 必须在UI线程中创建，使用UI线程的 Choreographer
+     * @param state 服务的状态机，BluetoothChatService.getConnectionState()
+     */
+    public MessageBatcher(Listener listener, ConnectionState state) {
+        mChoreographer = Choreographer.getInstance();
+        mListener = listener;
+        mState = state;
+        mAckedCount = state.getConnectedCount();
+        state.addListener(this);
+    }
+
+    /**
+     * 任意线程调用
+     * @param buffer    租来的缓冲区，由 Listener 归还
+     * @param peerId    集线器模式下发送者的id，否则为-1
+     */
+    public void post(byte[] buffer, int length, int peerId) {
+        mQueue.offer(new Incoming(buffer, length, peerId, mState.getConnectedCount()));
+        schedule();
+    }
+
+    /**
+     * UI切换到了状态机当前的连接，之前的消息都可以交出去了.
+     * 可以重复调用，漏掉的 STATE_CONNECTED 也一起确认
+     */
+    public void onConnected() {
+        mAckedCount = mState.getConnectedCount();
+        if(!mQueue.isEmpty()) {
+            //可能有一个等超时的回调，换成下一帧
+            mChoreographer.removeFrameCallback(this);
+            mScheduled.set(false);
+            schedule();
+        }
+    }
+
+    @Override
+    public void onStateChanged(int previous, int state, int flags) {
+        //在切换状态的线程中调用，只记下时间；超时由 doFrame() 检查
+        if(state == ConnectionState.STATE_CONNECTED && previous != ConnectionState.STATE_CONNECTED) {
+            mConnectedAt = System.nanoTime();
+            mConnectedAtCount = mState.getConnectedCount();
+        }
+    }
+
+    private void schedule() {
+        if(mScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        //先清掉标记，取消息期间到达的消息会再请求一帧
+        mScheduled.set(false);
+
+        //UI一直没有确认，但状态机进入这个连接已经足够久，不再等
+        long connected = mState.getConnectedCount();
+        long waitMillis = 0;
+        if(mAckedCount < connected) {
+            //还没记下这个连接的时间就从现在开始算
+            waitMillis = mConnectedAtCount != connected ? ACK_TIMEOUT_MS
+                    : ACK_TIMEOUT_MS - (System.nanoTime() - mConnectedAt) / (1000 * 1000);
+            if(waitMillis <= 0) {
+                mAckedCount = connected;
+            }
+        }
+
+        Incoming next = mQueue.peek();
+        while(next != null && mBatch.size() < MAX_BATCH && next.connectedCount <= mAckedCount) {
+            mBatch.add(mQueue.poll());
+            next = mQueue.peek();
+        }
+        if(!mBatch.isEmpty()) {
+            try {
+                mListener.onMessages(mBatch);
+            }
+            finally {
+                mBatch.clear();
+            }
+        }
+
+        if(next == null) return;
+        if(next.connectedCount <= mAckedCount) {
+            schedule();
+        }
+        else if(waitMillis > 0 && mScheduled.compareAndSet(false, true)) {
+            //等UI确认，确认了由 onConnected() 提前请求，否则超时后再检查
+            mChoreographer.postFrameCallbackDelayed(this, waitMillis);
+        }
+    }
+
+    // 丢掉还没交出去的消息，用于界面销毁时
+    public void clear() {
+        mState.removeListener(this);
+        mChoreographer.removeFrameCallback(this);
+        mQueue.clear();
+        mScheduled.set(false);
+    }
+
+
+    /**
+     * 一条收到的消息
+     */
+    public static class Incoming {
+        public final byte[] buffer;
+        public final int length;
+        public final int peerId;
+        final long connectedCount;
+
+        Incoming(byte[] buffer, int length, int peerId, long connectedCount) {
+            this.buffer = buffer;
+            this.length = length;
+            this.peerId = peerId;
+            this.connectedCount = connectedCount;
+        }
+    }
+}
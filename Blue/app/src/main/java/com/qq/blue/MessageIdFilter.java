@@ -0,0 +1,108 @@
+package com.qq.blue;
+
+import java.util.Arrays;
+
+/**
+ * 有界的已见消息ID集合，用来丢弃转发中重复收到的消息.
+ * 两代开放寻址哈希表轮换：当前这一代满了或者超过时间窗口，就丢弃上一代、开始新的一代，
+ * 内存固定，add() 是O(1)且不分配内存.
+ * 只有一个窗口内收到的ID不超过 capacity 时，一个ID才保证至少被记住一个窗口；
+ * 速率更高时会因为满了而提前轮换，ID可能在一个窗口内就被忘掉，重复消息会漏过去，
+ * 这种轮换的次数由 getCapacityRotationCount() 给出
+ */
+public class MessageIdFilter {
+
+    private final int mCapacity;
+    private final long mWindowMillis;
+    private final int mMask;
+
+    private long[] mCurrent;
+    private long[] mPrevious;
+    private int mCurrentCount;
+    private long mRotatedAt;
+
+    // 因为这一代满了而不是窗口到期的轮换次数
+    private long mCapacityRotations;
+
+    // 0 用来表示空槽，ID为0单独记录
+    private boolean mCurrentHasZero;
+    private boolean mPreviousHasZero;
+
+    /**
+     * @param capacity  每一代最多记住多少个ID
+     * @param windowMillis  每一代最长保留多久
+     */
+    public MessageIdFilter(int capacity, long windowMillis) {
+        int size = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+        mCapacity = capacity;
+        mWindowMillis = windowMillis;
+        mMask = size - 1;
+        mCurrent = new long[size];
+        mPrevious = new long[size];
+        mRotatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 记录一个ID
+     * @return  第一次见到时返回true，重复时返回false
+     */
+    public synchronized boolean add(long id) {
+        long now = System.currentTimeMillis();
+        if(now - mRotatedAt > mWindowMillis) {
+            rotate(now);
+        }
+        else if(mCurrentCount >= mCapacity) {
+            mCapacityRotations++;
+            rotate(now);
+        }
+
+        if(id == 0) {
+            if(mCurrentHasZero || mPreviousHasZero) return false;
+            mCurrentHasZero = true;
+            return true;
+        }
+
+        if(contains(mPrevious, id)) return false;
+
+        int index = hash(id) & mMask;
+        while(mCurrent[index] != 0) {
+            if(mCurrent[index] == id) return false;
+            index = (index + 1) & mMask;
+        }
+        mCurrent[index] = id;
+        mCurrentCount++;
+        return true;
+    }
+
+    /**
+     * @return  因为某一代满了而提前轮换的次数，大于0说明容量小于一个窗口内的消息数
+     */
+    public synchronized long getCapacityRotationCount() {
+        return mCapacityRotations;
+    }
+
+    private boolean contains(long[] table, long id) {
+        int index = hash(id) & mMask;
+        while(table[index] != 0) {
+            if(table[index] == id) return true;
+            index = (index + 1) & mMask;
+        }
+        return false;
+    }
+
+    private void rotate(long now) {
+        long[] table = mPrevious;
+        mPrevious = mCurrent;
+        mPreviousHasZero = mCurrentHasZero;
+        Arrays.fill(table, 0);
+        mCurrent = table;
+        mCurrentHasZero = false;
+        mCurrentCount = 0;
+        mRotatedAt = now;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
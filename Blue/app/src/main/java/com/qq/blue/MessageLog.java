@@ -0,0 +1,343 @@
+package com.qq.blue;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一个设备的聊天记录，只追加的分段日志.
+ * 消息按写入顺序从0开始编号，分成若干段存放，每段两个文件：
+ * <第一条消息的编号>.log  连续存放的记录：[消息长度 4字节][方向 1字节][时间 8字节][消息内容]
+ * <第一条消息的编号>.idx  每条消息的记录在 .log 中的偏移，4字节
+ * 追加只在最后一段的两个文件末尾顺序写入，经过缓冲，收消息的线程几乎没有额外开销；
+ * 按编号读取时二分查找所在的段，用 .idx 直接定位，不用扫描日志.
+ * .log 超过 SEGMENT_SIZE 后开始新的一段，每段最多几十万条消息，索引只占每条4字节
+ */
+public class MessageLog {
+
+    public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    static final int HEADER_LENGTH = 13;
+    private static final int INDEX_ENTRY_LENGTH = 4;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final int OUTGOING = 1;
+
+    private final File mDirectory;
+    // 按第一条消息的编号排序
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private final byte[] mHeader = new byte[HEADER_LENGTH];
+
+    private long mCount;
+
+    // 最后一段的写入流，第一次追加时才打开
+    private OutputStream mLogOut;
+    private OutputStream mIndexOut;
+    private boolean mDirty;
+    private boolean mClosed;
+
+    /**
+     * 打开目录中的日志，没有就新建.
+     * 上次没有正常关闭时，丢掉最后一段末尾不完整的记录
+     */
+    public MessageLog(File directory) throws IOException {
+        mDirectory = directory;
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create " + directory);
+        }
+        load();
+    }
+
+    /**
+     * 追加一条消息
+     * @param outgoing  本机发出的消息
+     * @param time  发送或收到的时间
+     * @return  消息的编号
+     */
+    public synchronized long append(boolean outgoing, long time, byte[] message, int offset, int length)
+            throws IOException {
+        if(mClosed) throw new IOException("message log closed");
+
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if(segment == null || segment.mmLength >= SEGMENT_SIZE) {
+            segment = roll();
+        }
+        else if(mLogOut == null) {
+            openWriters(segment);
+        }
+
+        writeInt(mHeader, 0, (int) segment.mmLength);
+        mIndexOut.write(mHeader, 0, INDEX_ENTRY_LENGTH);
+
+        writeInt(mHeader, 0, length);
+        mHeader[4] = (byte) (outgoing ? OUTGOING : 0);
+        writeLong(mHeader, 5, time);
+        mLogOut.write(mHeader, 0, HEADER_LENGTH);
+        mLogOut.write(message, offset, length);
+
+        segment.mmLength += HEADER_LENGTH + length;
+        segment.mmCount++;
+        mDirty = true;
+        return mCount++;
+    }
+
+    // 消息总数，也是下一条消息的编号
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * 读取编号从 from 开始的最多 count 条消息，超出范围的部分不返回
+     */
+    public synchronized List<Entry> read(long from, int count) throws IOException {
+        if(mClosed) throw new IOException("message log closed");
+        //先算结尾再截开头，请求的范围 [from, from + count) 中超出的部分都不返回
+        long end = Math.min(mCount, from + count);
+        from = Math.max(0, from);
+        List<Entry> entries = new ArrayList<Entry>((int) Math.max(0, end - from));
+        if(from >= end) return entries;
+        flush();
+
+        int index = findSegment(from);
+        long number = from;
+        while(number < end) {
+            Segment segment = mSegments.get(index++);
+            int first = (int) (number - segment.mmBase);
+            int last = (int) Math.min(segment.mmCount, end - segment.mmBase);
+            readSegment(segment, first, last, entries);
+            number = segment.mmBase + last;
+        }
+        return entries;
+    }
+
+    /**
+     * 把缓冲的记录写到文件中，先写 .log 再写 .idx，索引不会指向还没写出的记录
+     */
+    public synchronized void flush() throws IOException {
+        if(!mDirty) return;
+        mLogOut.flush();
+        mIndexOut.flush();
+        mDirty = false;
+    }
+
+    public synchronized void close() throws IOException {
+        if(mClosed) return;
+        try {
+            closeWriters();
+        }
+        finally {
+            mClosed = true;
+        }
+    }
+
+    // 读取一段中第 first 条到第 last 条之前的消息，每个文件只读一次
+    private void readSegment(Segment segment, int first, int last, List<Entry> entries) throws IOException {
+        //多读一个索引，得到最后一条记录的结束位置，读到段尾时就是 .log 的长度
+        int indexCount = Math.min(last + 1, segment.mmCount) - first;
+        byte[] index = new byte[indexCount * INDEX_ENTRY_LENGTH];
+        RandomAccessFile indexFile = new RandomAccessFile(segment.indexFile(), "r");
+        try {
+            indexFile.seek((long) first * INDEX_ENTRY_LENGTH);
+            indexFile.readFully(index);
+        }
+        finally {
+            indexFile.close();
+        }
+
+        long start = FrameCodec.readLength(index, 0) & 0xffffffffL;
+        long stop = last < segment.mmCount
+                ? FrameCodec.readLength(index, (last - first) * INDEX_ENTRY_LENGTH) & 0xffffffffL
+                : segment.mmLength;
+        byte[] records = new byte[(int) (stop - start)];
+        RandomAccessFile logFile = new RandomAccessFile(segment.logFile(), "r");
+        try {
+            logFile.seek(start);
+            logFile.readFully(records);
+        }
+        finally {
+            logFile.close();
+        }
+
+        int position = 0;
+        for(int i = first; i < last; i++) {
+            int length = FrameCodec.readLength(records, position);
+            boolean outgoing = records[position + 4] == OUTGOING;
+            long time = readLong(records, position + 5);
+            byte[] message = Arrays.copyOfRange(records, position + HEADER_LENGTH,
+                    position + HEADER_LENGTH + length);
+            entries.add(new Entry(segment.mmBase + i, outgoing, time, message));
+            position += HEADER_LENGTH + length;
+        }
+    }
+
+    // 编号为 number 的消息所在的段
+    private int findSegment(long number) {
+        int low = 0;
+        int high = mSegments.size() - 1;
+        while(low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if(mSegments.get(middle).mmBase <= number) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // 开始新的一段
+    private Segment roll() throws IOException {
+        closeWriters();
+        Segment segment = new Segment(mCount);
+        mSegments.add(segment);
+        openWriters(segment);
+        return segment;
+    }
+
+    private void openWriters(Segment segment) throws IOException {
+        mLogOut = new BufferedOutputStream(new FileOutputStream(segment.logFile(), true));
+        mIndexOut = new BufferedOutputStream(new FileOutputStream(segment.indexFile(), true));
+    }
+
+    private void closeWriters() throws IOException {
+        if(mLogOut == null) return;
+        try {
+            mLogOut.close();
+        }
+        finally {
+            mIndexOut.close();
+            mLogOut = null;
+            mIndexOut = null;
+            mDirty = false;
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                String name = file.getName();
+                if(!name.endsWith(INDEX_SUFFIX)) continue;
+                try {
+                    Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - INDEX_SUFFIX.length())));
+                    segment.mmCount = (int) (file.length() / INDEX_ENTRY_LENGTH);
+                    segment.mmLength = segment.logFile().length();
+                    mSegments.add(segment);
+                }
+                catch(NumberFormatException e) {
+                    //不是日志的文件，忽略
+                }
+            }
+        }
+        if(mSegments.isEmpty()) return;
+
+        Collections.sort(mSegments);
+        Segment last = mSegments.get(mSegments.size() - 1);
+        recover(last);
+        mCount = last.mmBase + last.mmCount;
+    }
+
+    /**
+     * 最后一段可能在写到一半时被中断：
+     * 去掉指向不完整记录的索引，再把 .log 截到最后一条完整记录的末尾
+     */
+    private void recover(Segment segment) throws IOException {
+        long logLength = segment.logFile().length();
+        long end = 0;
+        RandomAccessFile indexFile = new RandomAccessFile(segment.indexFile(), "rw");
+        RandomAccessFile logFile = new RandomAccessFile(segment.logFile(), "rw");
+        try {
+            while(segment.mmCount > 0) {
+                indexFile.seek((long) (segment.mmCount - 1) * INDEX_ENTRY_LENGTH);
+                long offset = indexFile.readInt() & 0xffffffffL;
+                if(offset + HEADER_LENGTH <= logLength) {
+                    logFile.seek(offset);
+                    end = offset + HEADER_LENGTH + (logFile.readInt() & 0xffffffffL);
+                    if(end <= logLength) break;
+                }
+                segment.mmCount--;
+                end = 0;
+            }
+            indexFile.setLength((long) segment.mmCount * INDEX_ENTRY_LENGTH);
+            logFile.setLength(end);
+        }
+        finally {
+            indexFile.close();
+            logFile.close();
+        }
+        segment.mmLength = end;
+    }
+
+    private static void writeInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] dst, int offset, long value) {
+        for(int i = 0; i < 8; i++) {
+            dst[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long readLong(byte[] src, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+
+    private class Segment implements Comparable<Segment> {
+        final long mmBase;
+        int mmCount;
+        long mmLength;
+
+        Segment(long base) {
+            mmBase = base;
+        }
+
+        File logFile() {
+            return new File(mDirectory, mmBase + LOG_SUFFIX);
+        }
+
+        File indexFile() {
+            return new File(mDirectory, mmBase + INDEX_SUFFIX);
+        }
+
+        @Override
+        public int compareTo(Segment another) {
+            return mmBase < another.mmBase ? -1 : (mmBase == another.mmBase ? 0 : 1);
+        }
+    }
+
+
+    /**
+     * 一条聊天记录
+     */
+    public static class Entry {
+        public final long number;
+        public final boolean outgoing;
+        public final long time;
+        public final byte[] message;
+
+        Entry(long number, boolean outgoing, long time, byte[] message) {
+            this.number = number;
+            this.outgoing = outgoing;
+            this.time = time;
+            this.message = message;
+        }
+    }
+}
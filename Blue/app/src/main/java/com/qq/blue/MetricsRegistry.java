@@ -0,0 +1,158 @@
+package com.qq.blue;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 连接统计的汇总：每个设备最近一个连接的 LinkMetrics、自动重连次数，
+ * 以及服务在每个 STATE_* 中停留的时间.
+ * 更新只有原子操作；snapshot() 随时可以调用，startDump() 定时把快照写到日志中
+ */
+public class MetricsRegistry {
+
+    private static final String TAG = "MetricsRegistry";
+
+    // ConnectionState.STATE_NONE 到 STATE_CONNECTED
+    private static final int STATE_COUNT = ConnectionState.STATE_COUNT;
+
+    private final ConcurrentHashMap<String, LinkMetrics> mLinks = new ConcurrentHashMap<String, LinkMetrics>();
+    private final ConcurrentHashMap<String, AtomicLong> mReconnects = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLongArray mStateMillis = new AtomicLongArray(STATE_COUNT);
+    // 当前状态和进入的时间一起更新和读取，用 mStateLock 保护
+    private final Object mStateLock = new Object();
+    private int mState;
+    private long mStateSince = System.currentTimeMillis();
+
+    private ScheduledFuture<?> mDumper;
+    private volatile LifecycleExecutor mLifecycle;
+
+    // 定时写日志时一起写出任务的调度和运行时间
+    void setLifecycle(LifecycleExecutor lifecycle) {
+        mLifecycle = lifecycle;
+    }
+
+    /**
+     * 新连接的统计，替换这个设备之前的连接
+     */
+    public LinkMetrics connect(String address) {
+        LinkMetrics metrics = new LinkMetrics(address);
+        mLinks.put(address, metrics);
+        return metrics;
+    }
+
+    // 断线后开始自动重连
+    public void onReconnect(String address) {
+        AtomicLong count = mReconnects.get(address);
+        if(count == null) {
+            AtomicLong created = new AtomicLong();
+            count = mReconnects.putIfAbsent(address, created);
+            if(count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * 服务切换状态，由 ConnectionState 的监听器按切换的顺序调用，可能在不同的线程中
+     */
+    void onStateChange(int state) {
+        synchronized(mStateLock) {
+            long now = System.currentTimeMillis();
+            int previous = mState;
+            if(previous >= 0 && previous < STATE_COUNT) {
+                mStateMillis.addAndGet(previous, now - mStateSince);
+            }
+            mStateSince = now;
+            mState = state;
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] stateMillis = new long[STATE_COUNT];
+        int state;
+        synchronized(mStateLock) {
+            for(int i = 0; i < STATE_COUNT; i++) {
+                stateMillis[i] = mStateMillis.get(i);
+            }
+            //当前状态已经停留的时间也算上
+            state = mState;
+            if(state >= 0 && state < STATE_COUNT) {
+                stateMillis[state] += System.currentTimeMillis() - mStateSince;
+            }
+        }
+
+        List<LinkMetrics.Snapshot> links = new ArrayList<LinkMetrics.Snapshot>(mLinks.size());
+        for(LinkMetrics metrics : mLinks.values()) {
+            AtomicLong reconnects = mReconnects.get(metrics.getAddress());
+            links.add(metrics.snapshot(reconnects == null ? 0 : reconnects.get()));
+        }
+        return new Snapshot(state, stateMillis, links);
+    }
+
+    /**
+     * 每隔 periodMillis 把快照写到日志中，重复调用会替换之前的周期
+     */
+    public synchronized void startDump(long periodMillis) {
+        stopDump();
+        //写日志很快，放在共用的定时线程中
+        mDumper = LifecycleExecutor.scheduler().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, snapshot().toString());
+                LifecycleExecutor lifecycle = mLifecycle;
+                if(lifecycle != null) {
+                    Log.i(TAG, "lifecycle " + lifecycle);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if(mDumper != null) {
+            mDumper.cancel(false);
+            mDumper = null;
+        }
+    }
+
+
+    /**
+     * 某一时刻的统计
+     */
+    public static class Snapshot {
+        public final long time;
+        public final int state;
+        // 下标是 STATE_*
+        public final long[] stateMillis;
+        public final List<LinkMetrics.Snapshot> links;
+
+        Snapshot(int state, long[] stateMillis, List<LinkMetrics.Snapshot> links) {
+            this.time = System.currentTimeMillis();
+            this.state = state;
+            this.stateMillis = stateMillis;
+            this.links = links;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("state=").append(state).append(" stateMillis=[");
+            for(int i = 0; i < stateMillis.length; i++) {
+                if(i > 0) builder.append(',');
+                builder.append(stateMillis[i]);
+            }
+            builder.append(']');
+            for(LinkMetrics.Snapshot link : links) {
+                builder.append("\n  ").append(link);
+            }
+            return builder.toString();
+        }
+    }
+}
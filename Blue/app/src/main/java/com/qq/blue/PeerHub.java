@@ -0,0 +1,585 @@
+package com.qq.blue;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多设备连接表，集线器模式下使用.
+ * 不给每个连接开一个阻塞读的线程：一个轮询任务用 available() 找出有数据的连接，
+ * 再交给最多 workerCount 个工作任务去读；发送也由工作任务按连接合并后写出.
+ * 轮询和工作任务都在 LifecycleExecutor 中运行，不自己创建线程.
+ * 依赖 InputStream.available()，RFCOMM、LoopbackTransport 和 TcpTransport 都支持
+ */
+public class PeerHub {
+
+    private static final String TAG = "PeerHub";
+
+    // 每个连接的发送队列长度
+    private static final int PEER_QUEUE_CAPACITY = 256;
+
+    // 一次最多合并多少帧，写完后重新排队，避免一个连接占住工作线程
+    private static final int MAX_BATCH = 64;
+
+    private static final int BATCH_BUFFER_SIZE = 8 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    // 所有连接都没有数据时，轮询间隔从1ms逐渐加倍到这个值
+    private static final long MAX_IDLE_POLL_MS = 32;
+
+
+    /**
+     * 连接事件回调，在工作线程中调用
+     */
+    public interface Listener {
+        // 握手完成
+        void onPeerConnected(Peer peer);
+
+        // buffer 只在回调期间有效
+        void onFrame(Peer peer, int type, byte[] buffer, int offset, int length);
+
+        void onPeerLost(Peer peer, IOException e);
+    }
+
+
+    private final Listener mListener;
+    private final int mWorkerCount;
+    private final LifecycleExecutor mLifecycle;
+    // 等待工作任务执行的读写
+    private final ConcurrentLinkedQueue<PeerTask> mPending = new ConcurrentLinkedQueue<PeerTask>();
+    // 正在运行的工作任务数，不超过 mWorkerCount
+    private final AtomicInteger mWorkers = new AtomicInteger();
+    private final ConcurrentHashMap<String, Peer> mPeers = new ConcurrentHashMap<String, Peer>();
+    private final AtomicInteger mNextId = new AtomicInteger();
+    private volatile FrameCompressor.Stats mCompressionStats;
+    private volatile MetricsRegistry mMetrics;
+    private LifecycleExecutor.Task mPoller;
+    private volatile boolean mRunning;
+
+    // 工作任务：取出等待的读写依次执行，没有了就退出
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            do {
+                PeerTask task;
+                while(mRunning && (task = mPending.poll()) != null) {
+                    try {
+                        task.run();
+                    }
+                    catch(RuntimeException e) {
+                        //只断开出错的连接，工作任务接着执行别的读写，不少算一个工作任务
+                        Log.e(TAG, "task of " + task.mmPeer.getAddress() + " failed", e);
+                        lost(task.mmPeer, new IOException(e));
+                    }
+                }
+                mWorkers.decrementAndGet();
+                //退出前又有新的读写进来，而且没有别的工作任务在运行
+            } while(mRunning && !mPending.isEmpty() && claimWorker());
+        }
+    };
+
+    /**
+     * @param listener  连接事件回调
+     * @param workerCount   同时运行的工作任务数
+     * @param lifecycle 轮询和工作任务在这里运行
+     */
+    public PeerHub(Listener listener, int workerCount, LifecycleExecutor lifecycle) {
+        mListener = listener;
+        mWorkerCount = workerCount;
+        mLifecycle = lifecycle;
+    }
+
+    public synchronized void start() {
+        if(mRunning) return;
+        mRunning = true;
+        mPoller = mLifecycle.execute(LifecycleExecutor.TASK_HUB_POLL, new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        });
+    }
+
+    // 断开所有连接并停止轮询和工作任务
+    public synchronized void stop() {
+        if(!mRunning) return;
+        mRunning = false;
+        mPoller.cancel();
+        mPending.clear();
+        for(Peer peer : mPeers.values()) {
+            peer.close();
+        }
+        mPeers.clear();
+    }
+
+    /**
+     * 之后加入的连接在握手时声明支持压缩
+     * @param stats 压缩统计，null表示不压缩
+     */
+    public void setCompression(FrameCompressor.Stats stats) {
+        mCompressionStats = stats;
+    }
+
+    /**
+     * 之后加入的连接的统计登记到 registry 中
+     * @param registry  null表示每个连接单独统计
+     */
+    public void setMetrics(MetricsRegistry registry) {
+        mMetrics = registry;
+    }
+
+    /**
+     * 加入一个已经建立的连接并开始握手，握手完成后回调 onPeerConnected().
+     * 同一地址的旧连接会被关闭
+     */
+    public Peer add(ChatTransport.Connection connection) throws IOException {
+        FrameCompressor.Stats stats = mCompressionStats;
+        Handshake local = new Handshake(FrameCodec.MAX_PAYLOAD_LENGTH, READ_BUFFER_SIZE,
+                Handshake.FEATURE_PING | (stats == null ? 0 : Handshake.FEATURE_COMPRESSION));
+        MetricsRegistry registry = mMetrics;
+        String address = connection.getRemoteAddress();
+        Peer peer = new Peer(mNextId.incrementAndGet(), connection, local,
+                stats == null ? null : new FrameCompressor(stats),
+                registry == null ? new LinkMetrics(address) : registry.connect(address));
+        Peer old = mPeers.put(peer.getAddress(), peer);
+        if(old != null) {
+            old.close();
+        }
+        peer.enqueue(FrameCodec.TYPE_HELLO, local.encode());
+        return peer;
+    }
+
+    // 断开一个连接
+    public boolean remove(String address) {
+        Peer peer = mPeers.remove(address);
+        if(peer == null) return false;
+        peer.close();
+        return true;
+    }
+
+    /**
+     * 发送给一个连接，不会阻塞
+     * @return  没有这个连接或它的发送队列已满时返回false
+     */
+    public boolean offer(String address, int type, byte[] payload) {
+        Peer peer = mPeers.get(address);
+        return peer != null && peer.offer(type, payload);
+    }
+
+    /**
+     * 发送给所有连接
+     * @return  成功放进发送队列的连接数
+     */
+    public int broadcast(int type, byte[] payload) {
+        return broadcastExcept(null, type, payload);
+    }
+
+    /**
+     * 发送给除了 exclude 以外的所有连接，转发时不发回给来源
+     * @return  成功放进发送队列的连接数
+     */
+    public int broadcastExcept(Peer exclude, int type, byte[] payload) {
+        int count = 0;
+        for(Peer peer : mPeers.values()) {
+            if(peer != exclude && peer.offer(type, payload)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getPeerCount() {
+        return mPeers.size();
+    }
+
+    public Peer getPeer(String address) {
+        return mPeers.get(address);
+    }
+
+    public Peer getPeer(int id) {
+        for(Peer peer : mPeers.values()) {
+            if(peer.mId == id) return peer;
+        }
+        return null;
+    }
+
+    public Collection<Peer> getPeers() {
+        return Collections.unmodifiableCollection(new ArrayList<Peer>(mPeers.values()));
+    }
+
+    // 所有连接排队等待发送的帧数
+    public int getQueueDepth() {
+        int depth = 0;
+        for(Peer peer : mPeers.values()) {
+            depth += peer.getQueueDepth();
+        }
+        return depth;
+    }
+
+    private void poll() {
+        long idleMillis = 1;
+        while(mRunning) {
+            boolean busy = false;
+            for(Peer peer : mPeers.values()) {
+                busy |= peer.pollRead();
+            }
+
+            if(busy) {
+                idleMillis = 1;
+                continue;
+            }
+            try {
+                Thread.sleep(idleMillis);
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+            idleMillis = Math.min(idleMillis * 2, MAX_IDLE_POLL_MS);
+        }
+    }
+
+    /**
+     * 交给工作任务执行，工作任务不够时在 lifecycle 中开始一个
+     * @throws RejectedExecutionException   task 没有排队，不会执行
+     */
+    private void execute(PeerTask task) {
+        if(!mRunning) {
+            throw new RejectedExecutionException("hub stopped");
+        }
+        mPending.offer(task);
+        if(claimWorker()) {
+            LifecycleExecutor.Task worker = mLifecycle.execute(LifecycleExecutor.TASK_HUB_WORKER, mWorker);
+            if(worker.isCancelled()) {
+                //lifecycle 已经关闭；已经在运行的工作任务可能取走了它，那样它照常执行完
+                mWorkers.decrementAndGet();
+                if(mPending.remove(task)) {
+                    throw new RejectedExecutionException("lifecycle executor shut down");
+                }
+            }
+        }
+    }
+
+    private boolean claimWorker() {
+        int workers;
+        do {
+            workers = mWorkers.get();
+            if(workers >= mWorkerCount) return false;
+        } while(!mWorkers.compareAndSet(workers, workers + 1));
+        return true;
+    }
+
+    // 一个连接的读或写
+    private abstract class PeerTask implements Runnable {
+        final Peer mmPeer;
+
+        PeerTask(Peer peer) {
+            mmPeer = peer;
+        }
+    }
+
+    private void lost(Peer peer, IOException e) {
+        //同一地址可能已经被新连接替换，只移除自己
+        if(mPeers.remove(peer.getAddress(), peer)) {
+            peer.close();
+            mListener.onPeerLost(peer, e);
+        }
+    }
+
+
+    /**
+     * 一个连接和它的收发状态
+     */
+    public class Peer implements FrameCodec.FrameListener {
+        private final int mId;
+        private final ChatTransport.Connection mConnection;
+        private final String mAddress;
+        private final String mName;
+        private final long mConnectedAt;
+        private final InputStream mInStream;
+        private final FrameCodec.Decoder mDecoder;
+        private final byte[] mReadBuffer;
+        private final BlockingQueue<FrameBatch.Frame> mQueue;
+        private final FrameBatch mBatch;
+
+        // 握手：收到对方的 HELLO 之前 mHandshake 为null，只能发 HELLO
+        private final Handshake mLocal;
+        private final ScheduledFuture<?> mHandshakeTimeout;
+        private volatile Handshake mHandshake;
+
+        // 本机不压缩时为null；协商出压缩时 mCompressing 为true
+        private final FrameCompressor mCompressor;
+        private volatile boolean mCompressing;
+
+        // 是否已经有工作线程在读或写这个连接
+        private final AtomicBoolean mReading = new AtomicBoolean();
+        private final AtomicBoolean mWriting = new AtomicBoolean();
+
+        private final LinkMetrics mMetrics;
+        private volatile boolean mClosed;
+
+        private final PeerTask mReadTask = new PeerTask(this) {
+            @Override
+            public void run() {
+                read();
+            }
+        };
+
+        private final PeerTask mWriteTask = new PeerTask(this) {
+            @Override
+            public void run() {
+                write();
+            }
+        };
+
+        Peer(int id, ChatTransport.Connection connection, Handshake local, FrameCompressor compressor,
+             LinkMetrics metrics) throws IOException {
+            mId = id;
+            mMetrics = metrics;
+            mLocal = local;
+            mCompressor = compressor;
+            mConnection = connection;
+            mAddress = connection.getRemoteAddress();
+            mName = connection.getRemoteName();
+            mConnectedAt = System.currentTimeMillis();
+            mInStream = connection.getInputStream();
+            mDecoder = new FrameCodec.Decoder(this);
+            mReadBuffer = new byte[READ_BUFFER_SIZE];
+            mQueue = new ArrayBlockingQueue<FrameBatch.Frame>(PEER_QUEUE_CAPACITY);
+            mBatch = new FrameBatch(connection.getOutputStream(), BATCH_BUFFER_SIZE);
+            mBatch.setMetrics(metrics);
+            mHandshakeTimeout = Handshake.scheduleTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    if(mHandshake == null) {
+                        lost(Peer.this, new SocketTimeoutException("handshake timeout"));
+                    }
+                }
+            });
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getConnectedAt() {
+            return mConnectedAt;
+        }
+
+        public long getBytesIn() {
+            return mMetrics.getBytesIn();
+        }
+
+        public long getBytesOut() {
+            return mMetrics.getBytesOut();
+        }
+
+        public long getFramesIn() {
+            return mMetrics.getFramesIn();
+        }
+
+        public long getFramesOut() {
+            return mMetrics.getFramesOut();
+        }
+
+        public int getQueueDepth() {
+            return mQueue.size();
+        }
+
+        public LinkMetrics getMetrics() {
+            return mMetrics;
+        }
+
+        // 协商出的连接参数，握手完成前为null
+        public Handshake getHandshake() {
+            return mHandshake;
+        }
+
+        boolean offer(int type, byte[] payload) {
+            Handshake handshake = mHandshake;
+            if(handshake == null || payload.length > handshake.getMaxPayloadLength()) {
+                return false;
+            }
+            return enqueue(type, payload);
+        }
+
+        private boolean enqueue(int type, byte[] payload) {
+            if(mClosed || !mQueue.offer(new FrameBatch.Frame(type, payload))) {
+                return false;
+            }
+            scheduleWrite();
+            return true;
+        }
+
+        /**
+         * 轮询线程调用，有数据可读时交给工作线程
+         * @return  是否有数据
+         */
+        boolean pollRead() {
+            if(mClosed || mReading.get()) return false;
+            int available;
+            try {
+                available = mInStream.available();
+            }
+            catch(IOException e) {
+                lost(this, e);
+                return false;
+            }
+            if(available <= 0 || !mReading.compareAndSet(false, true)) {
+                return false;
+            }
+            execute(mReadTask, mReading);
+            return true;
+        }
+
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+            if(mHandshake == null) {
+                handshake(type, buffer, offset, length);
+                return;
+            }
+
+            switch(type) {
+                case FrameCodec.TYPE_COMPRESSED: {
+                    if(mCompressor == null) {
+                        throw new ProtocolException("compressed frame not negotiated");
+                    }
+                    mCompressor.inflate(buffer, offset, length, this);
+                    break;
+                }
+                case FrameCodec.TYPE_PING: {
+                    //直接回复，不交给 Listener
+                    byte[] pong = new byte[length];
+                    System.arraycopy(buffer, offset, pong, 0, length);
+                    enqueue(FrameCodec.TYPE_PONG, pong);
+                    break;
+                }
+                default: {
+                    mMetrics.onFrameIn();
+                    mListener.onFrame(this, type, buffer, offset, length);
+                    break;
+                }
+            }
+        }
+
+        // 第一帧必须是对方的 HELLO
+        private void handshake(int type, byte[] buffer, int offset, int length) throws IOException {
+            if(type != FrameCodec.TYPE_HELLO) {
+                throw new ProtocolException("expected hello, got frame type " + type);
+            }
+            Handshake handshake = mLocal.negotiate(buffer, offset, length);
+            mHandshakeTimeout.cancel(false);
+            mCompressing = mCompressor != null && handshake.hasFeature(Handshake.FEATURE_COMPRESSION);
+            mHandshake = handshake;
+            mListener.onPeerConnected(this);
+        }
+
+        // 只读已经到达的数据，不会阻塞工作线程
+        private void read() {
+            try {
+                int available = mInStream.available();
+                while(available > 0 && !mClosed) {
+                    int bytes = mInStream.read(mReadBuffer, 0, Math.min(available, mReadBuffer.length));
+                    if(bytes < 0) {
+                        throw new EOFException("end of stream");
+                    }
+                    mMetrics.onRead(bytes);
+                    mDecoder.feed(mReadBuffer, 0, bytes);
+                    available = mInStream.available();
+                }
+            }
+            catch(IOException e) {
+                lost(this, e);
+            }
+            finally {
+                mReading.set(false);
+            }
+        }
+
+        private void scheduleWrite() {
+            if(mWriting.compareAndSet(false, true)) {
+                execute(mWriteTask, mWriting);
+            }
+        }
+
+        private void write() {
+            try {
+                FrameBatch.Frame frame;
+                FrameCompressor compressor = mCompressing ? mCompressor : null;
+                mMetrics.onQueueDepth(mQueue.size());
+                int count = 0;
+                while(count < MAX_BATCH && (frame = mQueue.poll()) != null) {
+                    int length = compressor == null ? -1 : compressor.compress(frame.type, frame.payload);
+                    if(length > 0) {
+                        mBatch.append(FrameCodec.TYPE_COMPRESSED, compressor.getOutput(), 0, length);
+                    }
+                    else {
+                        mBatch.append(frame);
+                    }
+                    count++;
+                }
+                mBatch.flush();
+                mMetrics.onFramesOut(count);
+            }
+            catch(IOException e) {
+                lost(this, e);
+            }
+            finally {
+                mWriting.set(false);
+            }
+
+            //写的过程中又有新的帧进来
+            if(!mClosed && !mQueue.isEmpty()) {
+                scheduleWrite();
+            }
+        }
+
+        private void execute(PeerTask task, AtomicBoolean flag) {
+            try {
+                PeerHub.this.execute(task);
+            }
+            catch(RejectedExecutionException e) {
+                // stop() 之后不再接受读写
+                flag.set(false);
+            }
+        }
+
+        void close() {
+            mClosed = true;
+            mMetrics.onDisconnected();
+            mHandshakeTimeout.cancel(false);
+            mQueue.clear();
+            try {
+                mConnection.close();
+            }
+            catch(IOException e) {
+                // 忽略
+            }
+            if(mCompressor != null) {
+                mCompressor.end();
+            }
+        }
+    }
+}
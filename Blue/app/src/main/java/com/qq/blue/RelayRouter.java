@@ -0,0 +1,104 @@
+package com.qq.blue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 转发消息的编码和去重.
+ * TYPE_RELAY 帧的负载：[消息ID 8字节][剩余跳数 1字节][消息内容]
+ * 消息ID = 本机随机ID(高32位) + 本机递增计数(低32位)，每个节点只处理和转发第一次收到的ID
+ */
+public class RelayRouter {
+
+    public static final int HEADER_LENGTH = 9;
+
+    // 新消息最多转发几跳
+    public static final int DEFAULT_TTL = 8;
+
+    // 去重集合每一代的大小和时间窗口，大约每秒68条以内才能记住一整个窗口
+    private static final int SEEN_CAPACITY = 4096;
+    private static final long SEEN_WINDOW_MILLIS = 60 * 1000;
+
+    private final long mNodeId;
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private final MessageIdFilter mSeen = new MessageIdFilter(SEEN_CAPACITY, SEEN_WINDOW_MILLIS);
+
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mForwarded = new AtomicLong();
+
+    public RelayRouter() {
+        this(new Random().nextInt());
+    }
+
+    public RelayRouter(int nodeId) {
+        mNodeId = ((long) nodeId) << 32;
+    }
+
+    /**
+     * 把本机发出的消息包装成 TYPE_RELAY 的负载，并记为已见，转回来时会被丢弃
+     */
+    public byte[] wrap(byte[] message) {
+        long id = mNodeId | (mSequence.incrementAndGet() & 0xffffffffL);
+        mSeen.add(id);
+
+        byte[] payload = new byte[HEADER_LENGTH + message.length];
+        for(int i = 0; i < 8; i++) {
+            payload[i] = (byte) (id >>> (56 - 8 * i));
+        }
+        payload[8] = (byte) DEFAULT_TTL;
+        System.arraycopy(message, 0, payload, HEADER_LENGTH, message.length);
+        return payload;
+    }
+
+    /**
+     * 收到一个 TYPE_RELAY 帧
+     * @return  第一次收到返回true，重复的或格式不对的返回false
+     */
+    public boolean accept(byte[] buffer, int offset, int length) {
+        if(length < HEADER_LENGTH) return false;
+        if(!mSeen.add(readId(buffer, offset))) {
+            mDuplicates.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 生成转发给其它设备的负载，跳数减一
+     * @return  跳数用完时返回null
+     */
+    public byte[] forward(byte[] buffer, int offset, int length) {
+        int ttl = buffer[offset + 8] & 0xff;
+        if(ttl <= 1) return null;
+
+        byte[] payload = new byte[length];
+        System.arraycopy(buffer, offset, payload, 0, length);
+        payload[8] = (byte) (ttl - 1);
+        mForwarded.incrementAndGet();
+        return payload;
+    }
+
+    // 丢弃的重复消息数
+    public long getDuplicateCount() {
+        return mDuplicates.get();
+    }
+
+    // 转发的消息数
+    public long getForwardedCount() {
+        return mForwarded.get();
+    }
+
+    // 去重集合因为满了而提前轮换的次数，不为0时可能有重复消息漏过去
+    public long getSeenCapacityRotationCount() {
+        return mSeen.getCapacityRotationCount();
+    }
+
+    static long readId(byte[] buffer, int offset) {
+        long id = 0;
+        for(int i = 0; i < 8; i++) {
+            id = (id << 8) | (buffer[offset + i] & 0xff);
+        }
+        return id;
+    }
+}
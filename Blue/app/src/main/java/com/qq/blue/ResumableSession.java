@@ -0,0 +1,235 @@
+package com.qq.blue;
+
+import java.net.ProtocolException;
+import java.util.Random;
+
+/**
+ * 可以跨断线重连继续的聊天会话，握手时双方都声明 Handshake.FEATURE_RESUME 才使用.
+ * 每个方向的聊天消息（TYPE_TEXT/TYPE_RELAY）按顺序编号，从1开始.
+ * 连接可靠且有序，序号就是消息在会话中的位置，不用在每条消息里再带一遍.
+ * 重连握手后双方互发 TYPE_RESUME：[本机会话ID 8字节][本机知道的对方会话ID 8字节][已收到的对方消息数 8字节]，
+ * 收到对方的 TYPE_RESUME 后先发 TYPE_RESUME_SYNC：[后面第一条消息的序号-1 8字节]，
+ * 再从缓存中补发对方没收到的消息，之后才发新消息.
+ * 发送队列满了或者额度用完时补发不完的消息留在缓存中，由 flush() 在有空间时按顺序接着发，
+ * 这期间的新消息也只放进缓存排在后面，对方收到的序号始终和 SYNC 连续.
+ * 接收方每收到 ACK_INTERVAL 条消息回一个 TYPE_RESUME_ACK：[已收到的消息数 8字节]，
+ * 发送方只缓存没确认的消息，最多 REPLAY_CAPACITY 条，满了就不再接受新消息，所以缓存的消息不会被覆盖
+ */
+public class ResumableSession {
+
+    // 最多有多少条消息还没被确认，这些消息缓存起来用来补发
+    public static final int REPLAY_CAPACITY = 128;
+
+    // 每收到多少条消息确认一次
+    public static final int ACK_INTERVAL = 16;
+
+    static final int RESUME_LENGTH = 24;
+    static final int SYNC_LENGTH = 8;
+    static final int ACK_LENGTH = 8;
+
+    private final String mAddress;
+    private final long mId;
+    private final FrameBatch.Frame[] mReplay = new FrameBatch.Frame[REPLAY_CAPACITY];
+
+    // 已发送的消息数，也是最后一条的序号
+    private long mSent;
+    // 已经交给当前连接的最后一条的序号，小于 mSent 时还有消息等着补发
+    private long mWritten;
+    // 这次重连要补发到的序号
+    private long mReplayTarget;
+    // 有没有等着补发的消息，flush() 不拿锁先检查
+    private volatile boolean mBacklog;
+    // 对方确认收到的消息数
+    private long mAcked;
+    // 当前连接，断开时为null
+    private FileTransferManager.FrameSender mSender;
+
+    private long mPeerId;
+    private long mReceived;
+
+    private long mReplayed;
+    private long mLost;
+
+    public ResumableSession(String address) {
+        mAddress = address;
+        long id;
+        do {
+            id = new Random().nextLong();
+        } while(id == 0);
+        mId = id;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * 发送一条聊天消息.
+     * 断线期间或者还有消息等着补发时只记下来，之后按顺序发出
+     * @return  发送队列已满，或者没确认的消息已经占满缓存时返回false
+     */
+    public synchronized boolean offer(int type, byte[] payload) {
+        if(mSent - mAcked >= REPLAY_CAPACITY) return false;
+        boolean direct = mSender != null && mWritten == mSent;
+        if(direct && !mSender.offer(type, payload)) {
+            return false;
+        }
+        mSent++;
+        mReplay[(int) (mSent % REPLAY_CAPACITY)] = new FrameBatch.Frame(type, payload);
+        if(direct) {
+            mWritten = mSent;
+        }
+        else {
+            flushLocked();
+        }
+        return true;
+    }
+
+    /**
+     * 发送队列或者额度有了空间，接着发还没发出的消息；没有这样的消息时不拿锁
+     */
+    public void flush() {
+        if(!mBacklog) return;
+        synchronized(this) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() {
+        while(mSender != null && mWritten < mSent) {
+            FrameBatch.Frame frame = mReplay[(int) ((mWritten + 1) % REPLAY_CAPACITY)];
+            if(!mSender.offer(frame.type, frame.payload)) break;
+            mWritten++;
+            if(mWritten <= mReplayTarget) {
+                mReplayed++;
+            }
+        }
+        mBacklog = mWritten < mSent;
+    }
+
+    /**
+     * 收到一条对方的聊天消息
+     * @return  需要回 TYPE_RESUME_ACK 时返回true
+     */
+    public synchronized boolean onMessage() {
+        mReceived++;
+        return mReceived % ACK_INTERVAL == 0;
+    }
+
+    // TYPE_RESUME_ACK 的负载
+    public synchronized byte[] encodeAck() {
+        byte[] ack = new byte[ACK_LENGTH];
+        writeLong(ack, 0, mReceived);
+        return ack;
+    }
+
+    // 收到对方的 TYPE_RESUME_ACK
+    public synchronized void onAck(byte[] buffer, int offset, int length) throws ProtocolException {
+        if(length < ACK_LENGTH) {
+            throw new ProtocolException("bad resume ack length " + length);
+        }
+        acknowledge(readLong(buffer, offset));
+    }
+
+    // 确认过的消息所在的位置可以被新消息覆盖
+    private void acknowledge(long received) {
+        mAcked = Math.max(mAcked, Math.min(received, mSent));
+    }
+
+    // 本机的 TYPE_RESUME 负载
+    public synchronized byte[] encodeResume() {
+        byte[] resume = new byte[RESUME_LENGTH];
+        writeLong(resume, 0, mId);
+        writeLong(resume, 8, mPeerId);
+        writeLong(resume, 16, mReceived);
+        return resume;
+    }
+
+    /**
+     * 收到对方的 TYPE_RESUME，通过 sender 补发对方没收到的消息，之后的消息也通过它发送
+     * @return  双方都还是原来的会话时返回true，两端得到的结果相同
+     */
+    public synchronized boolean resume(byte[] buffer, int offset, int length,
+                                    FileTransferManager.FrameSender sender) throws ProtocolException {
+        if(length < RESUME_LENGTH) {
+            throw new ProtocolException("bad resume length " + length);
+        }
+        long peerId = readLong(buffer, offset);
+        long seen = readLong(buffer, offset + 8);
+        long received = readLong(buffer, offset + 16);
+
+        boolean resumed = peerId == mPeerId && seen == mId;
+
+        //对方换了会话（重启过），之前收到的计数作废，等它的 TYPE_RESUME_SYNC
+        if(peerId != mPeerId) {
+            mPeerId = peerId;
+            mReceived = 0;
+        }
+
+        //对方不认识本机的会话就不补发，从下一条新消息开始
+        long from = mSent;
+        if(seen == mId && received < mSent) {
+            from = Math.max(received, mSent - REPLAY_CAPACITY);
+            mLost += from - received;
+        }
+        acknowledge(from);
+
+        //SYNC 是这个连接的第一帧，发不出去后面的序号就对不上，和握手失败一样断开重连
+        byte[] sync = new byte[SYNC_LENGTH];
+        writeLong(sync, 0, from);
+        if(!sender.offer(FrameCodec.TYPE_RESUME_SYNC, sync)) {
+            throw new ProtocolException("unable to queue resume sync");
+        }
+
+        //补发不完的留给 flush()
+        mSender = sender;
+        mWritten = from;
+        mReplayTarget = mSent;
+        flushLocked();
+        return resumed;
+    }
+
+    // 收到对方的 TYPE_RESUME_SYNC，之后的消息从这个序号之后开始
+    public synchronized void onSync(byte[] buffer, int offset, int length) throws ProtocolException {
+        if(length < SYNC_LENGTH) {
+            throw new ProtocolException("bad resume sync length " + length);
+        }
+        mReceived = readLong(buffer, offset);
+    }
+
+    // 连接断开，之后的消息等重连后补发
+    public synchronized void detach(FileTransferManager.FrameSender sender) {
+        if(mSender == sender) {
+            mSender = null;
+        }
+    }
+
+    // 还没发出、等着补发的消息数
+    public synchronized long getBacklog() {
+        return mSent - mWritten;
+    }
+
+    // 重连后补发的消息数
+    public synchronized long getReplayedCount() {
+        return mReplayed;
+    }
+
+    // 重连时已经不在缓存中、没能补发的消息数
+    public synchronized long getLostCount() {
+        return mLost;
+    }
+
+    private static void writeLong(byte[] dst, int offset, long value) {
+        for(int i = 0; i < 8; i++) {
+            dst[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long readLong(byte[] src, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
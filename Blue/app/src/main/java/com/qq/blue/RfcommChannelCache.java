@@ -0,0 +1,171 @@
+package com.qq.blue;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个设备的RFCOMM服务通道缓存.
+ * createRfcommSocketToServiceRecord() 每次 connect() 前都要做一次SDP查询，重连常聊的设备时大部分时间花在这里.
+ * 用SDP连上后记下对方的通道号和验证时间，下次直接连这个通道；连不上就删掉缓存，重新用SDP.
+ * 同时统计两种方式的连接耗时，可以直接对比
+ */
+public class RfcommChannelCache {
+
+    // 超过这个时间没有验证过的通道不再使用，对方重启蓝牙后通道可能会变
+    public static final long MAX_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final String KEY_CHANNEL = "channel:";
+    private static final String KEY_VALIDATED = "validated:";
+
+    private final SharedPreferences mPreferences;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    // 直接连缓存的通道
+    private final ConnectStats mCachedStats = new ConnectStats();
+    // 通过SDP查询后连接，包括缓存的通道连不上之后的重试，这时耗时从尝试缓存的通道开始算
+    private final ConnectStats mSdpStats = new ConnectStats();
+    // 缓存的通道没连上，从尝试到失败的耗时
+    private final ConnectStats mCachedFailedStats = new ConnectStats();
+    private final AtomicLong mInvalidated = new AtomicLong();
+
+    /**
+     * @param preferences   保存缓存，重启应用后仍然有效，null表示只保存在内存中
+     */
+    public RfcommChannelCache(SharedPreferences preferences) {
+        mPreferences = preferences;
+        if(preferences != null) {
+            load(preferences);
+        }
+    }
+
+    /**
+     * @return  缓存的通道号，没有或者已经过期时返回-1
+     */
+    public synchronized int get(String address) {
+        Entry entry = mEntries.get(address);
+        if(entry == null) return -1;
+        if(System.currentTimeMillis() - entry.mmValidatedAt > MAX_AGE_MILLIS) {
+            remove(address);
+            return -1;
+        }
+        return entry.mmChannel;
+    }
+
+    // 用这个通道连接成功，更新验证时间
+    public synchronized void put(String address, int channel) {
+        long now = System.currentTimeMillis();
+        Entry entry = mEntries.get(address);
+        if(entry == null) {
+            entry = new Entry();
+            mEntries.put(address, entry);
+        }
+        entry.mmChannel = channel;
+        entry.mmValidatedAt = now;
+        if(mPreferences != null) {
+            mPreferences.edit()
+                    .putInt(KEY_CHANNEL + address, channel)
+                    .putLong(KEY_VALIDATED + address, now)
+                    .apply();
+        }
+    }
+
+    // 缓存的通道连不上
+    public synchronized void invalidate(String address) {
+        if(mEntries.containsKey(address)) {
+            mInvalidated.incrementAndGet();
+            remove(address);
+        }
+    }
+
+    /**
+     * @return  上次验证的时间，没有缓存时返回0
+     */
+    public synchronized long getValidatedAt(String address) {
+        Entry entry = mEntries.get(address);
+        return entry == null ? 0 : entry.mmValidatedAt;
+    }
+
+    public ConnectStats getCachedStats() {
+        return mCachedStats;
+    }
+
+    public ConnectStats getSdpStats() {
+        return mSdpStats;
+    }
+
+    public ConnectStats getCachedFailedStats() {
+        return mCachedFailedStats;
+    }
+
+    // 缓存的通道连不上而被删掉的次数
+    public long getInvalidatedCount() {
+        return mInvalidated.get();
+    }
+
+    private void remove(String address) {
+        mEntries.remove(address);
+        if(mPreferences != null) {
+            mPreferences.edit()
+                    .remove(KEY_CHANNEL + address)
+                    .remove(KEY_VALIDATED + address)
+                    .apply();
+        }
+    }
+
+    private void load(SharedPreferences preferences) {
+        for(String key : preferences.getAll().keySet()) {
+            if(!key.startsWith(KEY_CHANNEL)) continue;
+            String address = key.substring(KEY_CHANNEL.length());
+            Entry entry = new Entry();
+            entry.mmChannel = preferences.getInt(key, -1);
+            entry.mmValidatedAt = preferences.getLong(KEY_VALIDATED + address, 0);
+            if(entry.mmChannel > 0) {
+                mEntries.put(address, entry);
+            }
+        }
+    }
+
+
+    private static class Entry {
+        int mmChannel;
+        long mmValidatedAt;
+    }
+
+
+    /**
+     * 一种连接方式的次数和耗时
+     */
+    public static class ConnectStats {
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalMillis = new AtomicLong();
+        private final AtomicLong mLastMillis = new AtomicLong();
+
+        void record(long millis) {
+            mCount.incrementAndGet();
+            mTotalMillis.addAndGet(millis);
+            mLastMillis.set(millis);
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getLastMillis() {
+            return mLastMillis.get();
+        }
+
+        // 平均耗时，没有连接过时返回0
+        public long getAverageMillis() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mTotalMillis.get() / count;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " avg=" + getAverageMillis() + "ms last=" + getLastMillis() + "ms";
+        }
+    }
+}
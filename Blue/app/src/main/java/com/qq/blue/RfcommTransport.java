@@ -0,0 +1,215 @@
+package com.qq.blue;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * 蓝牙RFCOMM传输，地址是设备的MAC地址.
+ * 有 RfcommChannelCache 时，连接过的设备直接连缓存的通道，跳过SDP查询
+ */
+public class RfcommTransport implements ChatTransport {
+
+    private static final String TAG = "RfcommTransport";
+
+    // UUID
+    private static final UUID MY_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+
+    private static final String NAME = "BluetoothChat";
+
+    private final BluetoothAdapter mAdapter;
+    private final RfcommChannelCache mChannelCache;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        this(adapter, null);
+    }
+
+    /**
+     * @param channelCache  缓存解析出的服务通道，null表示每次都做SDP查询
+     */
+    public RfcommTransport(BluetoothAdapter adapter, RfcommChannelCache channelCache) {
+        mAdapter = adapter;
+        mChannelCache = channelCache;
+    }
+
+    public RfcommChannelCache getChannelCache() {
+        return mChannelCache;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        return new RfcommAcceptor(mAdapter.listenUsingRfcommWithServiceRecord(NAME, MY_UUID));
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        //socket 在 connect() 中再创建，先试缓存的通道
+        return new RfcommConnection(null, device, false);
+    }
+
+    // 直接连指定通道的socket，不做SDP查询，这是隐藏API，不可用时返回null
+    private static BluetoothSocket createChannelSocket(BluetoothDevice device, int channel) {
+        try {
+            Method method = BluetoothDevice.class.getMethod("createRfcommSocket", int.class);
+            return (BluetoothSocket) method.invoke(device, channel);
+        }
+        catch (Exception e) {
+            Log.w(TAG, "createRfcommSocket unavailable", e);
+            return null;
+        }
+    }
+
+    // SDP查询得到的通道号，连接成功后才有，读不到时返回-1
+    private static int resolvedChannel(BluetoothSocket socket) {
+        try {
+            Field field = BluetoothSocket.class.getDeclaredField("mPort");
+            field.setAccessible(true);
+            return field.getInt(socket);
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to read rfcomm channel", e);
+            return -1;
+        }
+    }
+
+
+    private class RfcommAcceptor implements Acceptor {
+        private final BluetoothServerSocket mmServerSocket;
+
+        RfcommAcceptor(BluetoothServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            BluetoothSocket socket = mmServerSocket.accept();
+            return new RfcommConnection(socket, socket.getRemoteDevice(), true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+
+
+    private class RfcommConnection implements Connection {
+        private volatile BluetoothSocket mmSocket;
+        private final BluetoothDevice mmDevice;
+        private final boolean mmConnected;
+        private volatile boolean mmClosed;
+
+        RfcommConnection(BluetoothSocket socket, BluetoothDevice device, boolean connected) {
+            mmSocket = socket;
+            mmDevice = device;
+            mmConnected = connected;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if(mmConnected) return;
+            //应该取消蓝牙设备可见，因为它会减慢连接速度
+            mAdapter.cancelDiscovery();
+
+            String address = mmDevice.getAddress();
+            //缓存的通道没连上时，花在上面的时间也算在这次SDP连接里
+            long start = SystemClock.elapsedRealtime();
+            int channel = mChannelCache == null ? -1 : mChannelCache.get(address);
+            if(channel > 0 && connectChannel(channel)) {
+                return;
+            }
+
+            BluetoothSocket socket = mmDevice.createRfcommSocketToServiceRecord(MY_UUID);
+            open(socket);
+            if(mChannelCache == null) return;
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            mChannelCache.getSdpStats().record(elapsed);
+            int resolved = resolvedChannel(socket);
+            Log.d(TAG, "sdp connect " + address + " channel " + resolved + " in " + elapsed + "ms");
+            if(resolved > 0) {
+                mChannelCache.put(address, resolved);
+            }
+        }
+
+        // 连接缓存的通道，失败时删掉缓存，由调用方改用SDP
+        private boolean connectChannel(int channel) throws IOException {
+            String address = mmDevice.getAddress();
+            BluetoothSocket socket = createChannelSocket(mmDevice, channel);
+            if(socket == null) return false;
+            long start = SystemClock.elapsedRealtime();
+            try {
+                open(socket);
+            }
+            catch (IOException e) {
+                if(mmClosed) throw e;
+                try {
+                    socket.close();
+                }
+                catch (IOException e2) {
+                    Log.e(TAG, "close() of cached channel socket failed", e2);
+                }
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                mChannelCache.getCachedFailedStats().record(elapsed);
+                Log.w(TAG, "cached channel " + channel + " of " + address + " failed in " + elapsed
+                        + "ms, falling back to sdp", e);
+                mChannelCache.invalidate(address);
+                return false;
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            mChannelCache.getCachedStats().record(elapsed);
+            mChannelCache.put(address, channel);
+            Log.d(TAG, "cached connect " + address + " channel " + channel + " in " + elapsed + "ms");
+            return true;
+        }
+
+        private void open(BluetoothSocket socket) throws IOException {
+            mmSocket = socket;
+            //close() 可能在 socket 赋值之前被调用
+            if(mmClosed) {
+                socket.close();
+                throw new IOException("connection closed");
+            }
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmDevice.getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mmDevice.getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmClosed = true;
+            BluetoothSocket socket = mmSocket;
+            if(socket != null) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.qq.blue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 基于NIO SocketChannel 的TCP传输，地址格式是 host:port.
+ * 用于在没有蓝牙的机器之间测试，或者在JVM上压测真实的网络栈.
+ * 接受的连接的对方端口每次都不一样，不能当作设备地址：连接建立后双方先互发自己的节点ID，
+ * getRemoteAddress() 返回对方的节点ID，重连后聊天记录、会话和文件续传都还对得上.
+ * 节点ID默认是本机这一端的IP加 listen() 的端口，也就是对方能连回来的地址
+ */
+public class TcpTransport implements ChatTransport {
+
+    private final int mListenPort;
+    private final String mNodeId;
+
+    /**
+     * @param listenPort    listen() 绑定的端口
+     */
+    public TcpTransport(int listenPort) {
+        this(listenPort, null);
+    }
+
+    /**
+     * @param listenPort    listen() 绑定的端口
+     * @param nodeId    连接时告诉对方的节点ID，null表示用本机这一端的IP加 listenPort
+     */
+    public TcpTransport(int listenPort, String nodeId) {
+        mListenPort = listenPort;
+        mNodeId = nodeId;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(mListenPort));
+        }
+        catch(IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        return new TcpAcceptor(serverChannel);
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if(colon < 0) {
+            throw new IOException("address must be host:port, got " + address);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        }
+        catch(NumberFormatException e) {
+            throw new IOException("bad port in " + address);
+        }
+        return new TcpConnection(this, SocketChannel.open(), address.substring(0, colon), port);
+    }
+
+    // 告诉对方的节点ID
+    private String nodeId(SocketChannel channel) {
+        if(mNodeId != null) return mNodeId;
+        return channel.socket().getLocalAddress().getHostAddress() + ":" + mListenPort;
+    }
+
+
+    private class TcpAcceptor implements Acceptor {
+        private final ServerSocketChannel mmServerChannel;
+
+        TcpAcceptor(ServerSocketChannel serverChannel) {
+            mmServerChannel = serverChannel;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            while(true) {
+                SocketChannel channel = mmServerChannel.accept();
+                TcpConnection connection = new TcpConnection(TcpTransport.this, channel, null, 0);
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    connection.exchangeIds();
+                    return connection;
+                }
+                catch(IOException e) {
+                    //对方没有按时发来节点ID，只关掉这个连接，接着接受别的
+                    channel.close();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerChannel.close();
+        }
+    }
+
+
+    private static class TcpConnection implements Connection {
+        // available() 预读的大小
+        private static final int PEEK_SIZE = 4 * 1024;
+
+        private final TcpTransport mmTransport;
+        private final SocketChannel mmChannel;
+        private final String mmHost;
+        private final int mmPort;
+        private final InputStream mmInStream;
+        private final OutputStream mmOutStream;
+        // available() 非阻塞预读到的数据，read() 先从这里取
+        private final ByteBuffer mmPeek = ByteBuffer.allocate(PEEK_SIZE);
+        // 对方的节点ID，交换之前为null
+        private volatile String mmRemoteId;
+
+        /**
+         * @param host  要连接的主机，accept() 得到的连接传null
+         */
+        TcpConnection(TcpTransport transport, SocketChannel channel, String host, int port) {
+            mmTransport = transport;
+            mmChannel = channel;
+            mmHost = host;
+            mmPort = port;
+            mmPeek.flip();
+
+            //不用 Channels.newInputStream()：它的读和写会抢同一把 blockingLock，读阻塞时写不出去
+            mmInStream = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if(len == 0) return 0;
+                    synchronized(mmPeek) {
+                        if(mmPeek.hasRemaining()) {
+                            int bytes = Math.min(len, mmPeek.remaining());
+                            mmPeek.get(b, off, bytes);
+                            return bytes;
+                        }
+                    }
+                    return mmChannel.read(ByteBuffer.wrap(b, off, len));
+                }
+
+                /**
+                 * 临时切换到非阻塞模式预读，PeerHub 靠它找出有数据的连接.
+                 * 不能和阻塞的 read() 同时调用，PeerHub 在读的时候不会轮询这个连接
+                 */
+                @Override
+                public int available() throws IOException {
+                    synchronized(mmPeek) {
+                        if(mmPeek.hasRemaining()) {
+                            return mmPeek.remaining();
+                        }
+                        mmPeek.clear();
+                        int bytes;
+                        mmChannel.configureBlocking(false);
+                        try {
+                            bytes = mmChannel.read(mmPeek);
+                        }
+                        finally {
+                            mmPeek.flip();
+                            mmChannel.configureBlocking(true);
+                        }
+                        //对方关闭后抛出异常，轮询时就能断开连接
+                        if(bytes < 0) {
+                            throw new EOFException("end of stream");
+                        }
+                        return mmPeek.remaining();
+                    }
+                }
+            };
+            mmOutStream = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    while(buffer.hasRemaining()) {
+                        mmChannel.write(buffer);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if(mmHost == null || mmChannel.isConnected()) return;
+            mmChannel.connect(new InetSocketAddress(mmHost, mmPort));
+            mmChannel.socket().setTcpNoDelay(true);
+            exchangeIds();
+        }
+
+        /**
+         * 连接后在其它数据之前互发节点ID，等待对方的ID不超过 Handshake.TIMEOUT_MILLIS.
+         * 超时用 socket 适配器的输入流实现，它逐字节按需读取，不会多读后面的帧
+         */
+        void exchangeIds() throws IOException {
+            new DataOutputStream(mmOutStream).writeUTF(mmTransport.nodeId(mmChannel));
+            mmChannel.socket().setSoTimeout((int) Handshake.TIMEOUT_MILLIS);
+            try {
+                mmRemoteId = new DataInputStream(mmChannel.socket().getInputStream()).readUTF();
+            }
+            catch(SocketTimeoutException e) {
+                throw new SocketTimeoutException("no node id from " + remoteSocketAddress());
+            }
+            finally {
+                mmChannel.socket().setSoTimeout(0);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmInStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmOutStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            String remoteId = mmRemoteId;
+            if(remoteId != null) return remoteId;
+            //还没连上
+            return mmHost != null ? mmHost + ":" + mmPort : remoteSocketAddress();
+        }
+
+        private String remoteSocketAddress() {
+            InetSocketAddress remote = (InetSocketAddress) mmChannel.socket().getRemoteSocketAddress();
+            return remote == null ? null : remote.getAddress().getHostAddress() + ":" + remote.getPort();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmChannel.close();
+        }
+    }
+}
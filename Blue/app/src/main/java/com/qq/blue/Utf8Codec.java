@@ -0,0 +1,229 @@
+package com.qq.blue;
+
+/**
+ * 聊天消息的 UTF-8 编解码，不依赖平台默认字符集，也不为每条消息创建 CharsetDecoder.
+ * Decoder 可以分多次 write()，被切开的多字节字符留到下一次拼上；
+ * 连续的 ASCII 字节直接拷贝，不走多字节的分支.
+ * 无效的字节序列、超长编码、代理区码点和不完整的结尾都换成 U+FFFD.
+ * 只用 API 17 就有的 Character 方法
+ */
+public final class Utf8Codec {
+
+    public static final char REPLACEMENT = '\uFFFD';
+
+    // 编码时不成对的代理字符换成这个，和 String.getBytes("UTF-8") 一样
+    private static final byte UNMAPPABLE = '?';
+
+    private Utf8Codec() {
+    }
+
+
+    /**
+     * 有状态的解码器，反复使用，不是线程安全的
+     */
+    public static final class Decoder {
+
+        private char[] mmChars;
+        private int mmLength;
+
+        // 还没拼完的字符：已读到的位、还差几个字节、最小的合法码点（用来发现超长编码）
+        private int mmCodePoint;
+        private int mmNeeded;
+        private int mmMinimum;
+
+        public Decoder() {
+            this(256);
+        }
+
+        public Decoder(int capacity) {
+            mmChars = new char[Math.max(capacity, 16)];
+        }
+
+        /**
+         * 解码一段字节，结尾不完整的字符留到下一次
+         */
+        public void write(byte[] buffer, int offset, int length) {
+            //每个字节最多产生一个字符，加上被打断的上一个字符
+            ensureCapacity(mmLength + length + 2);
+            char[] chars = mmChars;
+            int count = mmLength;
+            int end = offset + length;
+            int i = offset;
+            while(i < end) {
+                if(mmNeeded == 0) {
+                    //ASCII 快速路径
+                    while(i < end && buffer[i] >= 0) {
+                        chars[count++] = (char) buffer[i++];
+                    }
+                    if(i == end) break;
+                    int b = buffer[i++] & 0xff;
+                    if(b >= 0xc2 && b <= 0xdf) {
+                        mmCodePoint = b & 0x1f;
+                        mmNeeded = 1;
+                        mmMinimum = 0x80;
+                    }
+                    else if(b >= 0xe0 && b <= 0xef) {
+                        mmCodePoint = b & 0x0f;
+                        mmNeeded = 2;
+                        mmMinimum = 0x800;
+                    }
+                    else if(b >= 0xf0 && b <= 0xf4) {
+                        mmCodePoint = b & 0x07;
+                        mmNeeded = 3;
+                        mmMinimum = 0x10000;
+                    }
+                    else {
+                        //单独的后续字节，或者不可能出现的首字节
+                        chars[count++] = REPLACEMENT;
+                    }
+                    continue;
+                }
+                int b = buffer[i];
+                if((b & 0xc0) != 0x80) {
+                    //字符没写完就开始了下一个，这个字节重新作为首字节处理
+                    chars[count++] = REPLACEMENT;
+                    mmNeeded = 0;
+                    continue;
+                }
+                i++;
+                mmCodePoint = (mmCodePoint << 6) | (b & 0x3f);
+                if(--mmNeeded > 0) continue;
+                int codePoint = mmCodePoint;
+                if(codePoint < mmMinimum || codePoint > Character.MAX_CODE_POINT
+                        || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                    chars[count++] = REPLACEMENT;
+                }
+                else if(codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    chars[count++] = (char) codePoint;
+                }
+                else {
+                    chars[count++] = (char) (Character.MIN_HIGH_SURROGATE + ((codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT) >>> 10));
+                    chars[count++] = (char) (Character.MIN_LOW_SURROGATE + (codePoint & 0x3ff));
+                }
+            }
+            mmLength = count;
+        }
+
+        /**
+         * 结束当前的文本，不完整的结尾换成 U+FFFD，之后重新开始
+         */
+        public String finish() {
+            if(mmNeeded > 0) {
+                ensureCapacity(mmLength + 1);
+                mmChars[mmLength++] = REPLACEMENT;
+                mmNeeded = 0;
+            }
+            String text = new String(mmChars, 0, mmLength);
+            mmLength = 0;
+            return text;
+        }
+
+        /**
+         * 解码一条完整的消息
+         */
+        public String decode(byte[] buffer, int offset, int length) {
+            reset();
+            write(buffer, offset, length);
+            return finish();
+        }
+
+        // 丢掉已解码的字符和没拼完的字符
+        public void reset() {
+            mmLength = 0;
+            mmNeeded = 0;
+        }
+
+        // 有没有被切开、等待后续字节的字符
+        public boolean hasPartial() {
+            return mmNeeded > 0;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if(capacity <= mmChars.length) return;
+            char[] chars = new char[Math.max(capacity, mmChars.length * 2)];
+            System.arraycopy(mmChars, 0, chars, 0, mmLength);
+            mmChars = chars;
+        }
+    }
+
+
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    /**
+     * 编码后的字节数
+     */
+    public static int encodedLength(CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        for(int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if(c < 0x80) continue;
+            if(c < 0x800) {
+                bytes += 1;
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                //两个 char 编成4个字节
+                bytes += 2;
+                i++;
+            }
+            else if(isSurrogate(c)) {
+                //编成一个 '?'
+            }
+            else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 编码到 buffer 中，空间要至少 encodedLength(text)
+     * @return  写入的字节数
+     */
+    public static int encode(CharSequence text, byte[] buffer, int offset) {
+        int length = text.length();
+        int position = offset;
+        int i = 0;
+        while(i < length) {
+            char c = text.charAt(i);
+            //ASCII 快速路径
+            if(c < 0x80) {
+                buffer[position++] = (byte) c;
+                i++;
+                continue;
+            }
+            if(c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else if(isSurrogate(c)) {
+                buffer[position++] = UNMAPPABLE;
+            }
+            else {
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+            i++;
+        }
+        return position - offset;
+    }
+
+    /**
+     * 编码成刚好大小的数组，发送队列直接保存这个数组
+     */
+    public static byte[] encode(CharSequence text) {
+        byte[] buffer = new byte[encodedLength(text)];
+        encode(text, buffer, 0);
+        return buffer;
+    }
+}
@@ -0,0 +1,272 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * ChatEventBus 的分发和 TYPE_READ 缓冲区的归还，在普通JVM上运行
+ */
+public class ChatEventBusTest {
+
+    // 手动执行的 executor，模拟处理得很慢的订阅者
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            while(!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class CountingRecycler implements ChatEventBus.Recycler {
+        final List<byte[]> mRecycled = new ArrayList<byte[]>();
+
+        @Override
+        public void recycle(byte[] buffer) {
+            mRecycled.add(buffer);
+        }
+    }
+
+    private static class CountingListener implements ChatEventBus.Listener {
+        int mCount;
+
+        @Override
+        public void onEvent(ChatEvent event) {
+            mCount++;
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static boolean publishRead(ChatEventBus bus, byte[] buffer) {
+        return bus.publish(ChatEvent.TYPE_READ, buffer.length, -1, 0, buffer, null, null);
+    }
+
+    @Test
+    public void publishWithoutSubscribers_isNotDelivered() throws Exception {
+        CountingRecycler recycler = new CountingRecycler();
+        ChatEventBus bus = new ChatEventBus(16, recycler);
+
+        //返回false，缓冲区由发布者归还，总线不会再归还一次
+        assertFalse(publishRead(bus, new byte[4]));
+        assertEquals(0, recycler.mRecycled.size());
+        assertEquals(0, bus.getPublishedCount());
+    }
+
+    @Test
+    public void readBuffer_recycledOnceAfterLastSubscriber() throws Exception {
+        CountingRecycler recycler = new CountingRecycler();
+        ChatEventBus bus = new ChatEventBus(16, recycler);
+        ManualExecutor fast = new ManualExecutor();
+        ManualExecutor slow = new ManualExecutor();
+        CountingListener first = new CountingListener();
+        CountingListener second = new CountingListener();
+        bus.subscribe(first, fast);
+        bus.subscribe(second, slow);
+
+        byte[] buffer = new byte[4];
+        assertTrue(publishRead(bus, buffer));
+        fast.runAll();
+        assertEquals(1, first.mCount);
+        assertEquals(0, recycler.mRecycled.size());
+
+        slow.runAll();
+        assertEquals(1, second.mCount);
+        assertEquals(1, recycler.mRecycled.size());
+        assertSame(buffer, recycler.mRecycled.get(0));
+    }
+
+    @Test
+    public void otherEvents_areNotRecycled() throws Exception {
+        CountingRecycler recycler = new CountingRecycler();
+        ChatEventBus bus = new ChatEventBus(16, recycler);
+        ManualExecutor executor = new ManualExecutor();
+        bus.subscribe(new CountingListener(), executor);
+
+        assertTrue(bus.publish(ChatEvent.TYPE_WRITE, -1, -1, 0, new byte[4], null, null));
+        executor.runAll();
+        assertEquals(0, recycler.mRecycled.size());
+    }
+
+    @Test
+    public void fullRing_dropsWithoutBlocking() throws Exception {
+        CountingRecycler recycler = new CountingRecycler();
+        ChatEventBus bus = new ChatEventBus(4, recycler);
+        ManualExecutor executor = new ManualExecutor();
+        CountingListener listener = new CountingListener();
+        bus.subscribe(listener, executor);
+
+        int capacity = bus.getCapacity();
+        for(int i = 0; i < capacity; i++) {
+            assertTrue(publishRead(bus, new byte[1]));
+        }
+        //订阅者一个都没处理，马上返回false而不是等待
+        long start = System.nanoTime();
+        assertFalse(publishRead(bus, new byte[1]));
+        assertTrue(System.nanoTime() - start < 100 * 1000 * 1000L);
+        assertEquals(1, bus.getDroppedCount());
+
+        executor.runAll();
+        assertEquals(capacity, listener.mCount);
+        assertEquals(capacity, recycler.mRecycled.size());
+        //处理完之后又有空间
+        assertTrue(publishRead(bus, new byte[1]));
+    }
+
+    @Test
+    public void failingListener_stillReleases() throws Exception {
+        CountingRecycler recycler = new CountingRecycler();
+        ChatEventBus bus = new ChatEventBus(16, recycler);
+        ManualExecutor executor = new ManualExecutor();
+        bus.subscribe(new ChatEventBus.Listener() {
+            @Override
+            public void onEvent(ChatEvent event) {
+                throw new IllegalStateException("test");
+            }
+        }, executor);
+
+        assertTrue(publishRead(bus, new byte[4]));
+        executor.runAll();
+        assertEquals(1, bus.getListenerErrorCount());
+        assertEquals(1, recycler.mRecycled.size());
+    }
+
+    @Test
+    public void unsubscribe_releasesPendingWithoutCallback() throws Exception {
+        CountingRecycler recycler = new CountingRecycler();
+        ChatEventBus bus = new ChatEventBus(16, recycler);
+        ManualExecutor executor = new ManualExecutor();
+        CountingListener listener = new CountingListener();
+        ChatEventBus.Subscription subscription = bus.subscribe(listener, executor);
+
+        assertTrue(publishRead(bus, new byte[4]));
+        bus.unsubscribe(subscription);
+        executor.runAll();
+        assertEquals(0, listener.mCount);
+        assertEquals(1, recycler.mRecycled.size());
+
+        //已经没有订阅者
+        assertFalse(publishRead(bus, new byte[4]));
+        assertEquals(1, recycler.mRecycled.size());
+    }
+
+    @Test
+    public void fullRing_defersOtherEventsInOrder() throws Exception {
+        ChatEventBus bus = new ChatEventBus(4, new CountingRecycler());
+        ManualExecutor executor = new ManualExecutor();
+        final List<Integer> types = new ArrayList<Integer>();
+        bus.subscribe(new ChatEventBus.Listener() {
+            @Override
+            public void onEvent(ChatEvent event) {
+                types.add(event.getType());
+            }
+        }, executor);
+
+        int capacity = bus.getCapacity();
+        for(int i = 0; i < capacity; i++) {
+            assertTrue(publishRead(bus, new byte[1]));
+        }
+        //状态变化不能丢，之后的 TYPE_READ 可以丢
+        assertTrue(bus.publish(ChatEvent.TYPE_STATE_CHANGE, 3, -1, 0, null, null, null));
+        assertFalse(publishRead(bus, new byte[1]));
+        assertTrue(bus.publish(ChatEvent.TYPE_STATE_CHANGE, 0, -1, 0, null, null, null));
+        assertTrue(bus.publish(ChatEvent.TYPE_TOAST, 0, 0, 0, null, "lost", null));
+        assertEquals(1, bus.getDroppedCount());
+        assertEquals(3, bus.getDeferredCount());
+
+        executor.runAll();
+        List<Integer> expected = new ArrayList<Integer>();
+        for(int i = 0; i < capacity; i++) {
+            expected.add(ChatEvent.TYPE_READ);
+        }
+        expected.add(ChatEvent.TYPE_STATE_CHANGE);
+        expected.add(ChatEvent.TYPE_STATE_CHANGE);
+        expected.add(ChatEvent.TYPE_TOAST);
+        assertEquals(expected, types);
+    }
+
+    @Test
+    public void subscribeWhilePublishing_recyclesEachBufferOnce() throws Exception {
+        final ConcurrentHashMap<byte[], Boolean> recycled = new ConcurrentHashMap<byte[], Boolean>();
+        final AtomicInteger doubleRecycled = new AtomicInteger();
+        final AtomicInteger recycledWhileReading = new AtomicInteger();
+        final ChatEventBus bus = new ChatEventBus(64, new ChatEventBus.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                if(recycled.put(buffer, Boolean.TRUE) != null) {
+                    doubleRecycled.incrementAndGet();
+                }
+            }
+        });
+        //一直在的订阅者，像UI
+        final ChatEventBus.Listener reader = new ChatEventBus.Listener() {
+            @Override
+            public void onEvent(ChatEvent event) {
+                if(event.getType() == ChatEvent.TYPE_READ && recycled.containsKey(event.getBuffer())) {
+                    recycledWhileReading.incrementAndGet();
+                }
+            }
+        };
+        bus.subscribe(reader, DIRECT);
+
+        final int publishers = 3;
+        final int perPublisher = 20000;
+        final AtomicInteger refused = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[publishers];
+        for(int t = 0; t < publishers; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < perPublisher; i++) {
+                        if(!publishRead(bus, new byte[1])) {
+                            refused.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        //发布的同时不断订阅、取消订阅
+        Thread subscriber = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(!done.get()) {
+                    ChatEventBus.Subscription subscription = bus.subscribe(reader, DIRECT);
+                    Thread.yield();
+                    bus.unsubscribe(subscription);
+                }
+            }
+        });
+        subscriber.start();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        subscriber.join();
+
+        assertEquals(0, doubleRecycled.get());
+        assertEquals(0, recycledWhileReading.get());
+        //每个缓冲区要么由总线归还一次，要么 publish() 返回false由发布者归还
+        assertEquals(publishers * perPublisher, recycled.size() + refused.get());
+    }
+}
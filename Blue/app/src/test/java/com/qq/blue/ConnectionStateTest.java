@@ -0,0 +1,109 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * ConnectionState 的切换：不允许的边被拒绝，多个线程同时切换时监听器按切换的顺序收到，不会并发回调
+ */
+public class ConnectionStateTest {
+
+    // 检查收到的切换首尾相接
+    private static class Recorder implements ConnectionState.Listener {
+        final AtomicBoolean mInside = new AtomicBoolean();
+        final AtomicInteger mConcurrent = new AtomicInteger();
+        volatile int mLast = ConnectionState.STATE_NONE;
+        volatile int mBroken;
+        volatile int mCount;
+        volatile int mConnected;
+
+        @Override
+        public void onStateChanged(int previous, int state, int flags) {
+            if(!mInside.compareAndSet(false, true)) {
+                mConcurrent.incrementAndGet();
+            }
+            if(previous != mLast) {
+                mBroken++;
+            }
+            if(state == ConnectionState.STATE_CONNECTED && previous != ConnectionState.STATE_CONNECTED) {
+                mConnected++;
+            }
+            mLast = state;
+            mCount++;
+            mInside.set(false);
+        }
+    }
+
+    @Test
+    public void invalidTransition_isRejected() throws Exception {
+        ConnectionState state = new ConnectionState();
+        Recorder recorder = new Recorder();
+        state.addListener(recorder);
+
+        //没有连接过程不能直接已连接
+        assertEquals(-1, state.moveTo(ConnectionState.STATE_CONNECTED, -1));
+        assertEquals(ConnectionState.STATE_NONE, state.moveTo(ConnectionState.STATE_LISTEN, -1));
+        assertFalse(state.transition(ConnectionState.STATE_LISTEN, ConnectionState.STATE_CONNECTED, -1));
+        assertTrue(state.transition(ConnectionState.STATE_LISTEN, ConnectionState.STATE_CONNECTED, -1,
+                ConnectionState.VIA_ACCEPT));
+        //当前状态不是 from 时什么也不做，不算拒绝
+        assertFalse(state.transition(ConnectionState.STATE_CONNECTING, ConnectionState.STATE_NONE, -1));
+
+        assertEquals(ConnectionState.STATE_CONNECTED, state.get());
+        assertEquals(2, state.getRejectedCount());
+        assertEquals(1, state.getConnectedCount());
+        assertEquals(2, recorder.mCount);
+        assertEquals(0, recorder.mBroken);
+    }
+
+    @Test
+    public void concurrentTransitions_areDeliveredInOrder() throws Exception {
+        final ConnectionState state = new ConnectionState();
+        final Recorder recorder = new Recorder();
+        state.addListener(recorder);
+
+        final int[] targets = {ConnectionState.STATE_NONE, ConnectionState.STATE_LISTEN,
+                ConnectionState.STATE_CONNECTING, ConnectionState.STATE_CONNECTED};
+        final AtomicInteger moved = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < 20000; i++) {
+                        int to = targets[random.nextInt(targets.length)];
+                        if(state.moveTo(to, -1, ConnectionState.VIA_ACCEPT) >= 0) {
+                            moved.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, recorder.mConcurrent.get());
+        assertEquals(0, recorder.mBroken);
+        assertEquals(moved.get(), recorder.mCount);
+        assertEquals(state.get(), recorder.mLast);
+        assertEquals(state.getConnectedCount(), recorder.mConnected);
+    }
+}
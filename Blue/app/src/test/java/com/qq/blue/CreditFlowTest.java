@@ -0,0 +1,153 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * CreditFlow 的额度计算：发送方和接收方两个 CreditFlow 之间的额度守恒
+ */
+public class CreditFlowTest {
+
+    private static void grant(CreditFlow sender, int credits) throws ProtocolException {
+        byte[] credit = CreditFlow.encodeCredit(credits);
+        sender.onCredit(credit, 0, credit.length);
+    }
+
+    @Test
+    public void creditedTypes_areChatMessagesOnly() throws Exception {
+        assertTrue(CreditFlow.isCredited(FrameCodec.TYPE_TEXT));
+        assertTrue(CreditFlow.isCredited(FrameCodec.TYPE_RELAY));
+        assertFalse(CreditFlow.isCredited(FrameCodec.TYPE_FILE_CHUNK));
+        assertFalse(CreditFlow.isCredited(FrameCodec.TYPE_CREDIT));
+        assertFalse(CreditFlow.isCredited(FrameCodec.TYPE_RESUME_SYNC));
+    }
+
+    @Test
+    public void exhaustedCredits_stallUntilGranted() throws Exception {
+        CreditFlow flow = new CreditFlow();
+        for(int i = 0; i < CreditFlow.INITIAL_CREDITS; i++) {
+            assertTrue(flow.tryAcquire());
+        }
+        assertFalse(flow.tryAcquire());
+        assertFalse(flow.tryAcquire());
+        assertEquals(0, flow.getCredits());
+        assertEquals(2, flow.getStallCount());
+
+        grant(flow, 3);
+        assertEquals(3, flow.getCredits());
+        assertTrue(flow.tryAcquire());
+
+        //没能放进队列的额度还回去
+        flow.release();
+        assertEquals(3, flow.getCredits());
+    }
+
+    @Test
+    public void grant_waitsForThreshold() throws Exception {
+        CreditFlow flow = new CreditFlow();
+        for(int i = 0; i < CreditFlow.GRANT_THRESHOLD; i++) {
+            flow.onReceived();
+        }
+        assertEquals(CreditFlow.GRANT_THRESHOLD, flow.getOutstanding());
+
+        for(int i = 0; i < CreditFlow.GRANT_THRESHOLD - 1; i++) {
+            flow.onConsumed();
+            assertEquals(0, flow.takeGrant());
+        }
+        flow.onConsumed();
+        assertEquals(0, flow.getOutstanding());
+        assertEquals(CreditFlow.GRANT_THRESHOLD, flow.takeGrant());
+        assertEquals(0, flow.takeGrant());
+
+        //没发出去的额度下次连同新消费的一起回复
+        flow.restoreGrant(CreditFlow.GRANT_THRESHOLD);
+        flow.onReceived();
+        flow.onConsumed();
+        assertEquals(CreditFlow.GRANT_THRESHOLD + 1, flow.takeGrant());
+    }
+
+    @Test
+    public void creditsAreConserved_betweenTwoEnds() throws Exception {
+        CreditFlow sender = new CreditFlow();
+        CreditFlow receiver = new CreditFlow();
+
+        //发送方一直发到额度用完，接收方每消费一条就看看要不要回复
+        int sent = 0;
+        int unreplied = 0;
+        for(int round = 0; round < 1000; round++) {
+            while(sender.tryAcquire()) {
+                receiver.onReceived();
+                sent++;
+            }
+            assertTrue(receiver.getOutstanding() <= CreditFlow.INITIAL_CREDITS);
+            int consume = receiver.getOutstanding() / 2 + 1;
+            for(int i = 0; i < consume; i++) {
+                receiver.onConsumed();
+                unreplied++;
+                int credits = receiver.takeGrant();
+                if(credits > 0) {
+                    grant(sender, credits);
+                    unreplied -= credits;
+                }
+            }
+            assertTrue(unreplied < CreditFlow.GRANT_THRESHOLD);
+            //发送方剩下的 + 没有回复的 + 还没消费的 = 初始额度
+            assertEquals(CreditFlow.INITIAL_CREDITS,
+                    sender.getCredits() + unreplied + receiver.getOutstanding());
+        }
+        assertTrue(sent > 1000);
+    }
+
+    @Test
+    public void concurrentAcquire_neverOverspends() throws Exception {
+        final CreditFlow flow = new CreditFlow();
+        final AtomicInteger acquired = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < CreditFlow.INITIAL_CREDITS; i++) {
+                        if(flow.tryAcquire()) {
+                            acquired.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(CreditFlow.INITIAL_CREDITS, acquired.get());
+        assertEquals(0, flow.getCredits());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void zeroCredit_isRejected() throws Exception {
+        grant(new CreditFlow(), 0);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void negativeCredit_isRejected() throws Exception {
+        grant(new CreditFlow(), -1);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void shortCredit_isRejected() throws Exception {
+        new CreditFlow().onCredit(new byte[3], 0, 3);
+    }
+}
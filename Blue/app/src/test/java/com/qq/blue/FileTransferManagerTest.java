@@ -0,0 +1,248 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 接收方续传前的检查：只和同一个设备、同一个文件续传；发送方按协商出的最大负载长度分块
+ */
+public class FileTransferManagerTest {
+
+    private static final long SIZE = 100;
+    private static final long ID = FileTransferManager.transferId("/sdcard/a.bin", SIZE, 1000);
+
+    // 记下回复的 FILE_ACCEPT 的开始位置
+    private static class ReplySender implements FileTransferManager.FrameSender {
+        final List<Long> mAccepted = new ArrayList<Long>();
+
+        @Override
+        public boolean offer(int type, byte[] payload) {
+            if(type == FrameCodec.TYPE_FILE_ACCEPT) {
+                mAccepted.add(FileTransferManager.readLong(payload, 8));
+            }
+            return true;
+        }
+
+        long last() {
+            return mAccepted.get(mAccepted.size() - 1);
+        }
+    }
+
+    private static class NullListener implements FileTransferManager.Listener {
+        @Override
+        public void onTransferProgress(FileTransferManager.Transfer transfer) {
+        }
+
+        @Override
+        public void onTransferComplete(FileTransferManager.Transfer transfer) {
+        }
+
+        @Override
+        public void onTransferFailed(FileTransferManager.Transfer transfer, IOException e) {
+        }
+    }
+
+    // 像对方一样立刻接受和确认，记下数据块的长度
+    private static class PeerSender implements FileTransferManager.FrameSender {
+        final List<Integer> mChunkLengths = Collections.synchronizedList(new ArrayList<Integer>());
+        FileTransferManager mManager;
+
+        @Override
+        public boolean offer(int type, byte[] payload) {
+            long id = FileTransferManager.readLong(payload, 0);
+            try {
+                if(type == FrameCodec.TYPE_FILE_OFFER) {
+                    reply(FrameCodec.TYPE_FILE_ACCEPT, id, 0);
+                }
+                else if(type == FrameCodec.TYPE_FILE_CHUNK) {
+                    mChunkLengths.add(payload.length);
+                    reply(FrameCodec.TYPE_FILE_ACK, id, FileTransferManager.readLong(payload, 8) + payload.length - 16);
+                }
+            }
+            catch(IOException e) {
+                throw new AssertionError(e);
+            }
+            return true;
+        }
+
+        private void reply(int type, long id, long value) throws IOException {
+            byte[] payload = new byte[16];
+            FileTransferManager.writeLong(payload, 0, id);
+            FileTransferManager.writeLong(payload, 8, value);
+            mManager.onFrame(type, payload, 0, payload.length);
+        }
+    }
+
+    // 等待发送结束
+    private static class ResultListener extends NullListener {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile boolean mComplete;
+        volatile IOException mError;
+
+        @Override
+        public void onTransferComplete(FileTransferManager.Transfer transfer) {
+            mComplete = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onTransferFailed(FileTransferManager.Transfer transfer, IOException e) {
+            mError = e;
+            mDone.countDown();
+        }
+    }
+
+    private static File newFile(File directory, String name, int length) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+    // 发送 file 给最大负载是 maxPayloadLength 的对方
+    private static ResultListener send(File file, PeerSender sender, int maxPayloadLength) throws Exception {
+        ResultListener listener = new ResultListener();
+        FileTransferManager manager = new FileTransferManager(listener, null);
+        LifecycleExecutor lifecycle = new LifecycleExecutor();
+        try {
+            manager.setLifecycleExecutor(lifecycle);
+            sender.mManager = manager;
+            manager.send(file);
+            manager.onConnected(sender, "00:11:22:33:44:55", maxPayloadLength);
+            assertTrue(listener.mDone.await(10, TimeUnit.SECONDS));
+        }
+        finally {
+            manager.onDisconnected();
+            lifecycle.shutdown();
+        }
+        return listener;
+    }
+
+    private static File newDirectory() {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                "FileTransferManagerTest-" + System.nanoTime());
+        assertTrue(directory.mkdirs());
+        return directory;
+    }
+
+    private static void offer(FileTransferManager manager, long id, long size, String name) throws IOException {
+        byte[] bytes = name.getBytes("UTF-8");
+        byte[] payload = new byte[16 + bytes.length];
+        FileTransferManager.writeLong(payload, 0, id);
+        FileTransferManager.writeLong(payload, 8, size);
+        System.arraycopy(bytes, 0, payload, 16, bytes.length);
+        manager.onFrame(FrameCodec.TYPE_FILE_OFFER, payload, 0, payload.length);
+    }
+
+    private static void chunk(FileTransferManager manager, long id, long position, int length) throws IOException {
+        byte[] payload = new byte[16 + length];
+        FileTransferManager.writeLong(payload, 0, id);
+        FileTransferManager.writeLong(payload, 8, position);
+        manager.onFrame(FrameCodec.TYPE_FILE_CHUNK, payload, 0, payload.length);
+    }
+
+    // 从 address 收到 a.bin 的前 40 字节后断开
+    private static FileTransferManager receivePart(File directory, String address) throws IOException {
+        FileTransferManager manager = new FileTransferManager(new NullListener(), directory);
+        ReplySender sender = new ReplySender();
+        manager.onConnected(sender, address, FrameCodec.MAX_PAYLOAD_LENGTH);
+        offer(manager, ID, SIZE, "a.bin");
+        assertEquals(0, sender.last());
+        chunk(manager, ID, 0, 40);
+        manager.onDisconnected();
+        return manager;
+    }
+
+    @Test
+    public void transferId_dependsOnPathSizeAndTime() throws Exception {
+        assertEquals(ID, FileTransferManager.transferId("/sdcard/a.bin", SIZE, 1000));
+        assertNotEquals(ID, FileTransferManager.transferId("/sdcard/b.bin", SIZE, 1000));
+        assertNotEquals(ID, FileTransferManager.transferId("/sdcard/a.bin", SIZE + 1, 1000));
+        assertNotEquals(ID, FileTransferManager.transferId("/sdcard/a.bin", SIZE, 1001));
+    }
+
+    @Test
+    public void samePeer_resumesFromPart() throws Exception {
+        File directory = newDirectory();
+        FileTransferManager manager = receivePart(directory, "00:11:22:33:44:55");
+
+        ReplySender sender = new ReplySender();
+        manager.onConnected(sender, "00:11:22:33:44:55", FrameCodec.MAX_PAYLOAD_LENGTH);
+        offer(manager, ID, SIZE, "a.bin");
+        assertEquals(40, sender.last());
+    }
+
+    @Test
+    public void otherPeer_startsOver() throws Exception {
+        File directory = newDirectory();
+        FileTransferManager manager = receivePart(directory, "00:11:22:33:44:55");
+
+        ReplySender sender = new ReplySender();
+        manager.onConnected(sender, "66:77:88:99:AA:BB", FrameCodec.MAX_PAYLOAD_LENGTH);
+        offer(manager, ID, SIZE, "a.bin");
+        assertEquals(0, sender.last());
+    }
+
+    @Test
+    public void changedOffer_startsOver() throws Exception {
+        File directory = newDirectory();
+        FileTransferManager manager = receivePart(directory, "00:11:22:33:44:55");
+
+        //同一个ID但大小对不上，.part 里的数据不能用
+        ReplySender sender = new ReplySender();
+        manager.onConnected(sender, "00:11:22:33:44:55", FrameCodec.MAX_PAYLOAD_LENGTH);
+        offer(manager, ID, SIZE * 2, "a.bin");
+        assertEquals(0, sender.last());
+        manager.onDisconnected();
+
+        //之后按新的大小续传
+        manager.onConnected(sender, "00:11:22:33:44:55", FrameCodec.MAX_PAYLOAD_LENGTH);
+        offer(manager, ID, SIZE * 2, "a.bin");
+        assertEquals(0, sender.last());
+    }
+
+    @Test
+    public void smallPeerLimit_shrinksChunks() throws Exception {
+        File file = newFile(newDirectory(), "a.bin", 5000);
+        PeerSender sender = new PeerSender();
+        ResultListener listener = send(file, sender, 1024);
+
+        assertTrue(listener.mComplete);
+        int total = 0;
+        for(int length : sender.mChunkLengths) {
+            assertTrue(length <= 1024);
+            total += length - 16;
+        }
+        assertEquals(5000, total);
+        assertEquals(5, sender.mChunkLengths.size());
+    }
+
+    @Test
+    public void offerAbovePeerLimit_failsTransfer() throws Exception {
+        //文件名太长，FILE_OFFER 永远发不出去
+        StringBuilder name = new StringBuilder();
+        while(name.length() < 200) {
+            name.append("long-name-");
+        }
+        File file = newFile(newDirectory(), name.toString(), 10);
+        ResultListener listener = send(file, new PeerSender(), 64);
+
+        assertFalse(listener.mComplete);
+        assertNotNull(listener.mError);
+    }
+}
@@ -0,0 +1,138 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * FrameCodec.Decoder 在任意拆分、合并的读取下还原出原来的帧
+ */
+public class FrameCodecTest {
+
+    // 收集解出的帧，buffer 在回调后会被复用，所以拷贝一份
+    private static class Collector implements FrameCodec.FrameListener {
+        final List<Integer> mTypes = new ArrayList<Integer>();
+        final List<byte[]> mPayloads = new ArrayList<byte[]>();
+
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+            mTypes.add(type);
+            mPayloads.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for(int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    // 几个帧首尾相连，像一次 write() 写出的数据
+    private static byte[] concat(byte[]... frames) {
+        int length = 0;
+        for(byte[] frame : frames) {
+            length += frame.length;
+        }
+        byte[] stream = new byte[length];
+        int position = 0;
+        for(byte[] frame : frames) {
+            System.arraycopy(frame, 0, stream, position, frame.length);
+            position += frame.length;
+        }
+        return stream;
+    }
+
+    @Test
+    public void encode_writesHeader() throws Exception {
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, new byte[] {'h', 'i'});
+        assertArrayEquals(new byte[] {0, 0, 0, 2, FrameCodec.TYPE_TEXT, 'h', 'i'}, frame);
+    }
+
+    @Test
+    public void mergedRead_deliversEveryFrame() throws Exception {
+        byte[] a = payload(3, 1);
+        byte[] b = new byte[0];
+        byte[] c = payload(300, 7);
+        byte[] stream = concat(FrameCodec.encode(FrameCodec.TYPE_TEXT, a),
+                FrameCodec.encode(FrameCodec.TYPE_PING, b),
+                FrameCodec.encode(FrameCodec.TYPE_RELAY, c));
+
+        Collector collector = new Collector();
+        new FrameCodec.Decoder(collector).feed(stream, 0, stream.length);
+
+        assertEquals(Arrays.asList(FrameCodec.TYPE_TEXT, FrameCodec.TYPE_PING, FrameCodec.TYPE_RELAY),
+                collector.mTypes);
+        assertArrayEquals(a, collector.mPayloads.get(0));
+        assertArrayEquals(b, collector.mPayloads.get(1));
+        assertArrayEquals(c, collector.mPayloads.get(2));
+    }
+
+    @Test
+    public void partialReads_reassembleAtEverySplit() throws Exception {
+        byte[] a = payload(10, 1);
+        byte[] b = payload(2000, 3);
+        byte[] stream = concat(FrameCodec.encode(FrameCodec.TYPE_TEXT, a),
+                FrameCodec.encode(FrameCodec.TYPE_TEXT, b));
+
+        //在每个位置切成两次读取，包括切在帧头中间
+        for(int split = 0; split <= stream.length; split++) {
+            Collector collector = new Collector();
+            FrameCodec.Decoder decoder = new FrameCodec.Decoder(collector);
+            decoder.feed(stream, 0, split);
+            decoder.feed(stream, split, stream.length - split);
+            assertEquals("split " + split, 2, collector.mTypes.size());
+            assertArrayEquals("split " + split, a, collector.mPayloads.get(0));
+            assertArrayEquals("split " + split, b, collector.mPayloads.get(1));
+        }
+    }
+
+    @Test
+    public void byteByByte_deliversOnLastByte() throws Exception {
+        byte[] a = payload(50, 9);
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, a);
+
+        Collector collector = new Collector();
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(collector);
+        for(int i = 0; i < frame.length; i++) {
+            assertEquals(0, collector.mTypes.size());
+            decoder.feed(frame, i, 1);
+        }
+        assertEquals(1, collector.mTypes.size());
+        assertArrayEquals(a, collector.mPayloads.get(0));
+    }
+
+    @Test
+    public void reset_dropsHalfFrame() throws Exception {
+        byte[] a = payload(20, 1);
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, a);
+
+        Collector collector = new Collector();
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(collector);
+        decoder.feed(frame, 0, 8);
+        decoder.reset();
+        decoder.feed(frame, 0, frame.length);
+        assertEquals(1, collector.mTypes.size());
+        assertArrayEquals(a, collector.mPayloads.get(0));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void oversizedLength_isRejected() throws Exception {
+        byte[] header = new byte[FrameCodec.HEADER_LENGTH];
+        FrameCodec.writeHeader(header, 0, FrameCodec.TYPE_TEXT, 101);
+        new FrameCodec.Decoder(new Collector(), 100).feed(header, 0, header.length);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void negativeLength_isRejected() throws Exception {
+        byte[] header = {(byte) 0x80, 0, 0, 0, FrameCodec.TYPE_TEXT};
+        new FrameCodec.Decoder(new Collector()).feed(header, 0, header.length);
+    }
+}
@@ -0,0 +1,187 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * FrameWriter 分片发送、FrameLanes.Assembler 拼回原来的帧
+ */
+public class FrameLanesTest {
+
+    // 收集拼好的帧
+    private static class Collector implements FrameCodec.FrameListener {
+        final List<Integer> mTypes = new ArrayList<Integer>();
+        final List<byte[]> mPayloads = new ArrayList<byte[]>();
+
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+            mTypes.add(type);
+            mPayloads.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for(int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed * 31 + i);
+        }
+        return payload;
+    }
+
+    private static byte[] fragment(int lane, int type, boolean last, byte[] data) {
+        byte[] fragment = new byte[FrameLanes.FRAGMENT_HEADER_LENGTH + data.length];
+        FrameLanes.writeFragmentHeader(fragment, 0, lane, type, last);
+        System.arraycopy(data, 0, fragment, FrameLanes.FRAGMENT_HEADER_LENGTH, data.length);
+        return fragment;
+    }
+
+    private static void feed(FrameLanes.Assembler assembler, byte[] fragment) throws IOException {
+        assembler.onFragment(fragment, 0, fragment.length);
+    }
+
+    @Test
+    public void laneOf_mapsTypes() throws Exception {
+        assertEquals(FrameLanes.LANE_CHAT, FrameLanes.laneOf(FrameCodec.TYPE_TEXT));
+        assertEquals(FrameLanes.LANE_CHAT, FrameLanes.laneOf(FrameCodec.TYPE_RELAY));
+        assertEquals(FrameLanes.LANE_BULK, FrameLanes.laneOf(FrameCodec.TYPE_FILE_CHUNK));
+        assertEquals(FrameLanes.LANE_BULK, FrameLanes.laneOf(FrameCodec.TYPE_FILE_OFFER));
+        assertEquals(FrameLanes.LANE_CONTROL, FrameLanes.laneOf(FrameCodec.TYPE_FILE_ACK));
+        assertEquals(FrameLanes.LANE_CONTROL, FrameLanes.laneOf(FrameCodec.TYPE_PING));
+        assertEquals(FrameLanes.LANE_CONTROL, FrameLanes.laneOf(FrameCodec.TYPE_CREDIT));
+    }
+
+    @Test
+    public void interleavedLanes_reassembleIndependently() throws Exception {
+        Collector collector = new Collector();
+        FrameLanes.Assembler assembler = new FrameLanes.Assembler(collector, 64 * 1024);
+        byte[] chat = payload(300, 1);
+        byte[] bulk = payload(5000, 2);
+
+        feed(assembler, fragment(FrameLanes.LANE_BULK, FrameCodec.TYPE_FILE_CHUNK, false,
+                Arrays.copyOfRange(bulk, 0, 2000)));
+        feed(assembler, fragment(FrameLanes.LANE_CHAT, FrameCodec.TYPE_TEXT, false,
+                Arrays.copyOfRange(chat, 0, 100)));
+        feed(assembler, fragment(FrameLanes.LANE_BULK, FrameCodec.TYPE_FILE_CHUNK, false,
+                Arrays.copyOfRange(bulk, 2000, 4000)));
+        feed(assembler, fragment(FrameLanes.LANE_CHAT, FrameCodec.TYPE_TEXT, true,
+                Arrays.copyOfRange(chat, 100, 300)));
+        assertEquals(1, collector.mTypes.size());
+        feed(assembler, fragment(FrameLanes.LANE_BULK, FrameCodec.TYPE_FILE_CHUNK, true,
+                Arrays.copyOfRange(bulk, 4000, 5000)));
+
+        assertEquals(Arrays.asList(FrameCodec.TYPE_TEXT, FrameCodec.TYPE_FILE_CHUNK), collector.mTypes);
+        assertArrayEquals(chat, collector.mPayloads.get(0));
+        assertArrayEquals(bulk, collector.mPayloads.get(1));
+
+        //拼完之后通道可以接着拼下一帧，类型可以不同
+        feed(assembler, fragment(FrameLanes.LANE_BULK, FrameCodec.TYPE_FILE_OFFER, true, new byte[0]));
+        assertEquals(FrameCodec.TYPE_FILE_OFFER, (int) collector.mTypes.get(2));
+        assertEquals(0, collector.mPayloads.get(2).length);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void typeChangeWithinLane_isRejected() throws Exception {
+        FrameLanes.Assembler assembler = new FrameLanes.Assembler(new Collector(), 64 * 1024);
+        feed(assembler, fragment(FrameLanes.LANE_CHAT, FrameCodec.TYPE_TEXT, false, new byte[10]));
+        feed(assembler, fragment(FrameLanes.LANE_CHAT, FrameCodec.TYPE_RELAY, true, new byte[10]));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void unknownLane_isRejected() throws Exception {
+        FrameLanes.Assembler assembler = new FrameLanes.Assembler(new Collector(), 64 * 1024);
+        feed(assembler, fragment(FrameLanes.LANE_COUNT, FrameCodec.TYPE_TEXT, true, new byte[10]));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void nestedFragment_isRejected() throws Exception {
+        FrameLanes.Assembler assembler = new FrameLanes.Assembler(new Collector(), 64 * 1024);
+        feed(assembler, fragment(FrameLanes.LANE_CONTROL, FrameCodec.TYPE_FRAGMENT, true, new byte[10]));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void oversizedFrame_isRejected() throws Exception {
+        FrameLanes.Assembler assembler = new FrameLanes.Assembler(new Collector(), 1000);
+        feed(assembler, fragment(FrameLanes.LANE_BULK, FrameCodec.TYPE_FILE_CHUNK, false, new byte[600]));
+        feed(assembler, fragment(FrameLanes.LANE_BULK, FrameCodec.TYPE_FILE_CHUNK, false, new byte[600]));
+    }
+
+    @Test
+    public void writer_fragmentsLargeFramesAndLetsControlFramesThrough() throws Exception {
+        final byte[] bulk = payload(20 * 1024, 3);
+        final byte[][] chats = {payload(10, 4), payload(2000, 5), payload(1, 6)};
+        final byte[] ping = payload(8, 7);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FrameWriter[] writer = new FrameWriter[1];
+        writer[0] = new FrameWriter(out, new FrameWriter.Listener() {
+            int mmWritten;
+
+            @Override
+            public void onFrameWritten(int type, byte[] payload) {
+                //聊天消息发出后才有控制帧，它要插在剩下的分片前面
+                if(type == FrameCodec.TYPE_TEXT && payload == chats[chats.length - 1]) {
+                    assertTrue(writer[0].offer(FrameCodec.TYPE_PING, ping));
+                }
+                if(++mmWritten == chats.length + 2) {
+                    writer[0].cancel();
+                }
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+                fail(e.toString());
+            }
+        }, 16);
+        writer[0].setFragmentSize(1024);
+        assertTrue(writer[0].offer(FrameCodec.TYPE_FILE_CHUNK, bulk));
+        for(byte[] chat : chats) {
+            assertTrue(writer[0].offer(FrameCodec.TYPE_TEXT, chat));
+        }
+        //在当前线程中发送，最后一帧写出后 cancel() 让它返回
+        writer[0].run();
+
+        final List<Integer> wire = new ArrayList<Integer>();
+        final Collector collector = new Collector();
+        final FrameLanes.Assembler assembler = new FrameLanes.Assembler(collector, 64 * 1024);
+        byte[] stream = out.toByteArray();
+        new FrameCodec.Decoder(new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+                wire.add(type);
+                if(type == FrameCodec.TYPE_FRAGMENT) {
+                    assertTrue(length - FrameLanes.FRAGMENT_HEADER_LENGTH <= 1024);
+                    assembler.onFragment(buffer, offset, length);
+                }
+                else {
+                    collector.onFrame(type, buffer, offset, length);
+                }
+            }
+        }).feed(stream, 0, stream.length);
+
+        //两条小消息整帧发送，2000字节的分成两片，文件块分成20片，PING 比文件块先到
+        assertEquals(Arrays.asList(FrameCodec.TYPE_TEXT, FrameCodec.TYPE_TEXT, FrameCodec.TYPE_TEXT,
+                FrameCodec.TYPE_PING, FrameCodec.TYPE_FILE_CHUNK), collector.mTypes);
+        assertArrayEquals(chats[0], collector.mPayloads.get(0));
+        assertArrayEquals(chats[1], collector.mPayloads.get(1));
+        assertArrayEquals(chats[2], collector.mPayloads.get(2));
+        assertArrayEquals(ping, collector.mPayloads.get(3));
+        assertArrayEquals(bulk, collector.mPayloads.get(4));
+
+        int fragments = 0;
+        for(int type : wire) {
+            if(type == FrameCodec.TYPE_FRAGMENT) fragments++;
+        }
+        assertEquals(22, fragments);
+        //PING 插在文件块的分片之间
+        assertEquals(FrameCodec.TYPE_FRAGMENT, (int) wire.get(wire.indexOf(FrameCodec.TYPE_PING) - 1));
+        assertEquals(FrameCodec.TYPE_FRAGMENT, (int) wire.get(wire.indexOf(FrameCodec.TYPE_PING) + 1));
+    }
+}
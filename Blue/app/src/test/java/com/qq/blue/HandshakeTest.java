@@ -0,0 +1,96 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Handshake 协商：两端用对方的 HELLO 得到相同的参数
+ */
+public class HandshakeTest {
+
+    private static Handshake negotiate(Handshake local, byte[] hello) throws ProtocolException {
+        return local.negotiate(hello, 0, hello.length);
+    }
+
+    // 指定版本的 HELLO，模拟以后的版本
+    private static byte[] hello(int version, int minVersion, int maxPayloadLength, int bufferSize, int features,
+                                int extra) {
+        byte[] hello = new byte[Handshake.HELLO_LENGTH + extra];
+        byte[] encoded = new Handshake(maxPayloadLength, bufferSize, features).encode();
+        System.arraycopy(encoded, 0, hello, 0, encoded.length);
+        hello[0] = (byte) version;
+        hello[1] = (byte) minVersion;
+        return hello;
+    }
+
+    @Test
+    public void bothSides_agree() throws Exception {
+        Handshake a = new Handshake(64 * 1024, 4096, Handshake.FEATURE_COMPRESSION | Handshake.FEATURE_RESUME
+                | Handshake.FEATURE_PING);
+        Handshake b = new Handshake(16 * 1024, 8192, Handshake.FEATURE_RESUME | Handshake.FEATURE_PING
+                | Handshake.FEATURE_CREDIT);
+
+        Handshake ab = negotiate(a, b.encode());
+        Handshake ba = negotiate(b, a.encode());
+
+        assertEquals(ab.toString(), ba.toString());
+        assertEquals(Handshake.PROTOCOL_VERSION, ab.getVersion());
+        assertEquals(16 * 1024, ab.getMaxPayloadLength());
+        assertEquals(4096, ab.getBufferSize());
+        assertEquals(Handshake.FEATURE_RESUME | Handshake.FEATURE_PING, ab.getFeatures());
+        assertTrue(ab.hasFeature(Handshake.FEATURE_RESUME));
+        assertFalse(ab.hasFeature(Handshake.FEATURE_COMPRESSION));
+        assertFalse(ab.hasFeature(Handshake.FEATURE_CREDIT));
+    }
+
+    @Test
+    public void limitsAtFloor_areKept() throws Exception {
+        Handshake local = new Handshake(64 * 1024, 4096, 0);
+        Handshake negotiated = negotiate(local, new Handshake(1024, 256, 0).encode());
+        assertEquals(1024, negotiated.getMaxPayloadLength());
+        assertEquals(256, negotiated.getBufferSize());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void payloadLengthBelowFloor_isRejected() throws Exception {
+        negotiate(new Handshake(64 * 1024, 4096, 0), new Handshake(1023, 4096, 0).encode());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void bufferSizeBelowFloor_isRejected() throws Exception {
+        negotiate(new Handshake(64 * 1024, 4096, 0), new Handshake(64 * 1024, 255, 0).encode());
+    }
+
+    //最高位为1的长度不能变成负数
+    @Test(expected = ProtocolException.class)
+    public void negativeLimits_areRejected() throws Exception {
+        negotiate(new Handshake(64 * 1024, 4096, 0), new Handshake(-1, -1, 0).encode());
+    }
+
+    @Test
+    public void newerPeer_fallsBackToLocalVersion() throws Exception {
+        Handshake local = new Handshake(64 * 1024, 4096, Handshake.FEATURE_PING);
+        //新版本在后面加了字段，但仍然兼容版本1
+        byte[] hello = hello(Handshake.PROTOCOL_VERSION + 3, 1, 64 * 1024, 4096, Handshake.FEATURE_PING, 6);
+        Handshake negotiated = negotiate(local, hello);
+        assertEquals(Handshake.PROTOCOL_VERSION, negotiated.getVersion());
+        assertTrue(negotiated.hasFeature(Handshake.FEATURE_PING));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void peerRequiringNewerVersion_isRejected() throws Exception {
+        Handshake local = new Handshake(64 * 1024, 4096, 0);
+        negotiate(local, hello(Handshake.PROTOCOL_VERSION + 1, Handshake.PROTOCOL_VERSION + 1, 64 * 1024, 4096,
+                0, 0));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void shortHello_isRejected() throws Exception {
+        Handshake local = new Handshake(64 * 1024, 4096, 0);
+        byte[] hello = local.encode();
+        local.negotiate(hello, 0, hello.length - 1);
+    }
+}
@@ -0,0 +1,79 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * LatencyHistogram 桶的边界：相邻的桶首尾相接，误差不超过 1/16
+ */
+public class LatencyHistogramTest {
+
+    private static final int LAST_BUCKET = LatencyHistogram.bucket(Long.MAX_VALUE);
+
+    @Test
+    public void linearBuckets_holdOneValue() throws Exception {
+        for(int value = 0; value < 32; value++) {
+            assertEquals(value, LatencyHistogram.bucket(value));
+            assertEquals(value, LatencyHistogram.upperBound(value));
+        }
+        //第一个按2的幂分段的桶放 32 和 33
+        assertEquals(32, LatencyHistogram.bucket(32));
+        assertEquals(32, LatencyHistogram.bucket(33));
+        assertEquals(33, LatencyHistogram.upperBound(32));
+        assertEquals(33, LatencyHistogram.bucket(34));
+    }
+
+    @Test
+    public void buckets_areContiguous() throws Exception {
+        for(int bucket = 0; bucket < LAST_BUCKET; bucket++) {
+            long upper = LatencyHistogram.upperBound(bucket);
+            assertEquals("upper bound of " + bucket, bucket, LatencyHistogram.bucket(upper));
+            assertEquals("value after " + bucket, bucket + 1, LatencyHistogram.bucket(upper + 1));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LAST_BUCKET));
+    }
+
+    @Test
+    public void bucketWidth_withinOneSixteenth() throws Exception {
+        for(int bucket = 1; bucket <= LAST_BUCKET; bucket++) {
+            long lower = LatencyHistogram.upperBound(bucket - 1) + 1;
+            long upper = LatencyHistogram.upperBound(bucket);
+            assertTrue("bucket " + bucket, (upper - lower) * 16 <= lower);
+        }
+    }
+
+    @Test
+    public void percentile_usesUpperBoundCappedAtMax() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        for(int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getMean());
+        //50 所在的桶是 48..51
+        assertEquals(51, histogram.getPercentile(50));
+        assertEquals(1, histogram.getPercentile(0));
+        //99 所在的桶是 96..99；100 所在的桶上限是 103，不超过最大值
+        assertEquals(99, histogram.getPercentile(99));
+        assertEquals(100, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void negativeAndHugeValues_areRecorded() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE / 2, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+}
@@ -0,0 +1,116 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * MessageIdFilter 两代轮换：一个ID至少被记住一代，两代之后被忘掉，满了导致的轮换会被计数
+ */
+public class MessageIdFilterTest {
+
+    private static final long LONG_WINDOW = 60 * 1000;
+
+    @Test
+    public void duplicate_isRejected() throws Exception {
+        MessageIdFilter filter = new MessageIdFilter(16, LONG_WINDOW);
+        assertTrue(filter.add(42));
+        assertFalse(filter.add(42));
+        assertTrue(filter.add(-42));
+        assertTrue(filter.add(Long.MIN_VALUE));
+        assertFalse(filter.add(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void zero_isRememberedLikeOtherIds() throws Exception {
+        MessageIdFilter filter = new MessageIdFilter(2, LONG_WINDOW);
+        assertTrue(filter.add(0));
+        assertFalse(filter.add(0));
+
+        //轮换一次后还在上一代里
+        filter.add(1);
+        filter.add(2);
+        filter.add(3);
+        assertFalse(filter.add(0));
+
+        //再轮换一次就忘掉了
+        filter.add(4);
+        filter.add(5);
+        assertTrue(filter.add(0));
+    }
+
+    @Test
+    public void fullGeneration_keepsPreviousUntilNextRotation() throws Exception {
+        MessageIdFilter filter = new MessageIdFilter(4, LONG_WINDOW);
+        for(long id = 1; id <= 4; id++) {
+            assertTrue(filter.add(id));
+        }
+
+        //这一代满了，5开始新的一代，1..4还在上一代里
+        assertTrue(filter.add(5));
+        for(long id = 1; id <= 4; id++) {
+            assertFalse(filter.add(id));
+        }
+
+        //新的一代也满了，再轮换一次后1..4被丢弃，5..8还记得
+        for(long id = 6; id <= 8; id++) {
+            assertTrue(filter.add(id));
+        }
+        assertTrue(filter.add(9));
+        for(long id = 5; id <= 8; id++) {
+            assertFalse(filter.add(id));
+        }
+        assertTrue(filter.add(1));
+    }
+
+    @Test
+    public void expiredWindow_rotates() throws Exception {
+        MessageIdFilter filter = new MessageIdFilter(1000, 1);
+        assertTrue(filter.add(7));
+
+        Thread.sleep(5);
+        assertTrue(filter.add(8));
+        assertFalse(filter.add(7));
+
+        //过了两个窗口
+        Thread.sleep(5);
+        assertTrue(filter.add(9));
+        Thread.sleep(5);
+        assertTrue(filter.add(7));
+    }
+
+    @Test
+    public void capacityRotations_areCounted() throws Exception {
+        MessageIdFilter filter = new MessageIdFilter(4, LONG_WINDOW);
+        for(long id = 1; id <= 4; id++) {
+            filter.add(id);
+        }
+        assertEquals(0, filter.getCapacityRotationCount());
+
+        filter.add(5);
+        assertEquals(1, filter.getCapacityRotationCount());
+    }
+
+    @Test
+    public void windowRotations_areNotCounted() throws Exception {
+        MessageIdFilter filter = new MessageIdFilter(1000, 1);
+        filter.add(7);
+        Thread.sleep(5);
+        filter.add(8);
+        Thread.sleep(5);
+        filter.add(9);
+        assertEquals(0, filter.getCapacityRotationCount());
+    }
+
+    @Test
+    public void manyIds_withinCapacityAreAllRemembered() throws Exception {
+        MessageIdFilter filter = new MessageIdFilter(1000, LONG_WINDOW);
+        //间隔大的ID容易在哈希表中冲突
+        for(long i = 1; i <= 1000; i++) {
+            assertTrue(filter.add(i << 32));
+        }
+        for(long i = 1; i <= 1000; i++) {
+            assertFalse(filter.add(i << 32));
+        }
+    }
+}
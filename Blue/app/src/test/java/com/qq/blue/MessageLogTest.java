@@ -0,0 +1,179 @@
+package com.qq.blue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * MessageLog 跨段按编号读取，以及写到一半中断后重新打开
+ */
+public class MessageLogTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"), "MessageLogTest-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static byte[] message(long number, int length) {
+        byte[] message = new byte[length];
+        Arrays.fill(message, (byte) number);
+        return message;
+    }
+
+    private static void append(MessageLog log, long number, int length) throws Exception {
+        byte[] message = message(number, length);
+        assertEquals(number, log.append(number % 2 == 0, 1000 + number, message, 0, message.length));
+    }
+
+    private static void assertEntry(MessageLog.Entry entry, long number, int length) {
+        assertEquals(number, entry.number);
+        assertEquals(number % 2 == 0, entry.outgoing);
+        assertEquals(1000 + number, entry.time);
+        assertArrayEquals(message(number, length), entry.message);
+    }
+
+    @Test
+    public void read_returnsAppendedRange() throws Exception {
+        MessageLog log = new MessageLog(mDirectory);
+        for(int i = 0; i < 10; i++) {
+            append(log, i, i * 3);
+        }
+
+        List<MessageLog.Entry> entries = log.read(3, 4);
+        assertEquals(4, entries.size());
+        for(int i = 0; i < 4; i++) {
+            assertEntry(entries.get(i), 3 + i, (3 + i) * 3);
+        }
+
+        //超出范围的部分不返回
+        assertEquals(2, log.read(8, 10).size());
+        assertEquals(2, log.read(-5, 7).size());
+        assertEquals(0, log.read(10, 5).size());
+        log.close();
+    }
+
+    @Test
+    public void read_acrossSegments() throws Exception {
+        //每段放得下4条
+        int length = MessageLog.SEGMENT_SIZE / 4;
+        MessageLog log = new MessageLog(mDirectory);
+        for(int i = 0; i < 10; i++) {
+            append(log, i, i == 9 ? 5 : length);
+        }
+        log.close();
+
+        assertTrue(new File(mDirectory, "0.log").isFile());
+        assertTrue(new File(mDirectory, "4.log").isFile());
+        assertTrue(new File(mDirectory, "8.log").isFile());
+
+        //重新打开后二分查找所在的段，跨三段读取
+        log = new MessageLog(mDirectory);
+        assertEquals(10, log.getCount());
+        List<MessageLog.Entry> entries = log.read(3, 7);
+        assertEquals(7, entries.size());
+        for(int i = 0; i < 7; i++) {
+            long number = 3 + i;
+            assertEntry(entries.get(i), number, number == 9 ? 5 : length);
+        }
+        assertEntry(log.read(4, 1).get(0), 4, length);
+        assertEntry(log.read(9, 1).get(0), 9, 5);
+        log.close();
+    }
+
+    @Test
+    public void reopen_dropsTruncatedRecord() throws Exception {
+        MessageLog log = new MessageLog(mDirectory);
+        for(int i = 0; i < 3; i++) {
+            append(log, i, 100);
+        }
+        log.close();
+
+        //最后一条只写了一半
+        File logFile = new File(mDirectory, "0.log");
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        log = new MessageLog(mDirectory);
+        assertEquals(2, log.getCount());
+        assertEquals(2 * (MessageLog.HEADER_LENGTH + 100), logFile.length());
+        append(log, 2, 7);
+        List<MessageLog.Entry> entries = log.read(0, 10);
+        assertEquals(3, entries.size());
+        assertEntry(entries.get(0), 0, 100);
+        assertEntry(entries.get(1), 1, 100);
+        assertEntry(entries.get(2), 2, 7);
+        log.close();
+    }
+
+    @Test
+    public void reopen_dropsUnindexedTail() throws Exception {
+        MessageLog log = new MessageLog(mDirectory);
+        for(int i = 0; i < 2; i++) {
+            append(log, i, 50);
+        }
+        log.close();
+
+        //.log 写出了但 .idx 还没写出，多出来的记录没有编号
+        File logFile = new File(mDirectory, "0.log");
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        file.seek(file.length());
+        file.write(new byte[MessageLog.HEADER_LENGTH + 20]);
+        file.close();
+
+        log = new MessageLog(mDirectory);
+        assertEquals(2, log.getCount());
+        append(log, 2, 30);
+        List<MessageLog.Entry> entries = log.read(0, 10);
+        assertEquals(3, entries.size());
+        assertEntry(entries.get(2), 2, 30);
+        log.close();
+    }
+
+    @Test
+    public void reopen_dropsIndexBeyondLog() throws Exception {
+        MessageLog log = new MessageLog(mDirectory);
+        for(int i = 0; i < 2; i++) {
+            append(log, i, 50);
+        }
+        log.close();
+
+        //索引指向的记录连帧头都不完整
+        RandomAccessFile file = new RandomAccessFile(new File(mDirectory, "0.idx"), "rw");
+        file.seek(file.length());
+        file.writeInt(2 * (MessageLog.HEADER_LENGTH + 50) + 5);
+        file.close();
+
+        log = new MessageLog(mDirectory);
+        assertEquals(2, log.getCount());
+        assertEquals(2, log.read(0, 10).size());
+        log.close();
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void closedLog_rejectsAppend() throws Exception {
+        MessageLog log = new MessageLog(mDirectory);
+        log.close();
+        append(log, 0, 1);
+    }
+}
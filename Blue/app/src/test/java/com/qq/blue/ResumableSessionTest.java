@@ -0,0 +1,119 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * ResumableSession 重连后的补发：发不出去的消息留着，有空间时按顺序接着发
+ */
+public class ResumableSessionTest {
+
+    // 最多接受 mmRoom 个帧的连接
+    private static class LimitedSender implements FileTransferManager.FrameSender {
+        final List<Integer> mTypes = new ArrayList<Integer>();
+        final List<byte[]> mPayloads = new ArrayList<byte[]>();
+        int mRoom;
+
+        LimitedSender(int room) {
+            mRoom = room;
+        }
+
+        @Override
+        public boolean offer(int type, byte[] payload) {
+            if(mRoom == 0) return false;
+            mRoom--;
+            mTypes.add(type);
+            mPayloads.add(payload);
+            return true;
+        }
+
+        // 收到的聊天消息的内容
+        List<Integer> messages() {
+            List<Integer> messages = new ArrayList<Integer>();
+            for(int i = 0; i < mTypes.size(); i++) {
+                if(mTypes.get(i) == FrameCodec.TYPE_TEXT) {
+                    messages.add((int) mPayloads.get(i)[0]);
+                }
+            }
+            return messages;
+        }
+
+        long sync() {
+            assertEquals(FrameCodec.TYPE_RESUME_SYNC, (int) mTypes.get(0));
+            return readLong(mPayloads.get(0));
+        }
+    }
+
+    private static long readLong(byte[] src) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[i] & 0xff);
+        }
+        return value;
+    }
+
+    // 两端先完成一次握手，互相记住会话ID
+    private static void connect(ResumableSession local, ResumableSession remote,
+                                FileTransferManager.FrameSender sender) throws ProtocolException {
+        byte[] resume = remote.encodeResume();
+        local.resume(resume, 0, resume.length, sender);
+    }
+
+    @Test
+    public void replay_keepsTailWhenSenderIsFull() throws Exception {
+        ResumableSession local = new ResumableSession("A");
+        ResumableSession remote = new ResumableSession("B");
+        LimitedSender first = new LimitedSender(Integer.MAX_VALUE);
+        connect(local, remote, first);
+        connect(remote, local, new LimitedSender(Integer.MAX_VALUE));
+
+        //断线期间发了10条
+        local.detach(first);
+        for(int i = 0; i < 10; i++) {
+            assertTrue(local.offer(FrameCodec.TYPE_TEXT, new byte[] {(byte) i}));
+        }
+
+        //重连后对方一条都没收到，队列只放得下 SYNC 和4条
+        LimitedSender sender = new LimitedSender(5);
+        byte[] resume = remote.encodeResume();
+        assertTrue(local.resume(resume, 0, resume.length, sender));
+        assertEquals(0, sender.sync());
+        assertEquals(6, local.getBacklog());
+        assertEquals(0, local.getLostCount());
+
+        //新消息排在没发完的后面
+        assertTrue(local.offer(FrameCodec.TYPE_TEXT, new byte[] {10}));
+        assertEquals(7, local.getBacklog());
+
+        sender.mRoom = 100;
+        local.flush();
+        assertEquals(0, local.getBacklog());
+        List<Integer> expected = new ArrayList<Integer>();
+        for(int i = 0; i <= 10; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, sender.messages());
+        assertEquals(10, local.getReplayedCount());
+    }
+
+    @Test
+    public void offer_failsWithoutBacklogWhenSenderIsFull() throws Exception {
+        ResumableSession local = new ResumableSession("A");
+        LimitedSender sender = new LimitedSender(1);
+        connect(local, new ResumableSession("B"), sender);
+
+        //只发了 SYNC，再发就满了，调用者要知道
+        assertFalse(local.offer(FrameCodec.TYPE_TEXT, new byte[] {0}));
+        assertEquals(0, local.getBacklog());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void resume_failsWhenSyncCannotBeQueued() throws Exception {
+        connect(new ResumableSession("A"), new ResumableSession("B"), new LimitedSender(0));
+    }
+}
@@ -0,0 +1,130 @@
+package com.qq.blue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Utf8Codec 的编解码：和 String 的 UTF-8 结果一致，被切开的字符能拼上，无效的输入换成 U+FFFD
+ */
+public class Utf8CodecTest {
+
+    // ASCII、两字节、中文、emoji（代理对）混在一起
+    private static final String TEXT = "hi é 你好 😀 ok";
+
+    private static final String R = String.valueOf(Utf8Codec.REPLACEMENT);
+
+    private static String decode(int... bytes) {
+        byte[] buffer = new byte[bytes.length];
+        for(int i = 0; i < bytes.length; i++) {
+            buffer[i] = (byte) bytes[i];
+        }
+        return new Utf8Codec.Decoder().decode(buffer, 0, buffer.length);
+    }
+
+    @Test
+    public void encode_matchesString() throws Exception {
+        byte[] expected = TEXT.getBytes("UTF-8");
+        assertEquals(expected.length, Utf8Codec.encodedLength(TEXT));
+        assertArrayEquals(expected, Utf8Codec.encode(TEXT));
+
+        byte[] buffer = new byte[expected.length + 3];
+        assertEquals(expected.length, Utf8Codec.encode(TEXT, buffer, 3));
+        assertEquals(TEXT, new String(buffer, 3, expected.length, "UTF-8"));
+    }
+
+    @Test
+    public void unpairedSurrogate_encodesAsQuestionMark() throws Exception {
+        String text = "a\uD83Db\uDE00";
+        assertArrayEquals(text.getBytes("UTF-8"), Utf8Codec.encode(text));
+        assertArrayEquals(new byte[] {'a', '?', 'b', '?'}, Utf8Codec.encode(text));
+        assertEquals(4, Utf8Codec.encodedLength(text));
+    }
+
+    @Test
+    public void splitAtEveryByte_decodesWholeText() throws Exception {
+        byte[] bytes = Utf8Codec.encode(TEXT);
+        Utf8Codec.Decoder decoder = new Utf8Codec.Decoder(16);
+        for(int split = 0; split <= bytes.length; split++) {
+            decoder.write(bytes, 0, split);
+            decoder.write(bytes, split, bytes.length - split);
+            assertFalse(decoder.hasPartial());
+            assertEquals("split " + split, TEXT, decoder.finish());
+        }
+    }
+
+    @Test
+    public void byteByByte_keepsPartialCharacter() throws Exception {
+        byte[] bytes = "你😀".getBytes("UTF-8");
+        Utf8Codec.Decoder decoder = new Utf8Codec.Decoder();
+        for(int i = 0; i < bytes.length; i++) {
+            decoder.write(bytes, i, 1);
+            //一个字符的最后一个字节到了才不再等待
+            assertEquals("byte " + i, i != 2 && i != bytes.length - 1, decoder.hasPartial());
+        }
+        assertEquals("你😀", decoder.finish());
+    }
+
+    @Test
+    public void overlongEncodings_areReplaced() throws Exception {
+        //C0、C1 不可能是合法的首字节，后面的字节单独换掉
+        assertEquals(R + R, decode(0xc0, 0x80));
+        assertEquals(R + R, decode(0xc1, 0xbf));
+        assertEquals(R, decode(0xe0, 0x80, 0x80));
+        assertEquals(R, decode(0xe0, 0x9f, 0xbf));
+        assertEquals(R, decode(0xf0, 0x80, 0x80, 0x80));
+        assertEquals(R, decode(0xf0, 0x8f, 0xbf, 0xbf));
+        //最小的合法值
+        assertEquals("\u0080", decode(0xc2, 0x80));
+        assertEquals("\u0800", decode(0xe0, 0xa0, 0x80));
+        assertEquals("\uD800\uDC00", decode(0xf0, 0x90, 0x80, 0x80));
+    }
+
+    @Test
+    public void surrogatesAndOutOfRange_areReplaced() throws Exception {
+        assertEquals(R, decode(0xed, 0xa0, 0x80));
+        assertEquals(R, decode(0xed, 0xbf, 0xbf));
+        assertEquals("\uD7FF", decode(0xed, 0x9f, 0xbf));
+        assertEquals("\uDBFF\uDFFF", decode(0xf4, 0x8f, 0xbf, 0xbf));
+        assertEquals(R, decode(0xf4, 0x90, 0x80, 0x80));
+        assertEquals(R + "a", decode(0xf5, 'a'));
+        assertEquals(R + "a", decode(0xff, 'a'));
+    }
+
+    @Test
+    public void strayAndTruncatedBytes_areReplaced() throws Exception {
+        assertEquals("a" + R + "b", decode('a', 0x80, 'b'));
+        //字符没写完就开始了下一个，下一个照常解码
+        assertEquals(R + "a", decode(0xe4, 0xb8, 'a'));
+        assertEquals(R + "你", decode(0xe4, 0xe4, 0xbd, 0xa0));
+        //结尾不完整
+        assertEquals("a" + R, decode('a', 0xe4, 0xb8));
+        assertEquals(R, decode(0xf0, 0x9f, 0x98));
+    }
+
+    @Test
+    public void finish_startsNewText() throws Exception {
+        Utf8Codec.Decoder decoder = new Utf8Codec.Decoder();
+        byte[] bytes = "你".getBytes("UTF-8");
+        decoder.write(bytes, 0, 2);
+        assertTrue(decoder.hasPartial());
+        assertEquals(R, decoder.finish());
+        assertFalse(decoder.hasPartial());
+
+        //上一段不完整的字节不会拼到下一段
+        decoder.write(bytes, 2, 1);
+        assertEquals(R, decoder.finish());
+        assertEquals("", decoder.finish());
+    }
+
+    @Test
+    public void longText_growsBuffer() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < 1000; i++) {
+            builder.append(TEXT);
+        }
+        String text = builder.toString();
+        byte[] bytes = Utf8Codec.encode(text);
+        assertEquals(text, new Utf8Codec.Decoder(16).decode(bytes, 0, bytes.length));
+    }
+}
@@ -0,0 +1,92 @@
+package com.qq.blue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChatEventBus 的分发：读线程发布 TYPE_READ，订阅者处理完后总线归还缓冲区.
+ * 和 ChatEventBus 放在同一个包里，才能像 BluetoothChatService 一样调用 publish()
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChatEventBusBenchmark {
+
+    private static final int BURST = 1000;
+
+    @Param({"1", "3"})
+    public int subscribers;
+
+    private ChatEventBus mBus;
+    private ExecutorService mThread;
+    private byte[] mBuffer;
+    private final AtomicLong mRecycled = new AtomicLong();
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mBuffer = new byte[256];
+        mBus = new ChatEventBus(ChatEventBus.DEFAULT_CAPACITY, new ChatEventBus.Recycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                mRecycled.incrementAndGet();
+            }
+        });
+        //第一个订阅者在自己的线程中处理，像UI线程；其它的在发布的线程中直接处理，像统计
+        mThread = Executors.newSingleThreadExecutor();
+        mBus.subscribe(new Consumer(), mThread);
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        for(int i = 1; i < subscribers; i++) {
+            mBus.subscribe(new Consumer(), direct);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mThread.shutdownNow();
+    }
+
+    // 一阵突发的消息，发布后等所有缓冲区都归还
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void publishBurst() {
+        long target = mRecycled.get() + BURST;
+        for(int i = 0; i < BURST; i++) {
+            //缓冲区满时事件被丢弃，和 BluetoothChatService 一样由发布者归还
+            if(!mBus.publish(ChatEvent.TYPE_READ, mBuffer.length, -1, 0, mBuffer, null, null)) {
+                mRecycled.incrementAndGet();
+            }
+        }
+        while(mRecycled.get() < target) {
+            Thread.yield();
+        }
+    }
+
+    private class Consumer implements ChatEventBus.Listener {
+        @Override
+        public void onEvent(ChatEvent event) {
+            mBlackhole.consume(event.getLength());
+        }
+    }
+}
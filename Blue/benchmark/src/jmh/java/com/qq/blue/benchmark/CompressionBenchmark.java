@@ -0,0 +1,69 @@
+package com.qq.blue.benchmark;
+
+import com.qq.blue.FrameCodec;
+import com.qq.blue.FrameCompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 帧压缩：复用同一个 Deflater/Inflater 压缩和解压一条消息的开销
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+
+    @Param({"256", "1000", "8000"})
+    public int messageLength;
+
+    // ascii: 英文, cjk: 中文
+    @Param({"ascii", "cjk"})
+    public String text;
+
+    private byte[] mBytes;
+    private byte[] mCompressed;
+    private FrameCompressor mCompressor;
+    private FrameCodec.FrameListener mListener;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        mBytes = Messages.text(text, messageLength).getBytes();
+        mCompressor = new FrameCompressor(new FrameCompressor.Stats());
+        int length = mCompressor.compress(FrameCodec.TYPE_TEXT, mBytes);
+        mCompressed = new byte[length];
+        System.arraycopy(mCompressor.getOutput(), 0, mCompressed, 0, length);
+        mListener = new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                blackhole.consume(length);
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        mCompressor.end();
+    }
+
+    @Benchmark
+    public int compress() {
+        return mCompressor.compress(FrameCodec.TYPE_TEXT, mBytes);
+    }
+
+    @Benchmark
+    public void inflate() throws IOException {
+        mCompressor.inflate(mCompressed, 0, mCompressed.length, mListener);
+    }
+}
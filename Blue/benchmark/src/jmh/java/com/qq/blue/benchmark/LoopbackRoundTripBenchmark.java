@@ -0,0 +1,137 @@
+package com.qq.blue.benchmark;
+
+import com.qq.blue.ChatTransport;
+import com.qq.blue.FrameCodec;
+import com.qq.blue.FrameWriter;
+import com.qq.blue.LifecycleExecutor;
+import com.qq.blue.LoopbackTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 端到端：FrameWriter 发送，经过内存管道，接收线程解码.
+ * throughput 衡量连续发送时每毫秒送达的消息数，latency 衡量单条消息从 offer() 到被解码的时间
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoopbackRoundTripBenchmark {
+
+    private static final int BURST = 1000;
+
+    @Param({"16", "256", "1000"})
+    public int messageLength;
+
+    private ChatTransport.Acceptor mAcceptor;
+    private ChatTransport.Connection mClient;
+    private ChatTransport.Connection mServer;
+    private LifecycleExecutor mExecutor;
+    private FrameWriter mWriter;
+    private Thread mReader;
+    private byte[] mMessage;
+
+    // 接收线程已经解码的帧数
+    private final AtomicLong mReceived = new AtomicLong();
+    private long mSent;
+
+    @Setup
+    public void setup() throws IOException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        mAcceptor = new LoopbackTransport(network, "server").listen();
+        mClient = new LoopbackTransport(network, "client").open("server");
+        mClient.connect();
+        mServer = mAcceptor.accept();
+
+        mMessage = Messages.text("ascii", messageLength).getBytes();
+        mReceived.set(0);
+        mSent = 0;
+
+        mWriter = new FrameWriter(mClient.getOutputStream(), new FrameWriter.Listener() {
+            @Override
+            public void onFrameWritten(int type, byte[] payload) {
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+            }
+        }, 256);
+        mExecutor = new LifecycleExecutor();
+        mWriter.start(mExecutor);
+
+        final InputStream inStream = mServer.getInputStream();
+        final FrameCodec.Decoder decoder = new FrameCodec.Decoder(new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                mReceived.incrementAndGet();
+            }
+        });
+        mReader = new Thread("ReceiveLoop") {
+            public void run() {
+                byte[] buffer = new byte[1024];
+                try {
+                    int bytes;
+                    while((bytes = inStream.read(buffer)) > 0) {
+                        decoder.feed(buffer, 0, bytes);
+                    }
+                }
+                catch(IOException e) {
+                    // 连接关闭
+                }
+            }
+        };
+        mReader.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        mWriter.cancel();
+        mExecutor.shutdown();
+        mClient.close();
+        mServer.close();
+        mAcceptor.close();
+        mReader.join();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(BURST)
+    public void throughput() {
+        for(int i = 0; i < BURST; i++) {
+            send();
+        }
+        awaitReceived();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void latency() {
+        send();
+        awaitReceived();
+    }
+
+    private void send() {
+        while(!mWriter.offer(FrameCodec.TYPE_TEXT, mMessage)) {
+            Thread.yield();
+        }
+        mSent++;
+    }
+
+    private void awaitReceived() {
+        while(mReceived.get() < mSent) {
+            Thread.yield();
+        }
+    }
+}
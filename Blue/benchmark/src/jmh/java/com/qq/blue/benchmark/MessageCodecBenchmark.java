@@ -0,0 +1,102 @@
+package com.qq.blue.benchmark;
+
+import com.qq.blue.FrameCodec;
+import com.qq.blue.Utf8Codec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消息编解码：原来的 getBytes()/new String()，现在用的 Utf8Codec，以及 FrameCodec 的帧编解码
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageCodecBenchmark {
+
+    @Param({"16", "256", "1000"})
+    public int messageLength;
+
+    // ascii: 英文, cjk: 中文
+    @Param({"ascii", "cjk"})
+    public String text;
+
+    private String mMessage;
+    private byte[] mBytes;
+    private byte[] mFrame;
+    private FrameCodec.Decoder mDecoder;
+    private Utf8Codec.Decoder mUtf8Decoder;
+    // Utf8Codec.encode() 写到这里，不分配
+    private byte[] mUtf8Buffer;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        mMessage = Messages.text(text, messageLength);
+        mBytes = mMessage.getBytes("UTF-8");
+        mFrame = FrameCodec.encode(FrameCodec.TYPE_TEXT, mBytes);
+        mUtf8Decoder = new Utf8Codec.Decoder();
+        mUtf8Buffer = new byte[Utf8Codec.encodedLength(mMessage)];
+        mBlackhole = blackhole;
+        mDecoder = new FrameCodec.Decoder(new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                mBlackhole.consume(length);
+            }
+        });
+    }
+
+    @Benchmark
+    public byte[] encodeString() {
+        return mMessage.getBytes();
+    }
+
+    @Benchmark
+    public String decodeString() {
+        return new String(mBytes, 0, mBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeUtf8Codec() {
+        return Utf8Codec.encode(mMessage);
+    }
+
+    // 发送时编码到预先分配的缓冲区
+    @Benchmark
+    public int encodeUtf8CodecInto() {
+        return Utf8Codec.encode(mMessage, mUtf8Buffer, 0);
+    }
+
+    @Benchmark
+    public String decodeUtf8Codec() {
+        return mUtf8Decoder.decode(mBytes, 0, mBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeFrame() {
+        return FrameCodec.encode(FrameCodec.TYPE_TEXT, mMessage.getBytes());
+    }
+
+    @Benchmark
+    public void decodeFrame() throws IOException {
+        mDecoder.feed(mFrame, 0, mFrame.length);
+    }
+
+    // 每次只到一半，模拟RFCOMM把一帧拆成两次read()
+    @Benchmark
+    public void decodeSplitFrame() throws IOException {
+        int half = mFrame.length / 2;
+        mDecoder.feed(mFrame, 0, half);
+        mDecoder.feed(mFrame, half, mFrame.length - half);
+    }
+}
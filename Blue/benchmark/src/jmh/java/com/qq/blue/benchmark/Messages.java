@@ -0,0 +1,27 @@
+package com.qq.blue.benchmark;
+
+/**
+ * 生成压测用的消息
+ */
+final class Messages {
+
+    private static final String ASCII = "The quick brown fox jumps over the lazy dog. ";
+    private static final String CJK = "蓝牙聊天测试消息，中文每个字符占三个字节。";
+
+    private Messages() {
+    }
+
+    /**
+     * @param kind  ascii 或 cjk
+     * @param length    字符数
+     */
+    static String text(String kind, int length) {
+        String source = "cjk".equals(kind) ? CJK : ASCII;
+        StringBuilder builder = new StringBuilder(length);
+        while(builder.length() < length) {
+            builder.append(source);
+        }
+        builder.setLength(length);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package com.qq.blue.benchmark;
+
+import com.qq.blue.BufferPool;
+import com.qq.blue.FrameCodec;
+import com.qq.blue.Utf8Codec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectedThread 的接收循环：read() 到1024字节的缓冲区，解码成帧，
+ * 拷贝到租来的缓冲区，转成 String 后归还.
+ * receive() 用原来的 new String()，receiveUtf8Codec() 用现在 ConversationAdapter 里的 Utf8Codec.Decoder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReceiveLoopBenchmark {
+
+    private static final int FRAMES = 1000;
+
+    @Param({"16", "256", "1000"})
+    public int messageLength;
+
+    // ascii: 英文, cjk: 中文
+    @Param({"ascii", "cjk"})
+    public String text;
+
+    private ByteArrayInputStream mInStream;
+    private byte[] mReadBuffer;
+    private BufferPool mBufferPool;
+    private FrameCodec.Decoder mDecoder;
+    private FrameCodec.Decoder mUtf8FrameDecoder;
+    private Utf8Codec.Decoder mUtf8Decoder;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        byte[] message = Messages.text(text, messageLength).getBytes("UTF-8");
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for(int i = 0; i < FRAMES; i++) {
+            stream.write(FrameCodec.encode(FrameCodec.TYPE_TEXT, message));
+        }
+        mInStream = new ByteArrayInputStream(stream.toByteArray());
+        mReadBuffer = new byte[1024];
+        //中文消息最长3000字节，也从池里租
+        mBufferPool = new BufferPool(Math.max(1024, message.length), 32);
+        mBlackhole = blackhole;
+        mDecoder = new FrameCodec.Decoder(new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                byte[] leased = mBufferPool.obtain(length);
+                System.arraycopy(buffer, offset, leased, 0, length);
+                mBlackhole.consume(new String(leased, 0, length));
+                mBufferPool.recycle(leased);
+            }
+        });
+        mUtf8Decoder = new Utf8Codec.Decoder();
+        mUtf8FrameDecoder = new FrameCodec.Decoder(new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                byte[] leased = mBufferPool.obtain(length);
+                System.arraycopy(buffer, offset, leased, 0, length);
+                mBlackhole.consume(mUtf8Decoder.decode(leased, 0, length));
+                mBufferPool.recycle(leased);
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void receive() throws IOException {
+        receive(mDecoder);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void receiveUtf8Codec() throws IOException {
+        receive(mUtf8FrameDecoder);
+    }
+
+    private void receive(FrameCodec.Decoder decoder) throws IOException {
+        mInStream.reset();
+        int bytes;
+        while((bytes = mInStream.read(mReadBuffer)) > 0) {
+            decoder.feed(mReadBuffer, 0, bytes);
+        }
+    }
+}